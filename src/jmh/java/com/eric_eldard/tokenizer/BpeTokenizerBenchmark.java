@@ -0,0 +1,84 @@
+package com.eric_eldard.tokenizer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tokens per second for the real o200k ranks, over a mix of conversation and code. Needs the rank file, which
+ * {@link TokenCounter#readTokenizer()} downloads on first run; run with {@code ./gradlew jmh}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class BpeTokenizerBenchmark
+{
+    private static final String CONVERSATION = """
+        User: I want to build a small service that watches a directory and uploads new screenshots for analysis.
+        Assistant: Sounds good! Should it run inside the IDE, or as a separate process?
+        User: Inside the IDE. It should debounce bursts of files and skip anything over ten megabytes.
+        """;
+
+    private static final String CODE = """
+        public CompletableFuture<String> uploadFiles(File[] files)
+        {
+            return CompletableFuture.supplyAsync(() -> Arrays.stream(files)
+                .filter(file -> file.length() < 10 * 1024 * 1024)
+                .map(this::analyzeImage)
+                .collect(Collectors.joining("\\n\\n")));
+        }
+        """;
+
+    private BpeTokenizer tokenizer;
+
+    private String text;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        tokenizer = TokenCounter.readTokenizer();
+        text = (CONVERSATION + CODE).repeat(20);
+    }
+
+    @Benchmark
+    public int countTokens(TokenCounters counters)
+    {
+        int tokens = tokenizer.countTokens(text);
+        counters.tokens += tokens;
+        return tokens;
+    }
+
+    @Benchmark
+    public int[] encode(TokenCounters counters)
+    {
+        int[] ranks = tokenizer.encode(text);
+        counters.tokens += ranks.length;
+        return ranks;
+    }
+
+    /**
+     * Reports tokens encoded alongside calls, so results read as tokens/sec
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class TokenCounters
+    {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            tokens = 0;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_PROMPT_REQUEST;
 
 import com.intellij.ide.plugins.PluginManagerCore;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.extensions.PluginDescriptor;
 import com.intellij.openapi.extensions.PluginId;
 import com.intellij.openapi.project.Project;
@@ -57,10 +58,15 @@ import java.nio.file.StandardOpenOption;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.TurnStage;
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.tokenizer.TokenCounter;
 import com.eric_eldard.ui.log.BaseLogPanel;
 import com.eric_eldard.ui.log.HtmlLogPanel;
 import com.eric_eldard.ui.log.LogEntry;
@@ -68,8 +74,12 @@ import com.eric_eldard.ui.log.LogLevel;
 import com.eric_eldard.ui.log.TextLogPanel;
 import com.eric_eldard.util.EnvUtils;
 import com.eric_eldard.util.JunieConfigReader;
+import com.eric_eldard.voice.ClassifierCoordinator;
+import com.eric_eldard.voice.HttpResilience;
+import com.eric_eldard.voice.LocalPreClassifier;
 import com.eric_eldard.voice.OpenAIFilesService;
 import com.eric_eldard.voice.OpenAIResponsesService;
+import com.eric_eldard.voice.TranscriptStore;
 import com.eric_eldard.voice.VoiceService;
 
 /**
@@ -89,6 +99,20 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
     private static final String[] VOICE_MODELS =
         EnvUtils.getProperty("openai.voice.models", "OPENAI_VOICE_MODELS", "gpt-realtime-mini,gpt-realtime-1.5").split(",");
 
+    // Turns kept for classifier context; comfortably more than a classifier window
+    private static final int TRANSCRIPT_CAPACITY = 4 * OpenAIResponsesService.MAX_WINDOW_MESSAGES;
+
+    // Transcripts arriving closer together than this are classified together
+    private static final long CLASSIFIER_DEBOUNCE_MS = 250;
+
+    // "chat" classifies with a chat completion; "realtime" asks the voice session out of band, saving a request and
+    // the re-upload of the transcript
+    private static final String CLASSIFIER_BACKEND =
+        EnvUtils.getProperty("openai.classifier.backend", "OPENAI_CLASSIFIER_BACKEND", "chat");
+
+    // One in this many locally answered turns is also sent to the chat model, to measure disagreement
+    private static final long CLASSIFIER_AUDIT_EVERY = 20;
+
     private JBPanel mainPanel;
 
     private JButton connectButton;
@@ -99,12 +123,16 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
     private JButton copyLogButton;
 
+    private JButton statsButton;
+
     private JToggleButton micToggleButton;
 
     private JToggleButton speakerToggleButton;
 
     private JBLabel statusLabel;
 
+    private JBLabel usageLabel;
+
     private JBPanel logContainer;
 
     private JBScrollPane logScrollPane;
@@ -129,8 +157,17 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
     private OpenAIResponsesService responsesService;
 
+    private LocalPreClassifier localPreClassifier;
+
+    private ClassifierCoordinator classifierCoordinator;
+
     private OpenAIFilesService filesService;
 
+    private UsageMeter usageMeter;
+
+    // Retries and circuit breakers for the HTTPS endpoints, shared by the services which call them
+    private HttpResilience httpResilience;
+
     private boolean initialized;
 
     private ScheduledExecutorService volumeUpdateExecutor;
@@ -152,6 +189,9 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
     private final List<BaseLogPanel> logPanels = new ArrayList<>();
 
+    // Finished user and assistant turns, for classifier context; written as turns finish, read without locking the log
+    private final TranscriptStore transcriptStore = new TranscriptStore(TRANSCRIPT_CAPACITY);
+
     private LogLevel currentLogLevel = LogLevel.INFO;
 
     // Streaming text state
@@ -242,6 +282,11 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         updateStatus("Click Connect to get started", Color.GRAY);
         statusPanel.add(statusLabel);
 
+        // Running token usage for the session, updated as each API call reports it
+        usageLabel = new JBLabel("");
+        usageLabel.setForeground(Color.GRAY);
+        statusPanel.add(usageLabel);
+
         // Control panel with microphone toggle and other controls
         JBPanel controlPanel = new JBPanel(new BorderLayout());
 
@@ -344,6 +389,12 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         clearLogButton = new JButton("Clear Log");
         clearLogButton.setPreferredSize(new Dimension(80, 32));
 
+        // Stats button
+        statsButton = new JButton("Stats");
+        statsButton.setPreferredSize(new Dimension(80, 32));
+        statsButton.setEnabled(false); // Disabled until connected
+        statsButton.setToolTipText("Show turn latency percentiles and token usage for this session");
+
         // Upload button
         uploadButton = new JButton("📎");
         uploadButton.setPreferredSize(new Dimension(40, 32));
@@ -361,11 +412,12 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         submitButton.setPreferredSize(new Dimension(80, 32));
         submitButton.setEnabled(false); // Disabled until connected
 
-        // Left buttons (Copy Log, Clear Log)
+        // Left buttons (Copy Log, Clear Log, Stats)
         JBPanel buttonPanel1 = new JBPanel();
         buttonPanel1.setLayout(new BoxLayout(buttonPanel1, BoxLayout.Y_AXIS));
         buttonPanel1.add(copyLogButton);
         buttonPanel1.add(clearLogButton);
+        buttonPanel1.add(statsButton);
 
         // Right side button panel with new layout
         JBPanel buttonPanel2 = new JBPanel(new BorderLayout());
@@ -409,6 +461,9 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         // Clear log button handler
         clearLogButton.addActionListener(e -> clearLog());
 
+        // Stats button handler
+        statsButton.addActionListener(e -> showStats());
+
         // Upload button handler
         uploadButton.addActionListener(e -> openFileDialog());
 
@@ -722,14 +777,35 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
             String junieConfig = loadJunieConfig();
 
-            voiceService = new VoiceService(apiKey, selectedModel, selectedVoice, junieConfig);
+            // Token counts are estimated until the tokenizer's ranks have loaded
+            TokenCounter.load();
+
+            // One meter for the whole connection, so usage across all three services adds up
+            usageMeter = new UsageMeter();
+            usageMeter.setListener(this::onUsage);
+            updateUsageLabel();
+            httpResilience = new HttpResilience();
+
+            voiceService = VoiceService.create(apiKey, selectedModel, selectedVoice, junieConfig, usageMeter);
             voiceService.setServiceListener(this);
 
             // Initialize OpenAI Responses Service for code detection
-            responsesService = new OpenAIResponsesService(apiKey, junieConfig);
+            responsesService = new OpenAIResponsesService(apiKey, junieConfig, usageMeter, httpResilience);
+            voiceService.setConversationSummarizer(responsesService::summarizeConversation);
+            // Clear small talk is answered locally; the rest goes to the chat model, or the Realtime session
+            ClassifierCoordinator.Classifier modelClassifier = "realtime".equalsIgnoreCase(CLASSIFIER_BACKEND)
+                ? this::classifyOutOfBand
+                : responsesService::analyzeForCodeRequest;
+            localPreClassifier = new LocalPreClassifier(modelClassifier,
+                (int) EnvUtils.getLongProperty("openai.classifier.audit.every", "OPENAI_CLASSIFIER_AUDIT_EVERY",
+                    CLASSIFIER_AUDIT_EVERY));
+            classifierCoordinator = new ClassifierCoordinator(localPreClassifier,
+                EnvUtils.getLongProperty("openai.classifier.debounce.ms", "OPENAI_CLASSIFIER_DEBOUNCE_MS",
+                    CLASSIFIER_DEBOUNCE_MS));
 
             // Initialize OpenAI Files Service for file uploads
-            filesService = new OpenAIFilesService(apiKey);
+            filesService = new OpenAIFilesService(apiKey, usageMeter, httpResilience,
+                Path.of(PathManager.getSystemPath(), "voice-assistant", "image-analyses"));
 
             voiceService.initialize().thenAccept(success ->
             {
@@ -745,6 +821,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
                         submitButton.setEnabled(true);
                         uploadButton.setEnabled(true);
                         pasteButton.setEnabled(true);
+                        statsButton.setEnabled(true);
                         connectButton.setEnabled(false);
                         disconnectButton.setEnabled(true);
                         addLogEntry(LogLevel.INFO, "✅ Successfully connected to OpenAI Realtime API");
@@ -763,10 +840,24 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
     {
         if (voiceService != null)
         {
+            addLogEntry(LogLevel.DEBUG, "📊 " + voiceService.getLatencyTracker().summarize());
+            addLogEntry(LogLevel.DEBUG, "📊 " + usageMeter.summarize());
             voiceService.shutdown();
             voiceService = null;
         }
 
+        if (classifierCoordinator != null)
+        {
+            addLogEntry(LogLevel.DEBUG, "📊 Classifier requests: " + classifierCoordinator.describe());
+            addLogEntry(LogLevel.DEBUG, "📊 Local pre-classifier: " + localPreClassifier.describe());
+            classifierCoordinator.shutdown();
+            classifierCoordinator = null;
+            localPreClassifier = null;
+        }
+        if (filesService != null)
+        {
+            addLogEntry(LogLevel.DEBUG, "📊 Image uploads: " + filesService.describeUploads());
+        }
         responsesService = null;
         filesService = null;
 
@@ -776,6 +867,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         submitButton.setEnabled(false);
         uploadButton.setEnabled(false);
         pasteButton.setEnabled(false);
+        statsButton.setEnabled(false);
         connectButton.setEnabled(true);
         disconnectButton.setEnabled(false);
 
@@ -847,6 +939,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
         // Add the user's message to the log
         addLogEntry(LogLevel.INFO, USER_PREFIX + TEXT_INPUT + text);
+        transcriptStore.append("user", text);
 
         // Send the text message to the voice service
         voiceService.sendTextMessage(text);
@@ -934,6 +1027,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
     private void clearLog()
     {
+        transcriptStore.clear();
         synchronized (logEntries)
         {
             logEntries.clear();
@@ -958,6 +1052,40 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         refreshLogDisplay();
     }
 
+    private void showStats()
+    {
+        if (voiceService == null)
+        {
+            return;
+        }
+        addLogEntry(LogLevel.INFO, "📊 " + voiceService.getLatencyTracker().summarize());
+        addLogEntry(LogLevel.INFO, "📊 " + usageMeter.summarize());
+        addLogEntry(LogLevel.INFO, "📊 " + voiceService.getEventBus().summarize());
+        addLogEntry(LogLevel.INFO, "📊 Classifier requests: " + classifierCoordinator.describe());
+        addLogEntry(LogLevel.INFO, "📊 Local pre-classifier: " + localPreClassifier.describe());
+        addLogEntry(LogLevel.INFO, "📊 Classifier context: " + responsesService.describeContextBudget());
+        addLogEntry(LogLevel.INFO, "📊 Classifier hedging: " + responsesService.describeHedging());
+        addLogEntry(LogLevel.INFO, "📊 Classifier cache: " + responsesService.describeCache());
+        addLogEntry(LogLevel.INFO, "📊 Endpoints: " + httpResilience.describe());
+        addLogEntry(LogLevel.INFO, "📊 Image uploads: " + filesService.describeUploads());
+    }
+
+    private void onUsage(String feature, TokenUsage callUsage)
+    {
+        SwingUtilities.invokeLater(() ->
+        {
+            addLogEntry(LogLevel.DEBUG, "🪙 " + feature + " turn: " + callUsage.describe());
+            updateUsageLabel();
+        });
+    }
+
+    private void updateUsageLabel()
+    {
+        TokenUsage total = usageMeter.getSessionTotal();
+        usageLabel.setText(String.format("| Tokens: %,d in (%.0f%% cached), %,d out",
+            total.inputTokens(), total.cacheHitRatio() * 100, total.outputTokens()));
+    }
+
     private void openFileDialog()
     {
         JFileChooser fileChooser = new JFileChooser();
@@ -1001,8 +1129,12 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
         String numFiles = files.length + (files.length == 1 ? " file" : " files");
         addLogEntry(LogLevel.INFO, USER_PREFIX + FILE_UPLOAD + "Uploading " + numFiles + "...");
+        transcriptStore.append("user", "Uploading " + numFiles + "...");
 
-        filesService.uploadFiles(files).thenAccept(response ->
+        // Each analysis is shown as it completes; once all are in, they go to the agents together, in file order
+        filesService.uploadFiles(files, analysis -> SwingUtilities.invokeLater(() ->
+            addLogEntry(LogLevel.INFO, AGENT_PREFIX + TEXT_INPUT + analysis)
+        )).thenAccept(response ->
         {
             SwingUtilities.invokeLater(() ->
             {
@@ -1021,10 +1153,12 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         });
     }
 
+    /**
+     * @param response every image's analysis, each already shown in the log as an agent message (not spoken aloud)
+     */
     private void processFileUploadResponse(String response)
     {
-        // Display the image analysis response as an agent message (not spoken aloud)
-        addLogEntry(LogLevel.INFO, AGENT_PREFIX + TEXT_INPUT + response);
+        transcriptStore.append("assistant", response);
 
         // Inject the image analysis response into the voice session using conversation.item.create
         if (voiceService != null && voiceService.isConnected())
@@ -1089,6 +1223,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
                 ImageIO.write(bufferedImage, "png", tempFile);
 
                 addLogEntry(LogLevel.INFO, USER_PREFIX + IMAGE_INPUT + "Pasted image from clipboard");
+                transcriptStore.append("user", "Pasted image from clipboard");
 
                 // Process through existing upload pipeline
                 uploadFiles(new File[]{tempFile});
@@ -1300,6 +1435,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
                     addLogEntry(LogLevel.INFO, userMessage);
                 }
             }
+            transcriptStore.append("user", transcript);
 
             // Call OpenAI Responses API to determine if code should be produced
             // This happens when user finishes talking for faster response time
@@ -1351,6 +1487,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
                     addLogEntry(LogLevel.INFO, agentMessage);
                 }
             }
+            transcriptStore.append("assistant", transcript);
         });
     }
 
@@ -1401,6 +1538,11 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
                         // Only scroll to bottom if already at bottom
                         scrollToBottomIfNeeded();
+
+                        if (voiceService != null)
+                        {
+                            voiceService.getLatencyTracker().mark(TurnStage.FIRST_TEXT_RENDERED);
+                        }
                     });
                 }
                 else
@@ -1557,30 +1699,60 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
 
     private void processTranscript()
     {
-        if (responsesService != null)
+        if (classifierCoordinator != null)
         {
-            List<OpenAIResponsesService.TranscriptMessage> transcriptMessages = collectRecentTranscriptMessages(10);
-            if (!transcriptMessages.isEmpty())
+            // Bursts of transcripts are coalesced; the transcript is collected when the request is finally sent
+            ClassifierStream stream = new ClassifierStream();
+            int window = OpenAIResponsesService.MAX_WINDOW_MESSAGES;
+            classifierCoordinator.submit(() -> transcriptStore.snapshot(window), stream, (result, throwable) ->
             {
-                responsesService.analyzeForCodeRequest(transcriptMessages)
-                    .thenAccept(result -> SwingUtilities.invokeLater(() -> handleProcessTranscriptResults(result)))
-                    .exceptionally(throwable ->
-                    {
-                        log.error("Error calling OpenAI Responses API for text message", throwable);
-                        SwingUtilities.invokeLater(() ->
-                            addLogEntry(LogLevel.DEBUG, "Code agent: *Error analyzing text message*"));
-                        return null;
-                    });
-            }
+                if (throwable != null)
+                {
+                    log.error("Error calling OpenAI Responses API for text message", throwable);
+                    SwingUtilities.invokeLater(() ->
+                        addLogEntry(LogLevel.DEBUG, "Code agent: *Error analyzing text message*"));
+                }
+                else
+                {
+                    SwingUtilities.invokeLater(() -> handleProcessTranscriptResults(result, stream));
+                }
+            });
         }
     }
 
+    /**
+     * Classifies on the Realtime session, which already holds the conversation; the chat model stands in while the
+     * session is down
+     */
+    private CompletableFuture<String> classifyOutOfBand(List<OpenAIResponsesService.TranscriptMessage> messages,
+                                                        OpenAIResponsesService.ClassifierStreamListener stream)
+    {
+        VoiceService voice = voiceService;
+        OpenAIResponsesService responses = responsesService;
+        if (responses == null)
+        {
+            return CompletableFuture.completedFuture(LABEL_NON_GENERATIVE_REQUEST);
+        }
+        if (voice == null || !voice.isConnected())
+        {
+            return responses.analyzeForCodeRequest(messages, stream);
+        }
+        return voice.classifyOutOfBand(responses.getInstructions(), stream);
+    }
+
     /**
      * Processes the result from OpenAI Responses API code analysis
      * This method handles the common response processing logic for both voice and text inputs
+     *
+     * @param stream the streamed log entry for this result, which already shows any generated content
      */
-    private void handleProcessTranscriptResults(String result)
+    private void handleProcessTranscriptResults(String result, ClassifierStream stream)
     {
+        if (voiceService != null)
+        {
+            voiceService.getLatencyTracker().mark(TurnStage.CLASSIFIER_RESULT);
+        }
+
         if (LABEL_NON_GENERATIVE_REQUEST.equals(result))
         {
             // Log non-generative requests to DEBUG
@@ -1594,7 +1766,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
             String promptContent = removeLabelFromResponse(result, LABEL_PROMPT_REQUEST);
             if (!promptContent.isEmpty())
             {
-                addLogEntry(LogLevel.INFO, AGENT_PREFIX + TEXT_INPUT + promptContent);
+                stream.finish(promptContent);
                 writePromptToFile(promptContent);
             }
             else
@@ -1609,8 +1781,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
             if (!codeContent.isEmpty())
             {
                 // Append code response to the log as a new message from the agent (without label)
-                String codeMessage = AGENT_PREFIX + TEXT_INPUT + codeContent;
-                addLogEntry(LogLevel.INFO, codeMessage);
+                stream.finish(codeContent);
             }
             else
             {
@@ -1625,6 +1796,7 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
                 // Append code response to the log as a new message from the agent
                 String codeMessage = AGENT_PREFIX + TEXT_INPUT + result;
                 addLogEntry(LogLevel.INFO, codeMessage);
+                transcriptStore.append("assistant", result);
             }
             else
             {
@@ -1719,46 +1891,81 @@ public class VoiceAssistantPanel implements VoiceService.VoiceServiceListener
         }
     }
 
+    private String loadJunieConfig()
+    {
+        return JunieConfigReader.readJunieConfig(project, message -> addLogEntry(LogLevel.DEBUG, message));
+    }
+
     /**
-     * Collects recent transcript messages for OpenAI Responses API analysis
-     *
-     * @param maxMessages Maximum number of messages to collect (default 10)
-     * @return List of transcript messages in chronological order
+     * Log entry for a classifier result, filled in as the generated code or prompt streams in
      */
-    private List<OpenAIResponsesService.TranscriptMessage> collectRecentTranscriptMessages(int maxMessages)
+    private class ClassifierStream implements OpenAIResponsesService.ClassifierStreamListener
     {
-        List<OpenAIResponsesService.TranscriptMessage> transcriptMessages = new ArrayList<>();
+        private final StringBuilder content = new StringBuilder();
 
-        synchronized (logEntries)
+        // Null until the first content arrives
+        private BaseLogPanel logPanel;
+
+        @Override
+        public void onLabel(String label)
+        {
+            log.debug("Classifier streaming {}", label);
+        }
+
+        @Override
+        public void onContent(String delta)
+        {
+            SwingUtilities.invokeLater(() ->
+            {
+                content.append(delta);
+                show(content.toString());
+            });
+        }
+
+        @Override
+        public void onCancelled()
         {
-            // Iterate through log entries in reverse order to get most recent first
-            for (int i = logEntries.size() - 1; i >= 0 && transcriptMessages.size() < maxMessages; i--)
+            SwingUtilities.invokeLater(() ->
             {
-                LogEntry entry = logEntries.get(i);
-                String message = entry.message();
+                if (logPanel != null)
+                {
+                    show(content + "\n\n*Superseded by a newer request*");
+                }
+            });
+        }
+
+        /**
+         * Shows the complete content, which replaces whatever was streamed
+         */
+        private void finish(String completeContent)
+        {
+            content.setLength(0);
+            content.append(completeContent);
+            show(completeContent);
+            transcriptStore.append("assistant", completeContent);
+        }
 
-                if (message.startsWith(USER_PREFIX))
+        private void show(String text)
+        {
+            String message = AGENT_PREFIX + TEXT_INPUT + text;
+            synchronized (logEntries)
+            {
+                if (logPanel == null)
                 {
-                    String content = message.substring(PREFIX_CHARS);
-                    // Skip placeholder messages
-                    if (!content.equals("_transcribing_"))
-                    {
-                        transcriptMessages.addFirst(new OpenAIResponsesService.TranscriptMessage("user", content));
-                    }
+                    addLogEntry(LogLevel.INFO, message);
+                    logPanel = logPanels.get(logPanels.size() - 1);
+                    return;
                 }
-                else if (message.startsWith(AGENT_PREFIX))
+
+                // The log may have been cleared since the entry was added
+                int index = logPanels.indexOf(logPanel);
+                if (index >= 0)
                 {
-                    String content = message.substring(PREFIX_CHARS);
-                    transcriptMessages.addFirst(new OpenAIResponsesService.TranscriptMessage("assistant", content));
+                    logEntries.set(index, new LogEntry(LogLevel.INFO, message));
+                    logPanel.updateContent(message);
                 }
             }
+            scrollToBottomIfNeeded();
         }
-
-        return transcriptMessages;
-    }
-
-    private String loadJunieConfig()
-    {
-        return JunieConfigReader.readJunieConfig(project, message -> addLogEntry(LogLevel.DEBUG, message));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package com.eric_eldard.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram using HdrHistogram's log-linear bucketing: each power-of-two range is split into 64
+ * linear sub-buckets, so any recorded value is reported within ~1.6% of its true value. Values are recorded in
+ * microseconds, up to {@link #MAX_TRACKABLE_MICROS}; larger values are clamped.
+ */
+public class LatencyHistogram
+{
+    public static final long MAX_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 6;
+
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+
+    private static final long SUB_BUCKET_MASK = (SUB_BUCKET_HALF_COUNT << 1) - 1;
+
+    private static final int BUCKET_COUNT =
+        64 - Long.numberOfLeadingZeros(MAX_TRACKABLE_MICROS) - SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+
+    private final AtomicLongArray counts = new AtomicLongArray((BUCKET_COUNT + 1) * SUB_BUCKET_HALF_COUNT);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos)
+    {
+        long micros = Math.max(0, Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_TRACKABLE_MICROS));
+        counts.incrementAndGet(countsIndex(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    public double getMeanMs()
+    {
+        long count = totalCount.get();
+        return count == 0 ? 0 : totalMicros.get() / 1000.0 / count;
+    }
+
+    public double getMaxMs()
+    {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value, in millis, at or below which the given percentage of recorded values fall; 0 when empty
+     */
+    public double getPercentileMs(double percentile)
+    {
+        long count = totalCount.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(highestEquivalentValue(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMs();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * @return one-line summary, e.g. {@code n=12 p50=410ms p95=880ms p99=1020ms max=1020ms}
+     */
+    public String summarize()
+    {
+        return String.format("n=%d p50=%.0fms p95=%.0fms p99=%.0fms max=%.0fms",
+            getCount(), getPercentileMs(50), getPercentileMs(95), getPercentileMs(99), getMaxMs());
+    }
+
+    private static int countsIndex(long value)
+    {
+        int bucketIndex = Math.max(0,
+            64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - (SUB_BUCKET_HALF_COUNT_MAGNITUDE + 1));
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+    }
+
+    private static long highestEquivalentValue(int index)
+    {
+        int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        long subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucketIndex < 0)
+        {
+            subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+            bucketIndex = 0;
+        }
+        return ((subBucketIndex + 1) << bucketIndex) - 1;
+    }
+}
@@ -0,0 +1,140 @@
+package com.eric_eldard.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Token counts reported by one API call, or the sum of several. Calls cut off before the API reported their usage are
+ * counted from our own estimate instead, and their input is tracked apart so it doesn't skew the cache hit ratio.
+ */
+public record TokenUsage(
+    long inputTokens,
+    long cachedInputTokens,
+    long inputTextTokens,
+    long inputAudioTokens,
+    long outputTokens,
+    long outputTextTokens,
+    long outputAudioTokens,
+    long calls,
+    long estimatedInputTokens)
+{
+    public static final TokenUsage NONE = new TokenUsage(0, 0, 0, 0, 0, 0, 0, 0);
+
+    public TokenUsage(long inputTokens, long cachedInputTokens, long inputTextTokens, long inputAudioTokens,
+                      long outputTokens, long outputTextTokens, long outputAudioTokens, long calls)
+    {
+        this(inputTokens, cachedInputTokens, inputTextTokens, inputAudioTokens, outputTokens, outputTextTokens,
+            outputAudioTokens, calls, 0);
+    }
+
+    /**
+     * Usage of a text call which was cancelled before the API reported it, from our own count of its tokens. Nothing
+     * is counted as cached, as there's no knowing.
+     */
+    public static TokenUsage estimated(long inputTokens, long outputTokens)
+    {
+        return new TokenUsage(inputTokens, 0, inputTokens, 0, outputTokens, outputTokens, 0, 1, inputTokens);
+    }
+
+    /**
+     * Parses the {@code usage} block of a Realtime {@code response.done} event
+     */
+    public static TokenUsage fromRealtime(JsonNode usage)
+    {
+        if (usage == null || usage.isNull() || usage.isMissingNode())
+        {
+            return NONE;
+        }
+        JsonNode inputDetails = usage.path("input_token_details");
+        JsonNode outputDetails = usage.path("output_token_details");
+        return new TokenUsage(
+            usage.path("input_tokens").asLong(),
+            inputDetails.path("cached_tokens").asLong(),
+            inputDetails.path("text_tokens").asLong(),
+            inputDetails.path("audio_tokens").asLong(),
+            usage.path("output_tokens").asLong(),
+            outputDetails.path("text_tokens").asLong(),
+            outputDetails.path("audio_tokens").asLong(),
+            1);
+    }
+
+    /**
+     * Parses the {@code usage} block of a Chat Completions response; tokens not reported as audio are counted as text
+     */
+    public static TokenUsage fromChatCompletions(JsonNode usage)
+    {
+        if (usage == null || usage.isNull() || usage.isMissingNode())
+        {
+            return NONE;
+        }
+        long input = usage.path("prompt_tokens").asLong();
+        long inputAudio = usage.path("prompt_tokens_details").path("audio_tokens").asLong();
+        long output = usage.path("completion_tokens").asLong();
+        long outputAudio = usage.path("completion_tokens_details").path("audio_tokens").asLong();
+        return new TokenUsage(
+            input,
+            usage.path("prompt_tokens_details").path("cached_tokens").asLong(),
+            input - inputAudio,
+            inputAudio,
+            output,
+            output - outputAudio,
+            outputAudio,
+            1);
+    }
+
+    /**
+     * Parses the {@code usage} block of a Responses API response; it reports no audio, so every token is text
+     */
+    public static TokenUsage fromResponses(JsonNode usage)
+    {
+        if (usage == null || usage.isNull() || usage.isMissingNode())
+        {
+            return NONE;
+        }
+        long input = usage.path("input_tokens").asLong();
+        long output = usage.path("output_tokens").asLong();
+        return new TokenUsage(
+            input,
+            usage.path("input_tokens_details").path("cached_tokens").asLong(),
+            input,
+            0,
+            output,
+            output,
+            0,
+            1);
+    }
+
+    public TokenUsage plus(TokenUsage other)
+    {
+        return new TokenUsage(
+            inputTokens + other.inputTokens,
+            cachedInputTokens + other.cachedInputTokens,
+            inputTextTokens + other.inputTextTokens,
+            inputAudioTokens + other.inputAudioTokens,
+            outputTokens + other.outputTokens,
+            outputTextTokens + other.outputTextTokens,
+            outputAudioTokens + other.outputAudioTokens,
+            calls + other.calls,
+            estimatedInputTokens + other.estimatedInputTokens);
+    }
+
+    /**
+     * @return share of reported input tokens served from the prompt cache, between 0 and 1
+     */
+    public double cacheHitRatio()
+    {
+        long reported = inputTokens - estimatedInputTokens;
+        return reported == 0 ? 0 : (double) cachedInputTokens / reported;
+    }
+
+    /**
+     * @return e.g. {@code in 1200 (cached 1024; text 200, audio 1000) out 300 (text 40, audio 260)}, followed by
+     *     e.g. {@code ; 150 input estimated} if any of it is
+     */
+    public String describe()
+    {
+        String described = String.format("in %d (cached %d; text %d, audio %d) out %d (text %d, audio %d)",
+            inputTokens, cachedInputTokens, inputTextTokens, inputAudioTokens,
+            outputTokens, outputTextTokens, outputAudioTokens);
+        return estimatedInputTokens == 0 ? described : described + "; " + estimatedInputTokens + " input estimated";
+    }
+}
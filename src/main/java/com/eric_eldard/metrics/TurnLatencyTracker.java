@@ -0,0 +1,140 @@
+package com.eric_eldard.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Timestamps each {@link TurnStage} of a session's turns and records the results into per-stage
+ * {@link LatencyHistogram}s. Only the first occurrence of a stage counts towards a turn.
+ * <p>
+ * Under VAD the mic keeps capturing the next turn while the previous one is still being answered, so a turn moves from
+ * the input slot to the response slot once its input is over; input stages mark the former, all others the latter.
+ */
+public class TurnLatencyTracker
+{
+    private final Map<TurnStage, LatencyHistogram> histograms = new EnumMap<>(TurnStage.class);
+
+    private Turn inputTurn;
+
+    private Turn respondingTurn;
+
+    public TurnLatencyTracker()
+    {
+        for (TurnStage stage : TurnStage.values())
+        {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Marks a stage of the current turn, timed now; repeat marks of the same stage within a turn are ignored
+     */
+    public void mark(TurnStage stage)
+    {
+        mark(stage, System.nanoTime());
+    }
+
+    public synchronized void mark(TurnStage stage, long nanoTime)
+    {
+        if (stage.isInputStage())
+        {
+            if (inputTurn == null)
+            {
+                if (stage != TurnStage.MIC_CAPTURE)
+                {
+                    return; // Audio started flowing before tracking did; skip this partial turn
+                }
+                inputTurn = new Turn(nanoTime);
+            }
+            inputTurn.mark(stage, nanoTime);
+        }
+        else
+        {
+            if (stage == TurnStage.COMMITTED && inputTurn != null)
+            {
+                // Input is over; later stages belong to this turn while the mic moves on to the next one
+                respondingTurn = inputTurn;
+                inputTurn = null;
+            }
+            if (respondingTurn != null)
+            {
+                respondingTurn.mark(stage, nanoTime);
+            }
+        }
+    }
+
+    /**
+     * Starts a typed turn, whose input ends the moment it is sent
+     */
+    public synchronized void beginTextTurn()
+    {
+        respondingTurn = new Turn(System.nanoTime());
+    }
+
+    public LatencyHistogram getHistogram(TurnStage stage)
+    {
+        return histograms.get(stage);
+    }
+
+    public void reset()
+    {
+        histograms.values().forEach(LatencyHistogram::reset);
+    }
+
+    /**
+     * @return multi-line p50/p95/p99 report of every stage with at least one sample
+     */
+    public String summarize()
+    {
+        StringBuilder summary = new StringBuilder("Turn latency percentiles");
+        for (TurnStage stage : TurnStage.values())
+        {
+            LatencyHistogram histogram = histograms.get(stage);
+            if (histogram.getCount() > 0)
+            {
+                summary.append("\n- ").append(stage.getDescription()).append(": ").append(histogram.summarize());
+            }
+        }
+        return summary.toString();
+    }
+
+    private class Turn
+    {
+        private final long startNanos;
+
+        private final long[] marks = new long[TurnStage.values().length];
+
+        private Turn(long startNanos)
+        {
+            this.startNanos = startNanos;
+        }
+
+        private void mark(TurnStage stage, long nanoTime)
+        {
+            if (marks[stage.ordinal()] != 0)
+            {
+                return;
+            }
+            marks[stage.ordinal()] = nanoTime;
+
+            if (stage != TurnStage.MIC_CAPTURE)
+            {
+                long anchor = stage.isInputStage() ? startNanos : endOfInput();
+                histograms.get(stage).recordNanos(nanoTime - anchor);
+            }
+        }
+
+        private long endOfInput()
+        {
+            if (marks[TurnStage.SPEECH_STOPPED.ordinal()] != 0)
+            {
+                return marks[TurnStage.SPEECH_STOPPED.ordinal()];
+            }
+            if (marks[TurnStage.COMMITTED.ordinal()] != 0)
+            {
+                return marks[TurnStage.COMMITTED.ordinal()];
+            }
+            return startNanos;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.eric_eldard.metrics;
+
+import lombok.Getter;
+
+/**
+ * Milestones of a conversational turn, in the order they normally happen. Input stages are timed from the turn's first
+ * captured mic frame; every other stage is timed from the end of the user's input (server or client end of speech,
+ * the commit when nobody detected one, or the send of a typed message).
+ */
+@Getter
+public enum TurnStage
+{
+    MIC_CAPTURE("Mic frame captured", true),
+    FIRST_APPEND_SENT("First audio append sent", true),
+    SPEECH_STOPPED("Speech stopped", true),
+    COMMITTED("Audio buffer committed", false),
+    RESPONSE_CREATED("Response created", false),
+    FIRST_AUDIO_DELTA("First audio delta received", false),
+    FIRST_SPEAKER_WRITE("First audio written to speakers", false),
+    FIRST_TEXT_RENDERED("First text delta rendered", false),
+    TRANSCRIPTION_COMPLETED("User transcription completed", false),
+    CLASSIFIER_RESULT("Classifier result", false);
+
+    private final String description;
+
+    private final boolean inputStage;
+
+    TurnStage(String description, boolean inputStage)
+    {
+        this.description = description;
+        this.inputStage = inputStage;
+    }
+}
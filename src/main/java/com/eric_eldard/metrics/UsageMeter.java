@@ -0,0 +1,84 @@
+package com.eric_eldard.metrics;
+
+import lombok.Setter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-session token accounting, broken down by the feature which spent the tokens. Shared by every service of a
+ * connection; each API call's usage is reported to the listener as it lands, so it can be shown live.
+ */
+public class UsageMeter
+{
+    public static final String FEATURE_VOICE = "voice";
+
+    public static final String FEATURE_CLASSIFIER = "classifier";
+
+    public static final String FEATURE_IMAGE = "image";
+
+    public static final String FEATURE_COMPACTION = "compaction";
+
+    private final Map<String, TokenUsage> sessionUsage = new ConcurrentHashMap<>();
+
+    @Setter
+    private UsageListener listener;
+
+    /**
+     * Adds one call's usage to the session totals
+     *
+     * @param feature which feature made the call, e.g. {@link #FEATURE_VOICE}
+     * @param usage   the call's usage; ignored when empty
+     */
+    public void record(String feature, TokenUsage usage)
+    {
+        if (usage == null || usage.calls() == 0)
+        {
+            return;
+        }
+        sessionUsage.merge(feature, usage, TokenUsage::plus);
+        if (listener != null)
+        {
+            listener.onUsage(feature, usage);
+        }
+    }
+
+    public TokenUsage getSessionUsage(String feature)
+    {
+        return sessionUsage.getOrDefault(feature, TokenUsage.NONE);
+    }
+
+    public TokenUsage getSessionTotal()
+    {
+        return sessionUsage.values().stream().reduce(TokenUsage.NONE, TokenUsage::plus);
+    }
+
+    /**
+     * @return multi-line report of the session's usage, per feature
+     */
+    public String summarize()
+    {
+        StringBuilder summary = new StringBuilder("Token usage this session");
+        new TreeMap<>(sessionUsage).forEach((feature, usage) -> summary
+            .append("\n- ").append(feature).append(" (").append(usage.calls()).append(" calls): ")
+            .append(usage.describe()).append(describeCacheHits(usage)));
+        summary.append("\n- total: ").append(getSessionTotal().describe())
+            .append(describeCacheHits(getSessionTotal()));
+        return summary.toString();
+    }
+
+    private static String describeCacheHits(TokenUsage usage)
+    {
+        return String.format("; %.0f%% of input cached", usage.cacheHitRatio() * 100);
+    }
+
+    public interface UsageListener
+    {
+        /**
+         * @param feature   feature which made the call
+         * @param callUsage usage of that single call
+         */
+        void onUsage(String feature, TokenUsage callUsage);
+    }
+}
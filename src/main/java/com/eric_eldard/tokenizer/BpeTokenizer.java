@@ -0,0 +1,401 @@
+package com.eric_eldard.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte-pair encoder for tiktoken rank files, with o200k's pre-tokenizer. Ranks live in one byte array plus an
+ * open-addressed hash table of offsets, so looking up a byte range allocates nothing; recently seen words skip the
+ * merge loop entirely via a bounded LRU cache. Special tokens aren't recognised; all text is encoded as ordinary text.
+ */
+public class BpeTokenizer
+{
+    private static final String UPPER = "[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]";
+
+    private static final String LOWER = "[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]";
+
+    private static final String CONTRACTION = "(?i:'s|'t|'re|'ve|'m|'ll|'d)?";
+
+    /// o200k_base's split pattern, from tiktoken
+    static final Pattern O200K_PATTERN = Pattern.compile(String.join("|",
+        "[^\\r\\n\\p{L}\\p{N}]?" + UPPER + "*" + LOWER + "+" + CONTRACTION,
+        "[^\\r\\n\\p{L}\\p{N}]?" + UPPER + "+" + LOWER + "*" + CONTRACTION,
+        "\\p{N}{1,3}",
+        " ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*",
+        "\\s*[\\r\\n]+",
+        "\\s+(?!\\S)",
+        "\\s+"), Pattern.UNICODE_CHARACTER_CLASS);
+
+    // Words cached with their ranks; past this many, the least recently used are evicted
+    private static final int WORD_CACHE_LIMIT = 50_000;
+
+    // Longer pieces (runs of whitespace or symbols, mostly) aren't worth caching
+    private static final int MAX_CACHED_WORD_CHARS = 32;
+
+    private static final int NOT_FOUND = -1;
+
+    private final Pattern pattern;
+
+    // Every token's bytes, back to back; token i spans tokenOffsets[i] until tokenOffsets[i + 1]
+    private final byte[] tokenBytes;
+
+    private final int[] tokenOffsets;
+
+    private final int[] tokenRanks;
+
+    // Open addressing; each slot holds a token index + 1, or 0 when empty
+    private final int[] slots;
+
+    private final int slotMask;
+
+    // Token index for each rank, for decoding
+    private final int[] tokensByRank;
+
+    private final Map<String, int[]> wordCache = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest)
+        {
+            return size() > WORD_CACHE_LIMIT;
+        }
+    });
+
+    private final ThreadLocal<int[][]> scratch = ThreadLocal.withInitial(() -> new int[][] {new int[64], new int[64]});
+
+    private BpeTokenizer(Pattern pattern, byte[] tokenBytes, int[] tokenOffsets, int[] tokenRanks)
+    {
+        this.pattern = pattern;
+        this.tokenBytes = tokenBytes;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenRanks = tokenRanks;
+
+        int tokenCount = tokenRanks.length;
+        this.slots = new int[Integer.highestOneBit(Math.max(2, tokenCount * 2 - 1)) << 1];
+        this.slotMask = slots.length - 1;
+        int maxRank = 0;
+        for (int token = 0; token < tokenCount; token++)
+        {
+            int slot = hash(tokenBytes, tokenOffsets[token], tokenOffsets[token + 1]) & slotMask;
+            while (slots[slot] != 0)
+            {
+                slot = (slot + 1) & slotMask;
+            }
+            slots[slot] = token + 1;
+            maxRank = Math.max(maxRank, tokenRanks[token]);
+        }
+
+        this.tokensByRank = new int[maxRank + 1];
+        Arrays.fill(tokensByRank, NOT_FOUND);
+        for (int token = 0; token < tokenCount; token++)
+        {
+            tokensByRank[tokenRanks[token]] = token;
+        }
+    }
+
+    /**
+     * Reads a tiktoken rank file: one token per line, as base64 bytes, a space, and its rank
+     */
+    public static BpeTokenizer load(InputStream rankFile) throws IOException
+    {
+        return load(rankFile, O200K_PATTERN);
+    }
+
+    static BpeTokenizer load(InputStream rankFile, Pattern pattern) throws IOException
+    {
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] bytes = new byte[1 << 20];
+        int[] offsets = new int[1 << 16];
+        int[] ranks = new int[1 << 16];
+        int count = 0;
+        int length = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(rankFile, StandardCharsets.US_ASCII));
+        for (String line = reader.readLine(); line != null; line = reader.readLine())
+        {
+            int space = line.indexOf(' ');
+            if (space < 0)
+            {
+                continue;
+            }
+            byte[] token = decoder.decode(line.substring(0, space));
+            if (count + 1 >= offsets.length)
+            {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                ranks = Arrays.copyOf(ranks, ranks.length * 2);
+            }
+            if (length + token.length > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + token.length));
+            }
+            System.arraycopy(token, 0, bytes, length, token.length);
+            offsets[count] = length;
+            ranks[count] = Integer.parseInt(line.substring(space + 1).trim());
+            length += token.length;
+            count++;
+        }
+        offsets[count] = length;
+
+        if (count == 0)
+        {
+            throw new IOException("Rank file holds no tokens");
+        }
+        return new BpeTokenizer(pattern, Arrays.copyOf(bytes, length), Arrays.copyOf(offsets, count + 1),
+            Arrays.copyOf(ranks, count));
+    }
+
+    public int getVocabularySize()
+    {
+        return tokenRanks.length;
+    }
+
+    public int countTokens(String text)
+    {
+        int[] count = new int[1];
+        encode(text, rank -> count[0]++);
+        return count[0];
+    }
+
+    public int[] encode(String text)
+    {
+        int[][] out = {new int[Math.max(16, text.length() / 3)]};
+        int[] size = new int[1];
+        encode(text, rank ->
+        {
+            if (size[0] == out[0].length)
+            {
+                out[0] = Arrays.copyOf(out[0], size[0] * 2);
+            }
+            out[0][size[0]++] = rank;
+        });
+        return Arrays.copyOf(out[0], size[0]);
+    }
+
+    public String decode(int[] ranks)
+    {
+        int length = 0;
+        for (int rank : ranks)
+        {
+            int token = tokensByRank[rank];
+            length += tokenOffsets[token + 1] - tokenOffsets[token];
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int rank : ranks)
+        {
+            int token = tokensByRank[rank];
+            int tokenLength = tokenOffsets[token + 1] - tokenOffsets[token];
+            System.arraycopy(tokenBytes, tokenOffsets[token], bytes, position, tokenLength);
+            position += tokenLength;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the longest prefix of the text which fits in the given number of tokens
+     */
+    public String truncate(String text, int maxTokens)
+    {
+        int[] ranks = encode(text);
+        if (ranks.length <= maxTokens)
+        {
+            return text;
+        }
+        int end = 0;
+        for (int i = 0; i < Math.max(0, maxTokens); i++)
+        {
+            int token = tokensByRank[ranks[i]];
+            end += tokenOffsets[token + 1] - tokenOffsets[token];
+        }
+        // A token can end part way through a character; back off so it isn't split
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80)
+        {
+            end--;
+        }
+        return new String(utf8, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private void encode(String text, RankConsumer out)
+    {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        Matcher matcher = pattern.matcher(text);
+        int charPosition = 0;
+        int bytePosition = 0;
+        while (matcher.find())
+        {
+            // Walk the byte offset along with the char offset, rather than encoding each piece separately
+            bytePosition += utf8Length(text, charPosition, matcher.start());
+            int pieceBytes = utf8Length(text, matcher.start(), matcher.end());
+            charPosition = matcher.end();
+
+            int pieceChars = matcher.end() - matcher.start();
+            if (pieceChars <= MAX_CACHED_WORD_CHARS)
+            {
+                String word = text.substring(matcher.start(), matcher.end());
+                int[] cached = wordCache.get(word);
+                if (cached == null)
+                {
+                    cached = encodePiece(utf8, bytePosition, bytePosition + pieceBytes);
+                    wordCache.put(word, cached);
+                }
+                for (int rank : cached)
+                {
+                    out.accept(rank);
+                }
+            }
+            else
+            {
+                for (int rank : encodePiece(utf8, bytePosition, bytePosition + pieceBytes))
+                {
+                    out.accept(rank);
+                }
+            }
+            bytePosition += pieceBytes;
+        }
+    }
+
+    /**
+     * Merges the piece's bytes pairwise, lowest rank first, until no adjacent pair forms a token
+     */
+    private int[] encodePiece(byte[] bytes, int start, int end)
+    {
+        int whole = rank(bytes, start, end);
+        if (whole != NOT_FOUND)
+        {
+            return new int[] {whole};
+        }
+
+        int length = end - start;
+        int[][] buffers = scratch.get();
+        if (buffers[0].length < length + 1)
+        {
+            buffers[0] = new int[length + 1];
+            buffers[1] = new int[length + 1];
+        }
+        // boundaries[i] is where part i starts; pairRanks[i] is the rank of parts i and i + 1 joined
+        int[] boundaries = buffers[0];
+        int[] pairRanks = buffers[1];
+        int parts = length;
+        for (int i = 0; i <= length; i++)
+        {
+            boundaries[i] = start + i;
+        }
+        for (int i = 0; i < parts - 1; i++)
+        {
+            pairRanks[i] = rankOrMax(bytes, boundaries[i], boundaries[i + 2]);
+        }
+
+        while (parts > 1)
+        {
+            int best = 0;
+            for (int i = 1; i < parts - 1; i++)
+            {
+                if (pairRanks[i] < pairRanks[best])
+                {
+                    best = i;
+                }
+            }
+            if (pairRanks[best] == Integer.MAX_VALUE)
+            {
+                break;
+            }
+
+            // Join parts best and best + 1 by dropping the boundary between them
+            System.arraycopy(boundaries, best + 2, boundaries, best + 1, parts - best - 1);
+            System.arraycopy(pairRanks, best + 1, pairRanks, best, parts - best - 2);
+            parts--;
+            if (best < parts - 1)
+            {
+                pairRanks[best] = rankOrMax(bytes, boundaries[best], boundaries[best + 2]);
+            }
+            if (best > 0)
+            {
+                pairRanks[best - 1] = rankOrMax(bytes, boundaries[best - 1], boundaries[best + 1]);
+            }
+        }
+
+        int[] ranks = new int[parts];
+        for (int i = 0; i < parts; i++)
+        {
+            ranks[i] = rank(bytes, boundaries[i], boundaries[i + 1]);
+        }
+        return ranks;
+    }
+
+    private int rankOrMax(byte[] bytes, int from, int to)
+    {
+        int rank = rank(bytes, from, to);
+        return rank == NOT_FOUND ? Integer.MAX_VALUE : rank;
+    }
+
+    private int rank(byte[] bytes, int from, int to)
+    {
+        int slot = hash(bytes, from, to) & slotMask;
+        int length = to - from;
+        for (int entry = slots[slot]; entry != 0; slot = (slot + 1) & slotMask, entry = slots[slot])
+        {
+            int token = entry - 1;
+            int tokenStart = tokenOffsets[token];
+            if (tokenOffsets[token + 1] - tokenStart == length
+                && Arrays.equals(tokenBytes, tokenStart, tokenStart + length, bytes, from, to))
+            {
+                return tokenRanks[token];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /// FNV-1a
+    private static int hash(byte[] bytes, int from, int to)
+    {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++)
+        {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int utf8Length(String text, int from, int to)
+    {
+        int length = 0;
+        for (int i = from; i < to; i++)
+        {
+            char c = text.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @FunctionalInterface
+    private interface RankConsumer
+    {
+        void accept(int rank);
+    }
+}
@@ -0,0 +1,193 @@
+package com.eric_eldard.tokenizer;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+
+import com.eric_eldard.util.EnvUtils;
+
+/**
+ * Counts tokens as OpenAI's o200k models do. The rank file is read from {@code openai.tokenizer.ranks} /
+ * {@code OPENAI_TOKENIZER_RANKS} when set; otherwise it's downloaded once from tiktoken's public mirror, checked against
+ * tiktoken's published hash, and cached under the user's home. Until it has loaded, or if it can't be, counts are estimated from the UTF-8 length.
+ */
+@Slf4j
+public final class TokenCounter
+{
+    private static final String RANKS_URL = "https://openaipublic.blob.core.windows.net/encodings/o200k_base.tiktoken";
+
+    /// SHA-256 of the rank file, as tiktoken pins it
+    static final String RANKS_SHA256 = "446a9538cb6c348e3516120d7c08b09f57c36495e2acfffe59a5bf8b0cfb1a2d";
+
+    // Average UTF-8 bytes per token for English prose and code
+    private static final int ESTIMATED_BYTES_PER_TOKEN = 4;
+
+    private static volatile BpeTokenizer tokenizer;
+
+    private static CompletableFuture<BpeTokenizer> loading;
+
+    /**
+     * Starts loading the tokenizer in the background, once per JVM
+     */
+    public static synchronized CompletableFuture<BpeTokenizer> load()
+    {
+        if (loading == null)
+        {
+            loading = CompletableFuture.supplyAsync(() ->
+            {
+                try
+                {
+                    BpeTokenizer loaded = readTokenizer();
+                    tokenizer = loaded;
+                    log.info("Loaded o200k tokenizer with {} tokens", loaded.getVocabularySize());
+                    return loaded;
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    log.warn("Tokenizer unavailable; token counts will be estimated", e);
+                    return null;
+                }
+            });
+        }
+        return loading;
+    }
+
+    /**
+     * @return the text's token count; estimated until the tokenizer has loaded
+     */
+    public static int count(String text)
+    {
+        if (text == null || text.isEmpty())
+        {
+            return 0;
+        }
+        BpeTokenizer loaded = tokenizer;
+        return loaded != null ? loaded.countTokens(text) : estimate(text);
+    }
+
+    /**
+     * @return the longest prefix of the text which fits in the given number of tokens; estimated until the tokenizer
+     * has loaded
+     */
+    public static String truncate(String text, int maxTokens)
+    {
+        if (text == null || text.isEmpty())
+        {
+            return text;
+        }
+        BpeTokenizer loaded = tokenizer;
+        if (loaded != null)
+        {
+            return loaded.truncate(text, maxTokens);
+        }
+        if (estimate(text) <= maxTokens)
+        {
+            return text;
+        }
+        // Cut by bytes, backing off so a multi-byte character isn't split
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        int end = Math.min(utf8.length, Math.max(0, maxTokens) * ESTIMATED_BYTES_PER_TOKEN);
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80)
+        {
+            end--;
+        }
+        return new String(utf8, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true once counts are exact rather than estimated
+     */
+    public static boolean isExact()
+    {
+        return tokenizer != null;
+    }
+
+    static int estimate(String text)
+    {
+        int bytes = text.getBytes(StandardCharsets.UTF_8).length;
+        return (bytes + ESTIMATED_BYTES_PER_TOKEN - 1) / ESTIMATED_BYTES_PER_TOKEN;
+    }
+
+    /**
+     * @return the tokenizer for the configured rank file, or the cached download, fetching it first if need be
+     */
+    public static BpeTokenizer readTokenizer() throws IOException
+    {
+        String configured = EnvUtils.getProperty("openai.tokenizer.ranks", "OPENAI_TOKENIZER_RANKS", null);
+        Path cached = configured != null
+            ? Path.of(configured)
+            : Path.of(System.getProperty("user.home"), ".cache", "junie-voice", "o200k_base.tiktoken");
+        if (configured != null || Files.exists(cached))
+        {
+            try (InputStream ranks = Files.newInputStream(cached))
+            {
+                return BpeTokenizer.load(ranks);
+            }
+        }
+        return download(RANKS_URL, RANKS_SHA256, cached);
+    }
+
+    /**
+     * Downloads a rank file, and moves it into place only once it matches the expected hash and parses
+     *
+     * @return the tokenizer parsed from the download
+     */
+    static BpeTokenizer download(String url, String expectedSha256, Path target) throws IOException
+    {
+        log.info("Downloading tokenizer ranks from {}", url);
+        Files.createDirectories(target.getParent());
+        Path download = Files.createTempFile(target.getParent(), "o200k_base", ".download");
+        try (Response response = new OkHttpClient().newCall(new Request.Builder().url(url).build()).execute())
+        {
+            if (!response.isSuccessful() || response.body() == null)
+            {
+                throw new IOException("Tokenizer ranks download failed with status " + response.code());
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream body = new DigestInputStream(response.body().byteStream(), digest))
+            {
+                Files.copy(body, download, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String actualSha256 = HexFormat.of().formatHex(digest.digest());
+            if (!actualSha256.equalsIgnoreCase(expectedSha256))
+            {
+                throw new IOException("Downloaded tokenizer ranks have SHA-256 " + actualSha256 + ", expected "
+                    + expectedSha256);
+            }
+
+            BpeTokenizer downloaded;
+            try (InputStream ranks = Files.newInputStream(download))
+            {
+                downloaded = BpeTokenizer.load(ranks);
+            }
+            Files.move(download, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return downloaded;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+        finally
+        {
+            Files.deleteIfExists(download);
+        }
+    }
+
+    private TokenCounter()
+    {
+        // util ctor
+    }
+}
@@ -9,6 +9,19 @@ public final class EnvUtils
         return property == null || property.isBlank() ? fallbackValue : property;
     }
 
+    /// As {@link #getProperty}, for a whole number; unparseable values fall back to the hard-coded value
+    public static long getLongProperty(String propName, String fallbackEnvVarName, long fallbackValue)
+    {
+        try
+        {
+            return Long.parseLong(getProperty(propName, fallbackEnvVarName, String.valueOf(fallbackValue)).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return fallbackValue;
+        }
+    }
+
     private EnvUtils()
     {
         // util ctor
@@ -0,0 +1,178 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+
+/**
+ * Learns how long the user pauses mid-thought and picks the shortest end-of-turn silence window which won't cut them
+ * off. Pauses are measured from mic frames (silence between two voiced frames of the same turn); turns which the user
+ * resumes right after they were ended count as clipped and push the window back up.
+ */
+@Slf4j
+public class AdaptiveEndpointer
+{
+    public static final long MIN_SILENCE_MS = 300;
+
+    public static final long MAX_SILENCE_MS = 1500;
+
+    // Gaps shorter than this are between words, not pauses
+    private static final long MIN_PAUSE_MS = 120;
+
+    // Speech which resumes this soon after a turn ended means the turn was ended mid-thought
+    private static final long CLIP_WINDOW_MS = 1500;
+
+    private static final long CLIP_PENALTY_MS = 200;
+
+    private static final long CLEAN_TURN_RELIEF_MS = 25;
+
+    private static final long SAFETY_MARGIN_MS = 150;
+
+    private static final double PAUSE_PERCENTILE = 0.9;
+
+    private static final int MIN_PAUSE_SAMPLES = 8;
+
+    private static final int MAX_PAUSE_SAMPLES = 64;
+
+    private final long[] pauses = new long[MAX_PAUSE_SAMPLES];
+
+    private int pauseCount = 0;
+
+    private int nextPauseIndex = 0;
+
+    private long clipBiasMs = 0;
+
+    private int clippedTurns = 0;
+
+    private long silenceWindowMs;
+
+    private boolean inSpeech = false;
+
+    private long silenceStart = 0;
+
+    private long lastTurnEnd = 0;
+
+    public AdaptiveEndpointer(long initialSilenceWindowMs)
+    {
+        this.silenceWindowMs = clamp(initialSilenceWindowMs);
+    }
+
+    public synchronized long getSilenceWindowMs()
+    {
+        return silenceWindowMs;
+    }
+
+    /**
+     * Feeds one mic frame into the pause statistics
+     *
+     * @param voiced whether the frame's amplitude indicates speech
+     * @param now    capture time of the frame, in millis
+     */
+    public synchronized void onFrame(boolean voiced, long now)
+    {
+        if (voiced)
+        {
+            if (inSpeech && silenceStart > 0)
+            {
+                long pause = now - silenceStart;
+                if (pause >= MIN_PAUSE_MS && pause < silenceWindowMs)
+                {
+                    recordPause(pause);
+                }
+            }
+            inSpeech = true;
+            silenceStart = 0;
+        }
+        else if (inSpeech && silenceStart == 0)
+        {
+            silenceStart = now;
+        }
+    }
+
+    /**
+     * Records the start of speech, as seen by whichever side detects turns
+     *
+     * @param now time speech started, in millis
+     */
+    public synchronized void onSpeechStarted(long now)
+    {
+        if (lastTurnEnd > 0 && now - lastTurnEnd < CLIP_WINDOW_MS)
+        {
+            clippedTurns++;
+            clipBiasMs = Math.min(clipBiasMs + CLIP_PENALTY_MS, MAX_SILENCE_MS);
+            log.info("Turn ended {}ms before the user resumed speaking; treating it as clipped", now - lastTurnEnd);
+            if (getPausePercentileMs() == 0)
+            {
+                // Not enough pauses to learn from yet; back off from the current window instead
+                silenceWindowMs = clamp(silenceWindowMs + CLIP_PENALTY_MS);
+            }
+            else
+            {
+                recompute();
+            }
+        }
+        lastTurnEnd = 0;
+    }
+
+    /**
+     * Records the end of a turn and re-derives the silence window
+     *
+     * @param now time the turn ended, in millis
+     */
+    public synchronized void onTurnEnded(long now)
+    {
+        if (lastTurnEnd == 0)
+        {
+            clipBiasMs = Math.max(0, clipBiasMs - CLEAN_TURN_RELIEF_MS);
+        }
+        lastTurnEnd = now;
+        inSpeech = false;
+        silenceStart = 0;
+        recompute();
+    }
+
+    public synchronized int getClippedTurns()
+    {
+        return clippedTurns;
+    }
+
+    public synchronized int getPauseCount()
+    {
+        return pauseCount;
+    }
+
+    /**
+     * @return the pause length below which the chosen percentile of observed pauses fall, or 0 if too few were observed
+     */
+    public synchronized long getPausePercentileMs()
+    {
+        if (pauseCount < MIN_PAUSE_SAMPLES)
+        {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(pauses, pauseCount);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(PAUSE_PERCENTILE * pauseCount) - 1];
+    }
+
+    private void recordPause(long pause)
+    {
+        pauses[nextPauseIndex] = pause;
+        nextPauseIndex = (nextPauseIndex + 1) % MAX_PAUSE_SAMPLES;
+        pauseCount = Math.min(pauseCount + 1, MAX_PAUSE_SAMPLES);
+    }
+
+    private void recompute()
+    {
+        long percentile = getPausePercentileMs();
+        if (percentile > 0)
+        {
+            silenceWindowMs = clamp(percentile + SAFETY_MARGIN_MS + clipBiasMs);
+        }
+    }
+
+    private static long clamp(long windowMs)
+    {
+        return Math.max(MIN_SILENCE_MS, Math.min(MAX_SILENCE_MS, windowMs));
+    }
+}
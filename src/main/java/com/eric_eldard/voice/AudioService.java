@@ -212,18 +212,21 @@ public class AudioService
         }
     }
 
-    public void streamAudioData(byte[] audioData)
+    /**
+     * @return true if the data was written to the speakers, false if it was dropped (muted, or playback not running)
+     */
+    public boolean streamAudioData(byte[] audioData)
     {
         if (speakers == null)
         {
             log.error("Speakers not initialized");
-            return;
+            return false;
         }
 
         if (!playingAudio.get())
         {
             log.warn("Audio playback not started - call startAudioPlayback() first");
-            return;
+            return false;
         }
 
         synchronized (playbackLock)
@@ -240,6 +243,7 @@ public class AudioService
                     {
                         log.debug("Streamed {} bytes of audio data", audioData.length);
                     }
+                    return true;
                 }
                 else
                 {
@@ -254,6 +258,7 @@ public class AudioService
             {
                 log.error("Failed to stream audio data", e);
             }
+            return false;
         }
     }
 
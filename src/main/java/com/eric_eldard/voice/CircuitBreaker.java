@@ -0,0 +1,116 @@
+package com.eric_eldard.voice;
+
+/**
+ * One endpoint's circuit breaker. After enough consecutive failures it opens, and calls fail fast rather than each
+ * waiting out a timeout; once the open period has passed, a single probe is let through, whose outcome closes the
+ * breaker or opens it again.
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        /// Calls go through
+        CLOSED,
+        /// Calls fail fast
+        OPEN,
+        /// One probe call goes through; the rest fail fast until it's answered
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openMs;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures = 0;
+
+    private long openedAt = 0;
+
+    private boolean probeInFlight = false;
+
+    private int timesOpened = 0;
+
+    /**
+     * @param failureThreshold consecutive failures which open the breaker
+     * @param openMs           how long it stays open before letting a probe through
+     */
+    public CircuitBreaker(int failureThreshold, long openMs)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * @return true if a call may go ahead; its outcome must then be reported
+     */
+    public synchronized boolean tryAcquire(long now)
+    {
+        if (state == State.OPEN)
+        {
+            if (now - openedAt < openMs)
+            {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN)
+        {
+            if (probeInFlight)
+            {
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess()
+    {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void onFailure(long now)
+    {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)
+        {
+            if (state != State.OPEN)
+            {
+                timesOpened++;
+            }
+            state = State.OPEN;
+            openedAt = now;
+            probeInFlight = false;
+        }
+    }
+
+    /**
+     * Reports a call abandoned by its caller, which says nothing about the endpoint's health
+     */
+    public synchronized void onCancelled()
+    {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return e.g. {@code open, probing in 12s (opened 2 times)}
+     */
+    public synchronized String describe(long now)
+    {
+        String current = switch (state)
+        {
+            case CLOSED -> "closed";
+            case OPEN -> String.format("open, probing in %ds", Math.max(0, (openedAt + openMs - now + 999) / 1000));
+            case HALF_OPEN -> "half-open";
+        };
+        return timesOpened == 0 ? current : current + " (opened " + timesOpened + " times)";
+    }
+}
@@ -0,0 +1,219 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+/**
+ * Classifier results by request, so a repeated turn is answered without calling the model. The key hashes the model,
+ * the instructions and the user's turns, normalised so that casing, punctuation and spacing don't matter: the same
+ * request after different earlier requests may mean something else. The voice agent's replies aren't part of the key,
+ * as they differ from one asking to the next, and nor are earlier askings of the latest turn, so that asking again
+ * hits; instead entries expire, and turns too short to stand on their own (a "yes, do it") aren't cached at all.
+ * <p>
+ * Entries live in a size-bounded LRU map and, when a directory is given, on disk as well, so they survive a restart.
+ */
+@Slf4j
+public class ClassificationCache
+{
+    /// Fewest words in a turn whose meaning doesn't depend on the turns before it
+    static final int MIN_KEY_WORDS = 4;
+
+    private static final String SUFFIX = ".label";
+
+    private final int maxEntries;
+
+    private final long ttlMs;
+
+    // Null for memory only
+    private final DiskLruStore disk;
+
+    private final Map<String, Entry> entries;
+
+    private long hits = 0;
+
+    private long diskHits = 0;
+
+    private long misses = 0;
+
+    /**
+     * @param maxEntries most entries kept, in memory and on disk each; the least recently used are evicted first
+     * @param ttlMs      how long an entry may be served
+     * @param diskDir    where entries are also kept; null for memory only
+     */
+    public ClassificationCache(int maxEntries, long ttlMs, Path diskDir)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.disk = diskDir == null ? null : new DiskLruStore(diskDir, SUFFIX, maxEntries);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > ClassificationCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cache key for a classification of the window, or null if its latest turn can't be cached
+     */
+    public static String key(String model, String instructions, List<TranscriptMessage> window)
+    {
+        TranscriptMessage latest = window.isEmpty() ? null : window.getLast();
+        if (latest == null || !"user".equals(latest.role))
+        {
+            return null;
+        }
+        String turn = normalize(latest.content);
+        if (turn.split(" ").length < MIN_KEY_WORDS)
+        {
+            return null;
+        }
+
+        List<String> parts = new ArrayList<>(List.of(model, instructions.strip().replaceAll("\\s+", " ")));
+        for (TranscriptMessage message : window.subList(0, window.size() - 1))
+        {
+            String earlier = "user".equals(message.role) && message.content != null ? normalize(message.content) : "";
+            if (!earlier.isEmpty() && !earlier.equals(turn))
+            {
+                parts.add(earlier);
+            }
+        }
+        parts.add(turn);
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts)
+            {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    /**
+     * @return the result cached under the key, or null if there's none still fresh
+     */
+    public String get(String key, long now)
+    {
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.storedAt() <= ttlMs)
+            {
+                hits++;
+                return entry.result();
+            }
+            entries.remove(key);
+        }
+
+        Entry entry = readFromDisk(key, now);
+        synchronized (this)
+        {
+            if (entry == null)
+            {
+                misses++;
+                return null;
+            }
+            hits++;
+            diskHits++;
+            entries.put(key, entry);
+            return entry.result();
+        }
+    }
+
+    public void put(String key, String result, long now)
+    {
+        synchronized (this)
+        {
+            entries.put(key, new Entry(result, now));
+        }
+        writeToDisk(key, result, now);
+    }
+
+    /**
+     * @return e.g. {@code 3 hits (1 from disk), 20 misses, 45 entries}, for Stats
+     */
+    public synchronized String describe()
+    {
+        return String.format("%d hits (%d from disk), %d misses, %d entries", hits, diskHits, misses, entries.size());
+    }
+
+    /**
+     * Lower-cases the text and reduces everything but letters and digits to single spaces
+     */
+    static String normalize(String text)
+    {
+        return Normalizer.normalize(text, Normalizer.Form.NFKC)
+            .toLowerCase()
+            .replaceAll("[^\\p{L}\\p{N}]+", " ")
+            .strip();
+    }
+
+    private Entry readFromDisk(String key, long now)
+    {
+        if (disk == null)
+        {
+            return null;
+        }
+        try
+        {
+            DiskLruStore.Stored stored = disk.read(key);
+            if (stored == null)
+            {
+                return null;
+            }
+            if (now - stored.storedAt() > ttlMs)
+            {
+                disk.delete(key);
+                return null;
+            }
+            return new Entry(stored.content(), stored.storedAt());
+        }
+        catch (IOException e)
+        {
+            log.debug("Couldn't read cached classification {}", key, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, String result, long now)
+    {
+        if (disk == null)
+        {
+            return;
+        }
+        try
+        {
+            disk.write(key, result, now);
+        }
+        catch (IOException e)
+        {
+            log.debug("Couldn't cache classification on disk", e);
+        }
+    }
+
+    private record Entry(String result, long storedAt)
+    {
+    }
+}
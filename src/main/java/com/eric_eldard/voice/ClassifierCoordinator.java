@@ -0,0 +1,202 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+/**
+ * Serialises classifier requests so only the latest transcript's result is shown. Each submission is numbered; a burst
+ * of submissions within the debounce interval is coalesced into one request, a submission cancels the request still in
+ * flight for an older one, and a result which arrives after a newer submission is dropped.
+ */
+@Slf4j
+public class ClassifierCoordinator
+{
+    private final Classifier classifier;
+
+    private final long debounceMs;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable ->
+    {
+        Thread thread = new Thread(runnable, "classifier-coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Sequence number of the latest submission; only its result is delivered
+    private long latestSequence = 0;
+
+    private ScheduledFuture<?> pendingDispatch;
+
+    private CompletableFuture<String> inFlight;
+
+    private ClassifierStreamListener inFlightStream;
+
+    private int submitted = 0;
+
+    private int coalesced = 0;
+
+    private int cancelled = 0;
+
+    private int dropped = 0;
+
+    /**
+     * @param debounceMs how long to wait for a quieter moment before sending; submissions within it replace each other
+     */
+    public ClassifierCoordinator(Classifier classifier, long debounceMs)
+    {
+        this.classifier = classifier;
+        this.debounceMs = debounceMs;
+        this.scheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        this.scheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules classification of the transcript, superseding any earlier submission
+     *
+     * @param transcript read when the request is sent, so it includes everything said during the debounce interval
+     * @param stream     receives the streamed result while this is still the latest submission
+     * @param onComplete called with the result or failure, unless a newer submission has superseded this one
+     */
+    public synchronized void submit(Supplier<List<TranscriptMessage>> transcript, ClassifierStreamListener stream,
+                                    BiConsumer<String, Throwable> onComplete)
+    {
+        long sequence = ++latestSequence;
+        submitted++;
+
+        if (pendingDispatch != null && pendingDispatch.cancel(false))
+        {
+            coalesced++;
+        }
+        if (inFlight != null && inFlight.cancel(true))
+        {
+            cancelled++;
+            inFlightStream.onCancelled();
+            log.debug("Classifier request cancelled; superseded by #{}", sequence);
+        }
+        inFlight = null;
+
+        pendingDispatch = scheduler.schedule(() -> dispatch(sequence, transcript, stream, onComplete),
+            debounceMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(long sequence, Supplier<List<TranscriptMessage>> transcript, ClassifierStreamListener stream,
+                          BiConsumer<String, Throwable> onComplete)
+    {
+        List<TranscriptMessage> messages = transcript.get();
+        if (messages.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (sequence != latestSequence)
+            {
+                return;
+            }
+            CurrentStream current = new CurrentStream(sequence, stream);
+            inFlightStream = stream;
+            inFlight = classifier.classify(messages, current);
+            inFlight.whenComplete((result, error) -> deliver(sequence, result, error, onComplete));
+        }
+    }
+
+    private void deliver(long sequence, String result, Throwable error, BiConsumer<String, Throwable> onComplete)
+    {
+        synchronized (this)
+        {
+            if (sequence != latestSequence)
+            {
+                // A cancelled request completes too; only a result that raced its cancellation counts as dropped
+                if (error == null)
+                {
+                    dropped++;
+                    log.debug("Dropping stale classifier result #{}; latest is #{}", sequence, latestSequence);
+                }
+                return;
+            }
+            inFlight = null;
+        }
+        onComplete.accept(result, error);
+    }
+
+    private synchronized boolean isLatest(long sequence)
+    {
+        return sequence == latestSequence;
+    }
+
+    /**
+     * @return one-line summary of how many submissions were coalesced, cancelled or dropped
+     */
+    public synchronized String describe()
+    {
+        return String.format("%d submitted, %d coalesced, %d cancelled in flight, %d stale results dropped",
+            submitted, coalesced, cancelled, dropped);
+    }
+
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            if (inFlight != null)
+            {
+                inFlight.cancel(true);
+            }
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Sends a classifier request, such as {@link OpenAIResponsesService#analyzeForCodeRequest(List,
+     * ClassifierStreamListener)}; cancelling the returned future should abandon the request
+     */
+    @FunctionalInterface
+    public interface Classifier
+    {
+        CompletableFuture<String> classify(List<TranscriptMessage> messages, ClassifierStreamListener stream);
+    }
+
+    /**
+     * Passes the stream on only while its submission is the latest
+     */
+    private class CurrentStream implements ClassifierStreamListener
+    {
+        private final long sequence;
+
+        private final ClassifierStreamListener stream;
+
+        private CurrentStream(long sequence, ClassifierStreamListener stream)
+        {
+            this.sequence = sequence;
+            this.stream = stream;
+        }
+
+        @Override
+        public void onLabel(String label)
+        {
+            if (isLatest(sequence))
+            {
+                stream.onLabel(label);
+            }
+        }
+
+        @Override
+        public void onContent(String delta)
+        {
+            if (isLatest(sequence))
+            {
+                stream.onContent(delta);
+            }
+        }
+    }
+}
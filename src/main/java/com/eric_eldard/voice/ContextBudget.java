@@ -0,0 +1,205 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.eric_eldard.metrics.LatencyHistogram;
+import com.eric_eldard.tokenizer.TokenCounter;
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+/**
+ * Fits the classifier's transcript window to a token budget, rather than a message count: ten turns can be a few
+ * hundred tokens or, with pasted code and image analyses, tens of thousands. Assistant code blocks are always cut to a
+ * preview; if the window is still over budget, the latest turns are kept verbatim and the older ones condensed to a
+ * line each. The budget itself follows the classifier's time to first token, which grows with the input: it shrinks
+ * while that p95 is over target and grows back while well under.
+ * <p>
+ * Every step is a pure function of the messages, so a window within budget is sent as it is and keeps its cached
+ * prefix from one request to the next.
+ */
+@Slf4j
+class ContextBudget
+{
+    static final int MIN_BUDGET_TOKENS = 500;
+
+    static final int MAX_BUDGET_TOKENS = 16_000;
+
+    static final int INITIAL_BUDGET_TOKENS = 4000;
+
+    /// Tokens of an assistant code block kept as a preview; the label depends on what was asked, not on the code
+    static final int MAX_CODE_BLOCK_TOKENS = 200;
+
+    /// Tokens each condensed older turn is cut to
+    static final int SUMMARY_LINE_TOKENS = 40;
+
+    // Classifier calls between budget adjustments
+    private static final int ADJUST_EVERY = 8;
+
+    // The budget grows back only while p95 is under this share of the target
+    private static final double GROW_BELOW = 0.6;
+
+    private static final Pattern CODE_BLOCK = Pattern.compile("(```[^\\n]*\\n)(.*?)(```)", Pattern.DOTALL);
+
+    private static final String SUMMARY_HEADER = "Earlier in the conversation (condensed):";
+
+    private final long targetP95Ms;
+
+    // Time to first token for the calls since the last adjustment
+    private final LatencyHistogram timeToFirstToken = new LatencyHistogram();
+
+    private volatile int budgetTokens = INITIAL_BUDGET_TOKENS;
+
+    /**
+     * @param targetP95Ms the classifier's p95 time to first token which the budget is sized for
+     */
+    ContextBudget(long targetP95Ms)
+    {
+        this.targetP95Ms = targetP95Ms;
+    }
+
+    /**
+     * @param window transcript messages, oldest first
+     * @return the window with its transcript tokens within the current budget, oldest first; the latest message is
+     * always kept, if need be cut to the budget on its own
+     */
+    List<TranscriptMessage> fit(List<TranscriptMessage> window)
+    {
+        int budget = budgetTokens;
+
+        List<TranscriptMessage> trimmed = new ArrayList<>(window.size());
+        int total = 0;
+        for (TranscriptMessage message : window)
+        {
+            TranscriptMessage fitted = "assistant".equals(message.role)
+                ? new TranscriptMessage(message.role, truncateCodeBlocks(message.content))
+                : message;
+            trimmed.add(fitted);
+            total += TokenCounter.count(fitted.content);
+        }
+        if (total <= budget || trimmed.isEmpty())
+        {
+            return trimmed;
+        }
+
+        // Newest first, while each fits verbatim
+        Deque<TranscriptMessage> verbatim = new ArrayDeque<>();
+        int used = 0;
+        int next = trimmed.size() - 1;
+        for (; next >= 0; next--)
+        {
+            int tokens = TokenCounter.count(trimmed.get(next).content);
+            if (used + tokens > budget)
+            {
+                break;
+            }
+            verbatim.addFirst(trimmed.get(next));
+            used += tokens;
+        }
+        if (verbatim.isEmpty())
+        {
+            TranscriptMessage latest = trimmed.getLast();
+            verbatim.add(new TranscriptMessage(latest.role, TokenCounter.truncate(latest.content, budget)));
+            used = budget;
+            next--;
+        }
+
+        // Then the older turns, condensed, newest first so the oldest are the ones dropped
+        Deque<String> lines = new ArrayDeque<>();
+        used += TokenCounter.count(SUMMARY_HEADER);
+        for (; next >= 0; next--)
+        {
+            String line = condense(trimmed.get(next));
+            int tokens = TokenCounter.count(line);
+            if (used + tokens > budget)
+            {
+                break;
+            }
+            lines.addFirst(line);
+            used += tokens;
+        }
+
+        List<TranscriptMessage> fitted = new ArrayList<>(verbatim.size() + 1);
+        if (!lines.isEmpty())
+        {
+            fitted.add(new TranscriptMessage("system", SUMMARY_HEADER + "\n" + String.join("\n", lines)));
+        }
+        fitted.addAll(verbatim);
+        log.debug("Classifier context over budget ({} of {} tokens); {} turns verbatim, {} condensed, {} dropped",
+            total, budget, verbatim.size(), lines.size(), next + 1);
+        return fitted;
+    }
+
+    /**
+     * Records a classifier call's time to first token, adjusting the budget every few calls
+     */
+    synchronized void recordTimeToFirstToken(long nanos)
+    {
+        timeToFirstToken.recordNanos(nanos);
+        if (timeToFirstToken.getCount() < ADJUST_EVERY)
+        {
+            return;
+        }
+
+        double p95 = timeToFirstToken.getPercentileMs(95);
+        int budget = budgetTokens;
+        if (p95 > targetP95Ms)
+        {
+            budgetTokens = Math.max(MIN_BUDGET_TOKENS, budget * 3 / 4);
+        }
+        else if (p95 < targetP95Ms * GROW_BELOW)
+        {
+            budgetTokens = Math.min(MAX_BUDGET_TOKENS, budget * 5 / 4);
+        }
+        if (budgetTokens != budget)
+        {
+            log.info("Classifier p95 time to first token {}ms, target {}ms; context budget {} -> {} tokens",
+                Math.round(p95), targetP95Ms, budget, budgetTokens);
+        }
+        // The next decision should reflect the new budget only
+        timeToFirstToken.reset();
+    }
+
+    int getBudgetTokens()
+    {
+        return budgetTokens;
+    }
+
+    /**
+     * @return e.g. {@code budget 4000 tokens, p95 time to first token target 1500ms}
+     */
+    String describe()
+    {
+        return String.format("budget %d tokens, p95 time to first token target %dms", budgetTokens, targetP95Ms);
+    }
+
+    private static String truncateCodeBlocks(String content)
+    {
+        Matcher matcher = CODE_BLOCK.matcher(content);
+        StringBuilder result = new StringBuilder();
+        while (matcher.find())
+        {
+            String code = matcher.group(2);
+            int tokens = TokenCounter.count(code);
+            String replacement = tokens <= MAX_CODE_BLOCK_TOKENS
+                ? matcher.group()
+                : matcher.group(1) + TokenCounter.truncate(code, MAX_CODE_BLOCK_TOKENS).stripTrailing()
+                    + "\n// … " + (tokens - MAX_CODE_BLOCK_TOKENS) + " more tokens elided\n" + matcher.group(3);
+            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private static String condense(TranscriptMessage message)
+    {
+        String text = message.content.strip().replaceAll("\\s+", " ");
+        String cut = TokenCounter.truncate(text, SUMMARY_LINE_TOKENS);
+        return "- " + message.role + ": " + (cut.length() < text.length() ? cut.stripTrailing() + " …" : cut);
+    }
+}
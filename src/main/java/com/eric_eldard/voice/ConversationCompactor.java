@@ -0,0 +1,138 @@
+package com.eric_eldard.voice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side model of the Realtime conversation, which decides when to fold older turns into a summary. The server
+ * re-reads the whole conversation for every response, so without compaction each turn of a long session gets slower and
+ * more expensive. Compaction is due once a response's input tokens pass the threshold; everything but the most recent
+ * items is then handed out to be summarised, and no further compaction starts until that one has ended.
+ */
+public class ConversationCompactor
+{
+    // Stale items worth a summary request; fewer than this and the context is mostly instructions, not conversation
+    static final int MIN_ITEMS_TO_COMPACT = 4;
+
+    private static final String UNTRANSCRIBED = "[untranscribed audio]";
+
+    private final long thresholdTokens;
+
+    private final int keepRecentItems;
+
+    // Insertion ordered, matching the order the server created the items in
+    private final Map<String, Item> items = new LinkedHashMap<>();
+
+    private boolean compacting = false;
+
+    private int compactions = 0;
+
+    /**
+     * @param thresholdTokens input tokens per response above which older turns are summarised
+     * @param keepRecentItems items left as they are when compacting, so the latest exchanges keep their full detail
+     */
+    public ConversationCompactor(long thresholdTokens, int keepRecentItems)
+    {
+        this.thresholdTokens = thresholdTokens;
+        this.keepRecentItems = keepRecentItems;
+    }
+
+    /**
+     * @param item the {@code item} of a {@code conversation.item.created} event
+     */
+    public synchronized void onItemCreated(JsonNode item)
+    {
+        if (!"message".equals(item.path("type").asText()))
+        {
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (JsonNode part : item.path("content"))
+        {
+            String partText = part.has("text") ? part.get("text").asText() : part.path("transcript").asText(null);
+            if (partText != null && !partText.isBlank())
+            {
+                text.append(text.isEmpty() ? "" : "\n").append(partText);
+            }
+        }
+        String id = item.path("id").asText();
+        items.put(id, new Item(id, item.path("role").asText(), text.isEmpty() ? null : text.toString()));
+    }
+
+    /**
+     * Fills in an item's text once its transcript is complete
+     */
+    public synchronized void onItemText(String id, String text)
+    {
+        items.computeIfPresent(id, (key, item) -> new Item(item.id(), item.role(), text));
+    }
+
+    public synchronized void onItemDeleted(String id)
+    {
+        items.remove(id);
+    }
+
+    /**
+     * @param contextTokens input tokens of the latest response, i.e. the current size of the conversation plus
+     *                      instructions
+     * @return the items to summarise and delete, oldest first; empty if compaction isn't due or is already running
+     */
+    public synchronized List<Item> beginCompaction(long contextTokens)
+    {
+        int staleCount = items.size() - keepRecentItems;
+        if (compacting || contextTokens < thresholdTokens || staleCount < MIN_ITEMS_TO_COMPACT)
+        {
+            return List.of();
+        }
+
+        compacting = true;
+        return new ArrayList<>(items.values()).subList(0, staleCount);
+    }
+
+    /**
+     * Records the summary which replaced the compacted items, and allows the next compaction
+     */
+    public synchronized void endCompaction(List<Item> compacted, Item summary)
+    {
+        compacted.forEach(item -> items.remove(item.id()));
+        if (summary != null)
+        {
+            // The summary sits at the start of the conversation; put it there in the model too
+            Map<String, Item> reordered = new LinkedHashMap<>();
+            reordered.put(summary.id(), summary);
+            reordered.putAll(items);
+            items.clear();
+            items.putAll(reordered);
+            compactions++;
+        }
+        compacting = false;
+    }
+
+    public synchronized int getItemCount()
+    {
+        return items.size();
+    }
+
+    public synchronized int getCompactions()
+    {
+        return compactions;
+    }
+
+    /**
+     * A message in the conversation
+     *
+     * @param text transcript or text content; null while an audio item awaits its transcript
+     */
+    public record Item(String id, String role, String text)
+    {
+        public String textOrPlaceholder()
+        {
+            return text != null ? text : UNTRANSCRIBED;
+        }
+    }
+}
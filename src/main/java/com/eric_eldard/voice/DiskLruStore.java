@@ -0,0 +1,133 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Text entries kept as one file each in a directory, bounded in number. A file's modification time is its entry's
+ * timestamp: set when it's written, and by {@link #touch} for callers which count reads as use. Beyond the bound, the
+ * entries with the oldest timestamps are deleted.
+ */
+@Slf4j
+class DiskLruStore
+{
+    private final Path dir;
+
+    private final String suffix;
+
+    private final int maxEntries;
+
+    /**
+     * An entry's content, and the timestamp it was last written or touched at
+     */
+    record Stored(String content, long storedAt)
+    {
+    }
+
+    /**
+     * @param dir        where entries are kept; created if need be
+     * @param suffix     file name suffix of its entries, so other files in the directory are left alone
+     * @param maxEntries most entries kept
+     */
+    DiskLruStore(Path dir, String suffix, int maxEntries)
+    {
+        this.dir = dir;
+        this.suffix = suffix;
+        this.maxEntries = maxEntries;
+        try
+        {
+            Files.createDirectories(dir);
+        }
+        catch (IOException e)
+        {
+            log.warn("Cache directory unavailable: {}", dir, e);
+        }
+    }
+
+    /**
+     * @return the entry stored under the key, or null if there's none
+     */
+    Stored read(String key) throws IOException
+    {
+        Path file = file(key);
+        if (!Files.isRegularFile(file))
+        {
+            return null;
+        }
+        long storedAt = Files.getLastModifiedTime(file).toMillis();
+        return new Stored(Files.readString(file), storedAt);
+    }
+
+    /**
+     * Stores the entry with the given timestamp, then evicts beyond the bound
+     */
+    void write(String key, String content, long now) throws IOException
+    {
+        // Written aside and moved into place, so a reader never sees half an entry
+        Path temp = Files.createTempFile(dir, key, ".tmp");
+        Files.writeString(temp, content);
+        Files.setLastModifiedTime(temp, FileTime.fromMillis(now));
+        Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    /**
+     * Moves the entry's timestamp to now, so it's evicted after those used less recently
+     */
+    void touch(String key, long now) throws IOException
+    {
+        Files.setLastModifiedTime(file(key), FileTime.fromMillis(now));
+    }
+
+    void delete(String key) throws IOException
+    {
+        Files.deleteIfExists(file(key));
+    }
+
+    /**
+     * Deletes the entries with the oldest timestamps beyond the size bound
+     */
+    private void evict() throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir))
+        {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(suffix)).toList();
+        }
+        if (files.size() <= maxEntries)
+        {
+            return;
+        }
+        List<Path> oldestFirst = files.stream()
+            .sorted((a, b) -> Long.compare(lastModified(a), lastModified(b)))
+            .toList();
+        for (Path file : oldestFirst.subList(0, files.size() - maxEntries))
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path file(String key)
+    {
+        return dir.resolve(key + suffix);
+    }
+
+    private static long lastModified(Path file)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+}
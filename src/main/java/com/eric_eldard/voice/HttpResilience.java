@@ -0,0 +1,272 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Retries and circuit breaking for the OpenAI HTTPS endpoints, shared by the services which call them. Transient
+ * failures (connection errors, 429 and 5xx) are retried with jittered exponential backoff, or after the server's
+ * {@code Retry-After}, while the retry budget lasts. Each endpoint has its own {@link CircuitBreaker}, which counts a
+ * request as one failure only once its retries have run out; while it's open, calls fail fast with
+ * {@link CircuitOpenException}.
+ */
+@Slf4j
+public class HttpResilience
+{
+    static final int MAX_ATTEMPTS = 3;
+
+    static final long BASE_BACKOFF_MS = 250;
+
+    static final long MAX_BACKOFF_MS = 4000;
+
+    /// A {@code Retry-After} longer than this isn't waited out; the failed response is returned instead
+    static final long MAX_RETRY_AFTER_MS = 10_000;
+
+    static final int FAILURE_THRESHOLD = 5;
+
+    static final long OPEN_MS = 30_000;
+
+    // Each request earns this fraction of a retry, so retries stay a bounded share of traffic during an outage
+    private static final double RETRY_TOKENS_PER_REQUEST = 0.2;
+
+    private static final double MAX_RETRY_TOKENS = 10;
+
+    private final long baseBackoffMs;
+
+    private final int failureThreshold;
+
+    private final long openMs;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private double retryTokens = MAX_RETRY_TOKENS;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong fastFails = new AtomicLong();
+
+    public HttpResilience()
+    {
+        this(BASE_BACKOFF_MS, FAILURE_THRESHOLD, OPEN_MS);
+    }
+
+    HttpResilience(long baseBackoffMs, int failureThreshold, long openMs)
+    {
+        this.baseBackoffMs = baseBackoffMs;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    public Response execute(OkHttpClient client, Request request) throws IOException
+    {
+        return execute(client, request, call -> {});
+    }
+
+    /**
+     * Executes the request, retrying transient failures. A response is returned once its headers arrive, so a body
+     * which fails part way through isn't retried.
+     *
+     * @param onCall given each call as it's made, so the caller can cancel it; a cancelled call isn't retried
+     * @return the first response which isn't a transient failure, or the last one when retries run out
+     * @throws CircuitOpenException if the endpoint's breaker is open
+     */
+    public Response execute(OkHttpClient client, Request request, Consumer<Call> onCall) throws IOException
+    {
+        String endpoint = endpoint(request.url());
+        CircuitBreaker breaker = breakers.computeIfAbsent(endpoint, key -> new CircuitBreaker(failureThreshold, openMs));
+        earnRetryToken();
+        // One acquisition covers the retries too, so a half-open breaker's probe is the whole request
+        if (!breaker.tryAcquire(System.currentTimeMillis()))
+        {
+            fastFails.incrementAndGet();
+            throw new CircuitOpenException(endpoint);
+        }
+
+        for (int attempt = 1; ; attempt++)
+        {
+            Call call = client.newCall(request);
+            onCall.accept(call);
+            Response response;
+            try
+            {
+                response = call.execute();
+            }
+            catch (IOException e)
+            {
+                if (call.isCanceled())
+                {
+                    breaker.onCancelled();
+                    throw e;
+                }
+                if (!mayRetry(attempt))
+                {
+                    breaker.onFailure(System.currentTimeMillis());
+                    throw e;
+                }
+                long delayMs = backoffMs(attempt);
+                log.warn("{} failed ({}); retrying in {}ms", endpoint, e.getMessage(), delayMs);
+                sleep(delayMs, breaker);
+                continue;
+            }
+
+            if (!isTransient(response.code()))
+            {
+                // Other client errors are the request's fault, not the endpoint's
+                breaker.onSuccess();
+                return response;
+            }
+            long retryAfterMs = retryAfterMs(response);
+            long delayMs = retryAfterMs >= 0 ? retryAfterMs : backoffMs(attempt);
+            if (delayMs > MAX_RETRY_AFTER_MS || !mayRetry(attempt))
+            {
+                breaker.onFailure(System.currentTimeMillis());
+                return response;
+            }
+            log.warn("{} returned {}; retrying in {}ms", endpoint, response.code(), delayMs);
+            response.close();
+            sleep(delayMs, breaker);
+        }
+    }
+
+    /**
+     * @return each endpoint's breaker state, then retry and fast-fail counts, for diagnostics
+     */
+    public String describe()
+    {
+        long now = System.currentTimeMillis();
+        StringBuilder description = new StringBuilder();
+        new TreeMap<>(breakers).forEach((endpoint, breaker) ->
+            description.append(endpoint).append(' ').append(breaker.describe(now)).append("; "));
+        return description.append(String.format("%d retries, %d fast fails", retries.get(), fastFails.get()))
+            .toString();
+    }
+
+    /**
+     * @return the breaker for an endpoint, or null if it hasn't been called
+     */
+    CircuitBreaker getBreaker(HttpUrl url)
+    {
+        return breakers.get(endpoint(url));
+    }
+
+    static boolean isTransient(int code)
+    {
+        return code == 429 || code >= 500;
+    }
+
+    /**
+     * @return the delay the response asks for, from OpenAI's {@code retry-after-ms} or the standard
+     * {@code Retry-After} in seconds or as a date; -1 if it asks for none
+     */
+    static long retryAfterMs(Response response)
+    {
+        String millis = response.header("retry-after-ms");
+        String value = response.header("Retry-After");
+        try
+        {
+            if (millis != null)
+            {
+                return Math.max(0, Math.round(Double.parseDouble(millis.trim())));
+            }
+            if (value != null)
+            {
+                return Math.max(0, Math.round(Double.parseDouble(value.trim()) * 1000));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            try
+            {
+                ZonedDateTime at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+            }
+            catch (RuntimeException notADate)
+            {
+                // Unparseable; fall back to backoff
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return exponential backoff with equal jitter: between half and all of the attempt's ceiling
+     */
+    private long backoffMs(int attempt)
+    {
+        long ceiling = Math.min(MAX_BACKOFF_MS, baseBackoffMs << (attempt - 1));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private boolean mayRetry(int attempt)
+    {
+        if (attempt >= MAX_ATTEMPTS)
+        {
+            return false;
+        }
+        synchronized (this)
+        {
+            if (retryTokens < 1)
+            {
+                log.debug("Retry budget spent");
+                return false;
+            }
+            retryTokens--;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private synchronized void earnRetryToken()
+    {
+        retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + RETRY_TOKENS_PER_REQUEST);
+    }
+
+    private static void sleep(long delayMs, CircuitBreaker breaker) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep(delayMs);
+        }
+        catch (InterruptedException e)
+        {
+            breaker.onCancelled();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+
+    private static String endpoint(HttpUrl url)
+    {
+        return url.host() + url.encodedPath();
+    }
+
+    /**
+     * Thrown instead of calling an endpoint whose breaker is open
+     */
+    public static class CircuitOpenException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String endpoint)
+        {
+            super("Circuit open for " + endpoint + "; failing fast");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image analyses on disk, keyed by the images' contents, so an image uploaded again, in this session or a later one,
+ * is answered without calling the model. The key hashes the model and prompt along with the image bytes, so renaming
+ * a file doesn't matter but changing a pixel does. Each read refreshes an entry's timestamp, and beyond the size bound
+ * the least recently used entries are deleted.
+ */
+@Slf4j
+public class ImageAnalysisCache
+{
+    private static final String SUFFIX = ".analysis";
+
+    private final DiskLruStore store;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries most analyses kept
+     * @param dir        where they're kept; created if need be
+     */
+    public ImageAnalysisCache(int maxEntries, Path dir)
+    {
+        this.store = new DiskLruStore(dir, SUFFIX, maxEntries);
+    }
+
+    /**
+     * @return the cache key for analysing the images, in order, with the prompt
+     */
+    public static String key(String model, String prompt, List<File> images) throws IOException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : List.of(model, prompt))
+            {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            for (File image : images)
+            {
+                // Each image's own hash, so one image's bytes can't run on into the next's
+                MessageDigest imageDigest = MessageDigest.getInstance("SHA-256");
+                try (InputStream in = Files.newInputStream(image.toPath()))
+                {
+                    for (int read; (read = in.read(buffer)) > 0; )
+                    {
+                        imageDigest.update(buffer, 0, read);
+                    }
+                }
+                digest.update(imageDigest.digest());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    /**
+     * @return the analysis cached under the key, or null if there's none
+     */
+    public String get(String key)
+    {
+        try
+        {
+            DiskLruStore.Stored stored = store.read(key);
+            if (stored != null)
+            {
+                store.touch(key, System.currentTimeMillis());
+                log.debug("Image analysis cache hit {} ({} hits, {} misses)", key, hits.incrementAndGet(),
+                    misses.get());
+                return stored.content();
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Couldn't read cached image analysis {}", key, e);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, String analysis)
+    {
+        try
+        {
+            store.write(key, analysis, System.currentTimeMillis());
+        }
+        catch (IOException e)
+        {
+            log.debug("Couldn't cache image analysis", e);
+        }
+    }
+
+    /**
+     * @return e.g. {@code 3 hits, 12 misses}, for Stats
+     */
+    public String describe()
+    {
+        return String.format("%d hits, %d misses", hits.get(), misses.get());
+    }
+}
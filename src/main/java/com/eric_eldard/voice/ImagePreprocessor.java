@@ -0,0 +1,257 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Shrinks images before they're uploaded for analysis. The vision models scale every image to fit 2048px square and
+ * then to 768px on its short side before looking at it, so anything larger is upload time spent on pixels the model
+ * never sees. Images are downscaled to that size and re-encoded as JPEG, on a pool of their own as the work is CPU
+ * bound. Formats the JDK can't decode or which may be animated (GIF, WebP), and images the re-encoding wouldn't
+ * shrink, are sent as they are.
+ */
+@Slf4j
+public class ImagePreprocessor
+{
+    /// Longest side the model looks at
+    static final int MAX_LONG_SIDE = 2048;
+
+    /// Shortest side the model looks at, after fitting the long side
+    static final int MAX_SHORT_SIDE = 768;
+
+    private final float jpegQuality;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong images = new AtomicLong();
+
+    private final AtomicLong originalBytes = new AtomicLong();
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private final AtomicLong processingNanos = new AtomicLong();
+
+    /**
+     * @param jpegQuality between 0 and 1
+     */
+    public ImagePreprocessor(float jpegQuality)
+    {
+        this.jpegQuality = jpegQuality;
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable ->
+            {
+                Thread thread = new Thread(runnable, "image-preprocessor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The bytes to upload for an image, and their MIME type
+     */
+    public record PreparedImage(byte[] bytes, String mimeType)
+    {
+    }
+
+    /**
+     * @return the image, prepared on the preprocessing pool
+     */
+    public CompletableFuture<PreparedImage> prepare(File imageFile)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                return prepareNow(imageFile);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    PreparedImage prepareNow(File imageFile) throws IOException
+    {
+        long start = System.nanoTime();
+        byte[] original = Files.readAllBytes(imageFile.toPath());
+        PreparedImage prepared = shrink(imageFile.getName(), original);
+
+        images.incrementAndGet();
+        originalBytes.addAndGet(original.length);
+        sentBytes.addAndGet(prepared.bytes().length);
+        processingNanos.addAndGet(System.nanoTime() - start);
+        if (prepared.bytes() != original)
+        {
+            log.debug("Prepared {}: {} -> {} bytes in {}ms", imageFile.getName(), original.length,
+                prepared.bytes().length, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return prepared;
+    }
+
+    /**
+     * @param uploadBytesPerSecond the observed upload throughput, to estimate the upload time saved; 0 if unknown
+     * @return e.g. {@code 5 images, 18432 KB -> 1103 KB (94% saved), ~6.1s upload saved, 340ms preprocessing}
+     */
+    public String describe(double uploadBytesPerSecond)
+    {
+        long original = originalBytes.get();
+        long sent = sentBytes.get();
+        // The saving is in base64, which is a third larger
+        String timeSaved = uploadBytesPerSecond > 0
+            ? String.format("~%.1fs", (original - sent) * 4 / 3.0 / uploadBytesPerSecond)
+            : "unknown";
+        long percentSaved = original == 0 ? 0 : Math.round(100.0 * (original - sent) / original);
+        return String.format("%d images, %d KB -> %d KB (%d%% saved), %s upload saved, %dms preprocessing",
+            images.get(), original / 1024, sent / 1024, percentSaved, timeSaved,
+            TimeUnit.NANOSECONDS.toMillis(processingNanos.get()));
+    }
+
+    /**
+     * @return the size the model would scale an image of the given size to; never larger than the image
+     */
+    static Dimension targetSize(int width, int height)
+    {
+        double scale = Math.min(1, (double) MAX_LONG_SIDE / Math.max(width, height));
+        scale *= Math.min(1, MAX_SHORT_SIDE / (Math.min(width, height) * scale));
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)),
+            Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    private PreparedImage shrink(String fileName, byte[] original) throws IOException
+    {
+        String mimeType = mimeType(fileName);
+        PreparedImage unchanged = new PreparedImage(original, mimeType);
+        if (mimeType.equals("image/gif") || mimeType.equals("image/webp"))
+        {
+            return unchanged;
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if (image == null)
+        {
+            return unchanged; // No reader for it
+        }
+        Dimension target = targetSize(image.getWidth(), image.getHeight());
+        boolean resized = target.width < image.getWidth();
+        byte[] jpeg = encodeJpeg(resized ? scale(image, target) : flatten(image));
+        // A small image may already be compressed better than this, and there's nothing to gain by resizing it
+        return resized || jpeg.length < original.length ? new PreparedImage(jpeg, "image/jpeg") : unchanged;
+    }
+
+    /**
+     * Scales down in halving steps before the final resize, as a single bilinear pass over a large reduction skips
+     * most of the source pixels and aliases fine detail such as text
+     */
+    private static BufferedImage scale(BufferedImage image, Dimension target)
+    {
+        BufferedImage current = flatten(image);
+        int width = current.getWidth();
+        int height = current.getHeight();
+        while (width / 2 >= target.width && height / 2 >= target.height)
+        {
+            width /= 2;
+            height /= 2;
+            current = draw(current, width, height);
+        }
+        return width == target.width && height == target.height ? current : draw(current, target.width, target.height);
+    }
+
+    /**
+     * @return the image as opaque RGB, transparency flattened onto white, as JPEG has no alpha channel
+     */
+    private static BufferedImage flatten(BufferedImage image)
+    {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB)
+        {
+            return image;
+        }
+        return draw(image, image.getWidth(), image.getHeight());
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height)
+    {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try
+        {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException
+    {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(bytes))
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the MIME type for the file's extension; JPEG if it's not one of the others
+     */
+    static String mimeType(String fileName)
+    {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".png"))
+        {
+            return "image/png";
+        }
+        else if (name.endsWith(".gif"))
+        {
+            return "image/gif";
+        }
+        else if (name.endsWith(".bmp"))
+        {
+            return "image/bmp";
+        }
+        else if (name.endsWith(".webp"))
+        {
+            return "image/webp";
+        }
+        return "image/jpeg";
+    }
+}
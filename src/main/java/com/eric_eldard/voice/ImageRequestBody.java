@@ -0,0 +1,120 @@
+package com.eric_eldard.voice;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import com.eric_eldard.voice.ImagePreprocessor.PreparedImage;
+
+/**
+ * A JSON request body carrying images as {@code data:} URLs, which base64-encodes each image as it's written to the
+ * socket. The JSON around the images is built as usual, with a {@link #placeholders placeholder} where each URL goes,
+ * so the encoded images are never held on the heap, neither as strings nor in the serialised JSON. The body can be
+ * written more than once, as a retry needs.
+ */
+public class ImageRequestBody extends RequestBody
+{
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Bytes of image encoded per write; a multiple of 3, so no chunk but the last is padded
+    private static final int CHUNK_BYTES = 3 * 8192;
+
+    // The JSON between the images, one more than there are images
+    private final List<byte[]> segments;
+
+    private final List<PreparedImage> images;
+
+    private final long contentLength;
+
+    /**
+     * @param envelope     the request's JSON, with the given placeholders as the images' URLs
+     * @param placeholders from {@link #placeholders}, in the order they appear in the envelope
+     * @param images       the image for each placeholder
+     */
+    public ImageRequestBody(String envelope, List<String> placeholders, List<PreparedImage> images)
+    {
+        if (placeholders.size() != images.size())
+        {
+            throw new IllegalArgumentException(placeholders.size() + " placeholders for " + images.size() + " images");
+        }
+        this.images = List.copyOf(images);
+        this.segments = new ArrayList<>(placeholders.size() + 1);
+        int from = 0;
+        for (String placeholder : placeholders)
+        {
+            int at = envelope.indexOf(placeholder, from);
+            if (at < 0)
+            {
+                throw new IllegalArgumentException("Placeholder missing from the request: " + placeholder);
+            }
+            segments.add(envelope.substring(from, at).getBytes(StandardCharsets.UTF_8));
+            from = at + placeholder.length();
+        }
+        segments.add(envelope.substring(from).getBytes(StandardCharsets.UTF_8));
+
+        long length = 0;
+        for (byte[] segment : segments)
+        {
+            length += segment.length;
+        }
+        for (PreparedImage image : this.images)
+        {
+            length += urlPrefix(image).length + 4L * ((image.bytes().length + 2) / 3);
+        }
+        this.contentLength = length;
+    }
+
+    /**
+     * @return a placeholder for each of {@code count} images, unlike anything else in a request
+     */
+    public static List<String> placeholders(int count)
+    {
+        String nonce = UUID.randomUUID().toString();
+        return IntStream.range(0, count).mapToObj(index -> "image-" + nonce + "-" + index).toList();
+    }
+
+    @Override
+    public MediaType contentType()
+    {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength()
+    {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException
+    {
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (int i = 0; i < images.size(); i++)
+        {
+            sink.write(segments.get(i));
+            PreparedImage image = images.get(i);
+            sink.write(urlPrefix(image));
+            byte[] bytes = image.bytes();
+            for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES)
+            {
+                int length = Math.min(CHUNK_BYTES, bytes.length - offset);
+                sink.write(encoder.encode(ByteBuffer.wrap(bytes, offset, length)));
+            }
+        }
+        sink.write(segments.getLast());
+    }
+
+    private static byte[] urlPrefix(PreparedImage image)
+    {
+        return ("data:" + image.mimeType() + ";base64,").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_CODE_REQUEST;
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_PROMPT_REQUEST;
+
+import java.util.List;
+
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+
+/**
+ * Accumulates a classifier response as it streams, from whichever API. The label is recognised from the first tokens;
+ * after a code or prompt label, content is passed on to the listener as it arrives.
+ */
+class LabelledStream
+{
+    // A response which doesn't start with any label
+    private static final String UNLABELED = "";
+
+    private final ClassifierStreamListener listener;
+
+    private final StringBuilder text = new StringBuilder();
+
+    // Null until the text is long enough to tell
+    private String label;
+
+    private int streamedTo = 0;
+
+    private boolean contentStarted = false;
+
+    /**
+     * @param listener receives the label and content as they stream; may be null
+     */
+    LabelledStream(ClassifierStreamListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * @return false once the response is known to be non-generative, as nothing after that label matters
+     */
+    boolean append(String delta)
+    {
+        text.append(delta);
+
+        if (label == null)
+        {
+            label = detectLabel(text);
+            if (label == null)
+            {
+                return true; // Could still become a label
+            }
+            if (LABEL_NON_GENERATIVE_REQUEST.equals(label))
+            {
+                return false;
+            }
+            streamedTo = text.indexOf(label) + label.length();
+            if (listener != null && !UNLABELED.equals(label))
+            {
+                listener.onLabel(label);
+            }
+        }
+
+        if (listener != null && !UNLABELED.equals(label))
+        {
+            // Content starts at its first non-blank character, as the label's trailing whitespace is dropped
+            while (!contentStarted && streamedTo < text.length() && Character.isWhitespace(text.charAt(streamedTo)))
+            {
+                streamedTo++;
+            }
+            if (streamedTo < text.length())
+            {
+                listener.onContent(text.substring(streamedTo));
+                streamedTo = text.length();
+                contentStarted = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the text so far, label included
+     */
+    String getText()
+    {
+        return text.toString();
+    }
+
+    /**
+     * @return the label the text starts with, {@link #UNLABELED} if it can't start with one, or null if it's too
+     * short to tell
+     */
+    private static String detectLabel(CharSequence text)
+    {
+        String start = text.toString().stripLeading();
+        for (String label : List.of(LABEL_CODE_REQUEST, LABEL_PROMPT_REQUEST, LABEL_NON_GENERATIVE_REQUEST))
+        {
+            if (start.startsWith(label))
+            {
+                return label;
+            }
+            if (label.startsWith(start))
+            {
+                return null;
+            }
+        }
+        return UNLABELED;
+    }
+}
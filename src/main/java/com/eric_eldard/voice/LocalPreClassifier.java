@@ -0,0 +1,154 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+/**
+ * Answers clearly non-generative turns locally, so most small talk and conceptual questions never reach the chat model.
+ * The latest user message is scored on keyword, bigram and trigram cues modelled on the classifier instructions' examples: it's
+ * only answered locally when it has a conversational cue (a question, thanks, a greeting) and no cue that it might want
+ * code, a prompt, or more of what came before. Everything else goes to the delegate, and every so often a local answer
+ * is checked against it too, to measure how often the two disagree.
+ */
+@Slf4j
+public class LocalPreClassifier implements ClassifierCoordinator.Classifier
+{
+    private static final Set<String> GENERATIVE_CUES = Set.of(
+        // Asking for code or a prompt, as in the classifier's examples
+        "write", "implement", "create", "generate", "build", "develop", "make", "add", "fix", "refactor", "rewrite",
+        "convert", "change", "modify", "update", "code", "function", "method", "class", "snippet", "script", "program",
+        "prompt", "test", "regex", "query", "sql", "syntax", "example", "show me", "help me", "let's", "lets", "i want",
+        "i need", "can you", "could you", "would you",
+        // Asking how to do something, which is usually answered with code
+        "how to", "how do i", "how can i",
+        // Following up on an earlier answer, whose meaning only the conversation gives
+        "yes", "yeah", "yep", "sure", "ok", "okay", "please", "go ahead", "do it", "do that", "again", "more", "another",
+        "instead");
+
+    private static final Set<String> CONVERSATIONAL_CUES = Set.of(
+        "what", "what's", "why", "who", "when", "explain", "mean", "means", "meaning", "difference", "how does",
+        "how do", "tell me", "thanks", "thank", "hello", "hi", "hey", "bye", "goodbye", "cool", "great", "nice",
+        "awesome", "interesting", "never mind", "good morning");
+
+    private final ClassifierCoordinator.Classifier delegate;
+
+    private final int auditEvery;
+
+    private final AtomicLong answeredLocally = new AtomicLong();
+
+    private final AtomicLong forwarded = new AtomicLong();
+
+    private final AtomicLong forwardedNonGenerative = new AtomicLong();
+
+    private final AtomicLong audited = new AtomicLong();
+
+    private final AtomicLong disputed = new AtomicLong();
+
+    private final AtomicLong decisionNanos = new AtomicLong();
+
+    /**
+     * @param delegate   classifier for anything not answered locally
+     * @param auditEvery also send every nth local answer to the delegate, to count disagreements; 0 never does
+     */
+    public LocalPreClassifier(ClassifierCoordinator.Classifier delegate, int auditEvery)
+    {
+        this.delegate = delegate;
+        this.auditEvery = auditEvery;
+    }
+
+    @Override
+    public CompletableFuture<String> classify(List<TranscriptMessage> messages, ClassifierStreamListener stream)
+    {
+        long start = System.nanoTime();
+        boolean local = isClearlyNonGenerative(messages);
+        decisionNanos.addAndGet(System.nanoTime() - start);
+
+        if (!local)
+        {
+            forwarded.incrementAndGet();
+            // The delegate's own future is returned, so cancelling it cancels the delegate's call
+            CompletableFuture<String> upstream = delegate.classify(messages, stream);
+            upstream.whenComplete((result, error) ->
+            {
+                if (LABEL_NON_GENERATIVE_REQUEST.equals(result))
+                {
+                    forwardedNonGenerative.incrementAndGet();
+                }
+            });
+            return upstream;
+        }
+
+        long answered = answeredLocally.incrementAndGet();
+        if (auditEvery > 0 && answered % auditEvery == 0)
+        {
+            delegate.classify(messages, null).thenAccept(result ->
+            {
+                audited.incrementAndGet();
+                if (!LABEL_NON_GENERATIVE_REQUEST.equals(result))
+                {
+                    disputed.incrementAndGet();
+                    log.info("Local classifier disputed: \"{}\" was {}", messages.get(messages.size() - 1).content,
+                        result.lines().findFirst().orElse(""));
+                }
+            });
+        }
+        return CompletableFuture.completedFuture(LABEL_NON_GENERATIVE_REQUEST);
+    }
+
+    /**
+     * @return true if the conversation ends with a user message with a conversational cue and no generative one
+     */
+    static boolean isClearlyNonGenerative(List<TranscriptMessage> messages)
+    {
+        if (messages.isEmpty())
+        {
+            return false;
+        }
+        TranscriptMessage latest = messages.get(messages.size() - 1);
+        if (!"user".equals(latest.role) || latest.content == null)
+        {
+            return false;
+        }
+
+        String[] words = latest.content.toLowerCase(Locale.ROOT).replace('’', '\'').split("[^a-z']+");
+        boolean conversational = false;
+        for (int i = 0; i < words.length; i++)
+        {
+            String word = words[i];
+            String bigram = i + 1 < words.length ? word + " " + words[i + 1] : null;
+            String trigram = i + 2 < words.length ? bigram + " " + words[i + 2] : null;
+            if (GENERATIVE_CUES.contains(word) || bigram != null && GENERATIVE_CUES.contains(bigram)
+                || trigram != null && GENERATIVE_CUES.contains(trigram))
+            {
+                return false;
+            }
+            conversational |= CONVERSATIONAL_CUES.contains(word)
+                || bigram != null && CONVERSATIONAL_CUES.contains(bigram);
+        }
+        return conversational;
+    }
+
+    /**
+     * @return one-line summary of the local hit rate and how often the delegate disagreed
+     */
+    public String describe()
+    {
+        long local = answeredLocally.get();
+        long total = local + forwarded.get();
+        long decided = Math.max(1, total);
+        return String.format("%d of %d answered locally (%.0f%%, avg %.1f µs); %d of %d audited local answers disputed; "
+                + "%d of %d forwarded came back non-generative",
+            local, total, 100.0 * local / decided, decisionNanos.get() / 1000.0 / decided, disputed.get(),
+            audited.get(), forwardedNonGenerative.get(), forwarded.get());
+    }
+}
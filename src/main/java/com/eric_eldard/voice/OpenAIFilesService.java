@@ -5,43 +5,171 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.MediaType;
+import okhttp3.Call;
+import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.imageio.ImageIO;
 
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.tokenizer.TokenCounter;
 import com.eric_eldard.util.EnvUtils;
 
 /**
- * Service for analyzing images using OpenAI's Chat Completions API
+ * Service for analyzing images using OpenAI's Chat Completions API, or the Responses API when {@code openai.chat.api}
+ * is {@code responses}. Each image is a request of its own, so there's nothing to chain; up to
+ * {@code openai.image.parallelism} of them run at once. With {@code openai.image.batch} set, the images of one upload
+ * are sent together in a single request instead. Images are shrunk to the size the model looks at before they're sent;
+ * see {@link ImagePreprocessor}. Given a cache directory, analyses are kept there by the images' contents, and an
+ * image seen before is answered from disk.
+ * <p>
+ * With {@code openai.image.delta} set, a single image which is a near-copy of the last screenshot analysed in full
+ * isn't analysed from scratch: only the region which changed, with some context around it, is sent, along with the
+ * earlier analysis to describe the change against.
  */
 @Slf4j
 public class OpenAIFilesService
 {
     private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
+    private static final String OPENAI_RESPONSES_URL = "https://api.openai.com/v1/responses";
+    private static final String ANALYSIS_PROMPT = "Please describe what you see in this image in detail.";
+    private static final String BATCH_ANALYSIS_PROMPT = """
+        Please describe what you see in each of these images in detail. Start each description on a line of its own
+        reading "Analysis of <name>:", taking the names, in order, from this list: %s
+        """;
+    private static final String DELTA_ANALYSIS_PROMPT = """
+        This image is the region of a %dx%d screenshot at x=%d, y=%d which changed since an earlier screenshot of the
+        same screen; everything outside it is unchanged. The earlier screenshot was described as follows.
+
+        %s
+
+        Please describe what this region shows now, and how the screenshot differs from that description.
+        """;
+
+    // Default number of images analyzed at once
+    private static final int IMAGE_PARALLELISM = 3;
+
+    // Output tokens allowed per image
+    private static final int MAX_OUTPUT_TOKENS_PER_IMAGE = 1000;
+
+    // JPEG quality images are re-encoded at; high enough that text in screenshots stays legible
+    private static final String JPEG_QUALITY = "0.85";
+
+    // Default number of analyses kept on disk
+    private static final long IMAGE_CACHE_SIZE = 500;
+
+    // Largest share of a screenshot which may have changed for only the change to be sent
+    private static final double MAX_DELTA_FRACTION = 0.5;
+
+    // Pixels of unchanged context kept around a changed region
+    private static final int DELTA_MARGIN = 48;
     private static final String MODEL = EnvUtils.getProperty("openai.chat.model", "OPENAI_CHAT_MODEL", "gpt-5.3-chat-latest");
-    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
     private final OkHttpClient httpClient;
     private final ObjectMapper objectMapper;
     private final String apiKey;
+    private final String apiUrl;
+    private final UsageMeter usageMeter;
+    private final HttpResilience resilience;
+    private final boolean batchImages;
+    private final boolean screenshotDeltas;
+    private final ImagePreprocessor preprocessor;
+
+    // Null when analyses aren't cached
+    private final ImageAnalysisCache cache;
+
+    // The last screenshot analysed in full, which later ones are compared against; null until there is one
+    private volatile Screenshot baseScreenshot;
+    private final AtomicLong screenshots = new AtomicLong();
+    private final AtomicLong deltas = new AtomicLong();
+    private final AtomicLong unchangedScreenshots = new AtomicLong();
 
-    public OpenAIFilesService(String apiKey)
+    // Request bodies written and the time spent writing them, for the upload throughput
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong uploadNanos = new AtomicLong();
+
+    // Bounds how many analyses are in flight; its threads exit when idle
+    private final ThreadPoolExecutor executor;
+
+    // Null when calling Chat Completions
+    private final String responsesUrl;
+
+    public OpenAIFilesService(String apiKey, UsageMeter usageMeter)
+    {
+        this(apiKey, usageMeter, new HttpResilience());
+    }
+
+    /**
+     * @param resilience retries and circuit breaking, shared with the other services calling the same endpoints
+     */
+    public OpenAIFilesService(String apiKey, UsageMeter usageMeter, HttpResilience resilience)
+    {
+        this(apiKey, usageMeter, resilience, null);
+    }
+
+    /**
+     * @param resilience retries and circuit breaking, shared with the other services calling the same endpoints
+     * @param cacheDir   where analyses are cached, unless {@code openai.image.cache.dir} says otherwise; null for none
+     */
+    public OpenAIFilesService(String apiKey, UsageMeter usageMeter, HttpResilience resilience, Path cacheDir)
     {
         this.apiKey = apiKey;
+        this.usageMeter = usageMeter;
+        this.resilience = resilience;
+        this.apiUrl = EnvUtils.getProperty("openai.chat.url", "OPENAI_CHAT_URL", OPENAI_API_URL);
+        this.batchImages = Boolean.parseBoolean(EnvUtils.getProperty("openai.image.batch", "OPENAI_IMAGE_BATCH",
+            "false"));
+        this.screenshotDeltas = Boolean.parseBoolean(EnvUtils.getProperty("openai.image.delta", "OPENAI_IMAGE_DELTA",
+            "false"));
+        int parallelism = (int) Math.max(1, EnvUtils.getLongProperty("openai.image.parallelism",
+            "OPENAI_IMAGE_PARALLELISM", IMAGE_PARALLELISM));
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable ->
+        {
+            Thread thread = new Thread(runnable, "image-analysis");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.preprocessor = new ImagePreprocessor(Float.parseFloat(EnvUtils.getProperty("openai.image.quality",
+            "OPENAI_IMAGE_QUALITY", JPEG_QUALITY)));
+        String configuredCacheDir = EnvUtils.getProperty("openai.image.cache.dir", "OPENAI_IMAGE_CACHE_DIR", null);
+        Path analysisCacheDir = configuredCacheDir != null ? Path.of(configuredCacheDir) : cacheDir;
+        this.cache = analysisCacheDir == null ? null : new ImageAnalysisCache(
+            (int) EnvUtils.getLongProperty("openai.image.cache.size", "OPENAI_IMAGE_CACHE_SIZE", IMAGE_CACHE_SIZE),
+            analysisCacheDir);
+        boolean responsesApi = OpenAIResponsesService.API_RESPONSES.equalsIgnoreCase(
+            EnvUtils.getProperty("openai.chat.api", "OPENAI_CHAT_API", "chat"));
+        this.responsesUrl = responsesApi
+            ? EnvUtils.getProperty("openai.responses.url", "OPENAI_RESPONSES_URL", OPENAI_RESPONSES_URL)
+            : null;
         this.objectMapper = new ObjectMapper();
         this.httpClient = new OkHttpClient.Builder()
             .connectTimeout(30, TimeUnit.SECONDS)
             .readTimeout(120, TimeUnit.SECONDS) // Longer timeout for file uploads
             .writeTimeout(120, TimeUnit.SECONDS)
+            .eventListenerFactory(call -> new UploadTimer())
             .build();
     }
 
@@ -53,75 +181,205 @@ public class OpenAIFilesService
      */
     public CompletableFuture<String> uploadFiles(File[] files)
     {
-        return CompletableFuture.supplyAsync(() ->
+        return uploadFiles(files, analysis -> {});
+    }
+
+    /**
+     * Analyzes image files as {@link #uploadFiles(File[])}, passing on each analysis as soon as it completes
+     *
+     * @param onAnalysis given each image's analysis, or its error, in the order they complete; in batch mode, once
+     *                   with every analysis
+     * @return CompletableFuture that resolves to every analysis, in the order of the files
+     */
+    public CompletableFuture<String> uploadFiles(File[] files, Consumer<String> onAnalysis)
+    {
+        if (batchImages && files.length > 1)
         {
-            StringBuilder responseBuilder = new StringBuilder();
+            return CompletableFuture.supplyAsync(() ->
+            {
+                String analysis = analyzeTogether(files);
+                onAnalysis.accept(analysis);
+                return analysis;
+            }, executor);
+        }
+        if (screenshotDeltas && files.length == 1)
+        {
+            return CompletableFuture.supplyAsync(() ->
+            {
+                String analysis = analyzeScreenshot(files[0]);
+                onAnalysis.accept(analysis);
+                return analysis;
+            }, executor);
+        }
 
-            for (File file : files)
+        List<CompletableFuture<String>> analyses = new ArrayList<>(files.length);
+        for (File file : files)
+        {
+            analyses.add(CompletableFuture.supplyAsync(() ->
             {
-                try
-                {
-                    String imageAnalysis = analyzeImage(file);
-                    if (responseBuilder.length() > 0)
-                    {
-                        responseBuilder.append("\n\n");
-                    }
-                    responseBuilder.append("Analysis of ").append(file.getName()).append(":\n");
-                    responseBuilder.append(imageAnalysis);
-                }
-                catch (IOException e)
-                {
-                    log.error("Error analyzing image: {}", file.getName(), e);
-                    if (responseBuilder.length() > 0)
-                    {
-                        responseBuilder.append("\n\n");
-                    }
-                    responseBuilder.append("Error analyzing ").append(file.getName()).append(": ").append(e.getMessage());
-                }
-            }
+                String analysis = analyze(file);
+                onAnalysis.accept(analysis);
+                return analysis;
+            }, executor));
+        }
+        return CompletableFuture.allOf(analyses.toArray(CompletableFuture[]::new))
+            .thenApply(done -> analyses.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.joining("\n\n"))
+                .trim());
+    }
 
-            return responseBuilder.toString().trim();
-        });
+    /**
+     * @return the image's analysis under its name, or the error which stopped it
+     */
+    private String analyze(File file)
+    {
+        try
+        {
+            return "Analysis of " + file.getName() + ":\n" + analyzeImages(ANALYSIS_PROMPT, List.of(file));
+        }
+        catch (IOException e)
+        {
+            log.error("Error analyzing image: {}", file.getName(), e);
+            return "Error analyzing " + file.getName() + ": " + e.getMessage();
+        }
     }
 
-    private String analyzeImage(File imageFile) throws IOException
+    /**
+     * @return the image's analysis under its name; if it's a near-copy of the base screenshot, an analysis of just the
+     * changed region, which then isn't the base for later screenshots
+     */
+    private String analyzeScreenshot(File file)
     {
-        // Convert image to base64
-        byte[] imageBytes = Files.readAllBytes(imageFile.toPath());
-        String base64Image = Base64.getEncoder().encodeToString(imageBytes);
+        try
+        {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null)
+            {
+                return analyze(file); // No reader for it
+            }
+            screenshots.incrementAndGet();
+            Screenshot base = baseScreenshot;
+            Rectangle changed = base == null ? null : ScreenshotDiff.changedRegion(base.image(), image);
+            if (base != null && changed == null)
+            {
+                unchangedScreenshots.incrementAndGet();
+                return "Analysis of " + file.getName() + " (unchanged since the previous screenshot):\n"
+                    + base.analysis();
+            }
+            if (base == null || (double) changed.width * changed.height
+                > MAX_DELTA_FRACTION * image.getWidth() * image.getHeight())
+            {
+                String analysis = analyzeImages(ANALYSIS_PROMPT, List.of(file),
+                    result -> baseScreenshot = new Screenshot(image, result));
+                return "Analysis of " + file.getName() + ":\n" + analysis;
+            }
 
-        // Determine MIME type based on file extension
-        String fileName = imageFile.getName().toLowerCase();
-        String mimeType = "image/jpeg"; // default
-        if (fileName.endsWith(".png"))
+            Rectangle region = ScreenshotDiff.withMargin(changed, DELTA_MARGIN, image.getWidth(), image.getHeight());
+            File crop = File.createTempFile("screenshot_delta_", ".png");
+            try
+            {
+                ImageIO.write(image.getSubimage(region.x, region.y, region.width, region.height), "png", crop);
+                String prompt = DELTA_ANALYSIS_PROMPT.formatted(image.getWidth(), image.getHeight(), region.x, region.y,
+                    base.analysis());
+                deltas.incrementAndGet();
+                log.debug("Sending the changed {}x{} region of {}", region.width, region.height, file.getName());
+                return String.format("Analysis of %s (changes since the previous screenshot, in the %dx%d region at "
+                    + "%d,%d):\n%s", file.getName(), region.width, region.height, region.x, region.y,
+                    analyzeImages(prompt, List.of(crop)));
+            }
+            finally
+            {
+                Files.deleteIfExists(crop.toPath());
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Error analyzing image: {}", file.getName(), e);
+            return "Error analyzing " + file.getName() + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * @return the analyses of every image, from one request; each is headed with its image's name
+     */
+    private String analyzeTogether(File[] files)
+    {
+        String names = Arrays.stream(files).map(File::getName).collect(Collectors.joining(", "));
+        try
         {
-            mimeType = "image/png";
+            return analyzeImages(BATCH_ANALYSIS_PROMPT.formatted(names), Arrays.asList(files));
         }
-        else if (fileName.endsWith(".gif"))
+        catch (IOException e)
         {
-            mimeType = "image/gif";
+            log.error("Error analyzing images: {}", names, e);
+            return "Error analyzing " + names + ": " + e.getMessage();
         }
-        else if (fileName.endsWith(".bmp"))
+    }
+
+    /**
+     * @return e.g. {@code 5 images, 18432 KB -> 1103 KB (94% saved), ~6.1s upload saved, 340ms preprocessing}, for
+     * Stats
+     */
+    public String describeUploads()
+    {
+        long nanos = uploadNanos.get();
+        String uploads = preprocessor.describe(nanos == 0 ? 0 : uploadedBytes.get() * 1e9 / nanos);
+        if (screenshotDeltas)
+        {
+            uploads += String.format("; %d of %d screenshots sent as deltas, %d unchanged", deltas.get(),
+                screenshots.get(), unchangedScreenshots.get());
+        }
+        return cache == null ? uploads : uploads + "; cache " + cache.describe();
+    }
+
+    private String analyzeImages(String prompt, List<File> imageFiles) throws IOException
+    {
+        return analyzeImages(prompt, imageFiles, analysis -> {});
+    }
+
+    /**
+     * @param onSuccess given the analysis if it succeeded, as failures are returned as text too
+     */
+    private String analyzeImages(String prompt, List<File> imageFiles, Consumer<String> onSuccess) throws IOException
+    {
+        String cacheKey = cache != null ? ImageAnalysisCache.key(MODEL, prompt, imageFiles) : null;
+        if (cacheKey != null)
         {
-            mimeType = "image/bmp";
+            String cached = cache.get(cacheKey);
+            if (cached != null)
+            {
+                onSuccess.accept(cached);
+                return cached;
+            }
         }
-        else if (fileName.endsWith(".webp"))
+
+        // Batched images are prepared side by side
+        List<CompletableFuture<ImagePreprocessor.PreparedImage>> prepared = imageFiles.stream()
+            .map(preprocessor::prepare)
+            .toList();
+        List<ImagePreprocessor.PreparedImage> images = new ArrayList<>(imageFiles.size());
+        for (CompletableFuture<ImagePreprocessor.PreparedImage> image : prepared)
         {
-            mimeType = "image/webp";
+            images.add(await(image));
         }
+        int maxOutputTokens = MAX_OUTPUT_TOKENS_PER_IMAGE * imageFiles.size();
 
-        // Create request body for Chat Completions API
-        ObjectNode requestBody = createImageAnalysisRequest(base64Image, mimeType);
-        String jsonRequest = objectMapper.writeValueAsString(requestBody);
+        // Create request body for whichever API is configured; the images are encoded into it as it's sent
+        List<String> dataUrls = ImageRequestBody.placeholders(images.size());
+        ObjectNode requestBody = responsesUrl != null
+            ? createResponsesImageAnalysisRequest(prompt, dataUrls, maxOutputTokens)
+            : createImageAnalysisRequest(prompt, dataUrls, maxOutputTokens);
+        String envelope = objectMapper.writeValueAsString(requestBody);
 
         Request request = new Request.Builder()
-            .url(OPENAI_API_URL)
+            .url(responsesUrl != null ? responsesUrl : apiUrl)
             .header("Authorization", "Bearer " + apiKey)
             .header("Content-Type", "application/json")
-            .post(RequestBody.create(jsonRequest, JSON))
+            .post(new ImageRequestBody(envelope, dataUrls, images))
             .build();
 
-        try (Response response = httpClient.newCall(request).execute())
+        try (Response response = resilience.execute(httpClient, request))
         {
             String responseBody = response.body() != null ? response.body().string() : "";
 
@@ -136,6 +394,20 @@ public class OpenAIFilesService
             try
             {
                 JsonNode responseJson = objectMapper.readTree(responseBody);
+                if (responsesUrl != null)
+                {
+                    usageMeter.record(UsageMeter.FEATURE_IMAGE, TokenUsage.fromResponses(responseJson.get("usage")));
+                    String result = extractOutputText(responseJson);
+                    if (result != null)
+                    {
+                        log.debug("OpenAI image analysis result ({} tokens): {}", TokenCounter.count(result), result);
+                        return succeeded(cacheKey, result, onSuccess);
+                    }
+                    log.warn("Unexpected response format from OpenAI API: {}", responseBody);
+                    return "Could not analyze image - unexpected response format";
+                }
+
+                usageMeter.record(UsageMeter.FEATURE_IMAGE, TokenUsage.fromChatCompletions(responseJson.get("usage")));
                 JsonNode choices = responseJson.get("choices");
                 if (choices != null && choices.isArray() && choices.size() > 0)
                 {
@@ -147,8 +419,9 @@ public class OpenAIFilesService
                         if (content != null)
                         {
                             String result = content.asText().trim();
-                            log.debug("OpenAI image analysis result: {}", result);
-                            return result;
+                            log.debug("OpenAI image analysis result ({} tokens): {}", TokenCounter.count(result),
+                                result);
+                            return succeeded(cacheKey, result, onSuccess);
                         }
                     }
                 }
@@ -164,15 +437,45 @@ public class OpenAIFilesService
         }
     }
 
-    private ObjectNode createImageAnalysisRequest(String base64Image, String mimeType)
+    /**
+     * Caches a successful analysis; failures aren't cached, so they're retried next time
+     */
+    private String succeeded(String cacheKey, String analysis, Consumer<String> onSuccess)
+    {
+        if (cacheKey != null)
+        {
+            cache.put(cacheKey, analysis);
+        }
+        onSuccess.accept(analysis);
+        return analysis;
+    }
+
+    private static ImagePreprocessor.PreparedImage await(CompletableFuture<ImagePreprocessor.PreparedImage> image)
+        throws IOException
+    {
+        try
+        {
+            return image.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof UncheckedIOException io)
+            {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private ObjectNode createImageAnalysisRequest(String prompt, List<String> dataUrls, int maxOutputTokens)
     {
         ObjectNode requestBody = objectMapper.createObjectNode();
         requestBody.put("model", MODEL);
-        requestBody.put("max_completion_tokens", 1000);
+        requestBody.put("max_completion_tokens", maxOutputTokens);
 
         ArrayNode messages = objectMapper.createArrayNode();
 
-        // Add user message with image
+        // Add user message with images
         ObjectNode userMessage = objectMapper.createObjectNode();
         userMessage.put("role", "user");
 
@@ -181,16 +484,19 @@ public class OpenAIFilesService
         // Add text part
         ObjectNode textPart = objectMapper.createObjectNode();
         textPart.put("type", "text");
-        textPart.put("text", "Please describe what you see in this image in detail.");
+        textPart.put("text", prompt);
         content.add(textPart);
 
-        // Add image part
-        ObjectNode imagePart = objectMapper.createObjectNode();
-        imagePart.put("type", "image_url");
-        ObjectNode imageUrl = objectMapper.createObjectNode();
-        imageUrl.put("url", "data:" + mimeType + ";base64," + base64Image);
-        imagePart.set("image_url", imageUrl);
-        content.add(imagePart);
+        // Add image parts
+        for (String dataUrl : dataUrls)
+        {
+            ObjectNode imagePart = objectMapper.createObjectNode();
+            imagePart.put("type", "image_url");
+            ObjectNode imageUrl = objectMapper.createObjectNode();
+            imageUrl.put("url", dataUrl);
+            imagePart.set("image_url", imageUrl);
+            content.add(imagePart);
+        }
 
         userMessage.set("content", content);
         messages.add(userMessage);
@@ -198,4 +504,69 @@ public class OpenAIFilesService
         requestBody.set("messages", messages);
         return requestBody;
     }
-}
\ No newline at end of file
+
+    private ObjectNode createResponsesImageAnalysisRequest(String prompt, List<String> dataUrls, int maxOutputTokens)
+    {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", MODEL);
+        requestBody.put("max_output_tokens", maxOutputTokens);
+        requestBody.put("store", false);
+
+        ObjectNode userMessage = requestBody.putArray("input").addObject();
+        userMessage.put("role", "user");
+        ArrayNode content = userMessage.putArray("content");
+        content.addObject().put("type", "input_text").put("text", prompt);
+        for (String dataUrl : dataUrls)
+        {
+            content.addObject().put("type", "input_image").put("image_url", dataUrl);
+        }
+        return requestBody;
+    }
+
+    /**
+     * @return the text of a Responses API response's output messages, or null if it has none
+     */
+    private static String extractOutputText(JsonNode responseJson)
+    {
+        StringBuilder text = new StringBuilder();
+        for (JsonNode item : responseJson.path("output"))
+        {
+            for (JsonNode part : item.path("content"))
+            {
+                if ("output_text".equals(part.path("type").asText()))
+                {
+                    text.append(part.path("text").asText());
+                }
+            }
+        }
+        return text.isEmpty() ? null : text.toString().trim();
+    }
+
+    /**
+     * A screenshot analysed in full, and its analysis
+     */
+    private record Screenshot(BufferedImage image, String analysis)
+    {
+    }
+
+    /**
+     * Times each request body's upload, so Stats can put the bytes saved in terms of time
+     */
+    private class UploadTimer extends EventListener
+    {
+        private long bodyStart;
+
+        @Override
+        public void requestBodyStart(Call call)
+        {
+            bodyStart = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount)
+        {
+            uploadNanos.addAndGet(System.nanoTime() - bodyStart);
+            uploadedBytes.addAndGet(byteCount);
+        }
+    }
+}
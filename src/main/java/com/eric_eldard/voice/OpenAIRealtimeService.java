@@ -1,7 +1,10 @@
 package com.eric_eldard.voice;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
@@ -13,9 +16,22 @@ import okhttp3.WebSocketListener;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.TurnLatencyTracker;
+import com.eric_eldard.metrics.TurnStage;
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.tokenizer.TokenCounter;
+import com.eric_eldard.util.EnvUtils;
 
 /**
  * Service for connecting to OpenAI's Realtime voice API This service is agnostic from IntelliJ plugins and can be used
@@ -24,7 +40,7 @@ import java.util.concurrent.atomic.AtomicLong;
 @Slf4j
 public class OpenAIRealtimeService
 {
-    private static final String OPENAI_REALTIME_URL = "wss://api.openai.com/v1/realtime";
+    private static final String DEFAULT_REALTIME_URL = "wss://api.openai.com/v1/realtime";
 
     // Audio format constants for buffer size calculation
     private static final float SAMPLE_RATE = 24000.0f; // 24kHz
@@ -41,6 +57,8 @@ public class OpenAIRealtimeService
 
     private final String instructions;
 
+    private final String realtimeUrl;
+
     private final String apiKey;
 
     private final String model;
@@ -59,20 +77,65 @@ public class OpenAIRealtimeService
     // Threshold for detecting human speech (2% of max 16-bit value)
     private static final double SPEECH_AMPLITUDE_THRESHOLD = 0.02;
 
-    private volatile long lastApiCallTime = 0; // For rate limiting
+    private volatile long lastApiCallTime = 0; // For batching appends
 
+    // Appends are batched to cut per-message overhead; they spend no rate limit budget, so this never grows
     private static final long MIN_API_CALL_INTERVAL_MS = 500;
-    // Increased to 500ms between API calls for better rate limiting
 
-    private volatile long backoffDelayMs = MIN_API_CALL_INTERVAL_MS; // Exponential backoff delay
+    private static final String RATE_LIMIT_ERROR_CODE = "rate_limit_exceeded";
+
+    // Paces response.create and commits against the budgets from rate_limits.updated
+    private final RealtimeRateLimiter rateLimiter = new RealtimeRateLimiter();
+
+    // Sends which the rate limiter is holding back; at most one of each is pending
+    private final ScheduledThreadPoolExecutor deferredSends = new ScheduledThreadPoolExecutor(1, runnable ->
+    {
+        Thread thread = new Thread(runnable, "realtime-deferred-sends");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> pendingCommit;
+
+    private ScheduledFuture<?> pendingResponse;
+
+    // Silence after speech which ends a turn, until the endpointer has learned the user's pauses
+    private static final long INITIAL_SILENCE_DURATION_MS = 1000;
+
+    // Smallest change to the learned silence window worth re-sending the server VAD config for
+    private static final long SILENCE_RETUNE_THRESHOLD_MS = 100;
+
+    // Input tokens per response above which older turns are summarised, unless configured otherwise
+    private static final long DEFAULT_COMPACTION_THRESHOLD_TOKENS = 12_000;
+
+    // Latest items which compaction leaves intact
+    private static final int COMPACTION_KEEP_RECENT_ITEMS = 6;
+
+    private final ConversationCompactor compactor;
+
+    private final OutOfBandClassifier outOfBandClassifier;
 
-    private static final long MAX_BACKOFF_DELAY_MS = 5000; // Maximum 5 seconds backoff
+    // Condenses a transcript for compaction; compaction is off until one is set
+    @Setter
+    private Function<String, CompletableFuture<String>> conversationSummarizer;
+
+    @Getter
+    private final TurnLatencyTracker latencyTracker = new TurnLatencyTracker();
+
+    private final UsageMeter usageMeter;
+
+    private final AdaptiveEndpointer endpointer = new AdaptiveEndpointer(INITIAL_SILENCE_DURATION_MS);
 
-    private volatile int consecutiveErrors = 0; // Track consecutive 429 errors
+    // Silence window currently in effect (advertised to the server under server VAD)
+    private volatile long activeSilenceMs = INITIAL_SILENCE_DURATION_MS;
 
-    private volatile long lastTranscriptionTime = 0; // Separate rate limiting for transcription operations
+    @Getter
+    private final TurnMode turnMode;
 
-    private static final long MIN_TRANSCRIPTION_INTERVAL_MS = 1000; // Minimum 1 second between transcription operations
+    // True between the start of speech and the commit of the buffer holding it (by either the server or the client)
+    private volatile boolean uncommittedSpeech = false;
+
+    private volatile long lastVoicedFrameTime = 0; // For turn detection and endpointing latency
 
     // Temporary buffer for accumulating audio data when rate limited
     private final ByteArrayOutputStream tempAudioBuffer = new ByteArrayOutputStream();
@@ -86,13 +149,21 @@ public class OpenAIRealtimeService
     @Setter
     private VoiceEventListener eventListener;
 
-    public OpenAIRealtimeService(String apiKey, String model, String voice, String junieConfig)
+    public OpenAIRealtimeService(String apiKey, String model, String voice, String junieConfig, UsageMeter usageMeter)
     {
         this.apiKey = apiKey;
+        this.usageMeter = usageMeter;
         this.model = model;
         this.voice = voice;
+        this.realtimeUrl = EnvUtils.getProperty("openai.realtime.url", "OPENAI_REALTIME_URL", DEFAULT_REALTIME_URL);
         this.objectMapper = new ObjectMapper();
         this.client = new OkHttpClient();
+        this.outOfBandClassifier = new OutOfBandClassifier(objectMapper, message -> webSocket.send(message), usageMeter);
+        this.turnMode = TurnMode.fromEnvironment();
+        this.compactor = new ConversationCompactor(EnvUtils.getLongProperty("openai.compaction.threshold",
+            "OPENAI_COMPACTION_THRESHOLD", DEFAULT_COMPACTION_THRESHOLD_TOKENS), COMPACTION_KEEP_RECENT_ITEMS);
+        this.deferredSends.setKeepAliveTime(30, TimeUnit.SECONDS);
+        this.deferredSends.allowCoreThreadTimeOut(true);
         this.instructions = junieConfig + """
             
             # General Guidance
@@ -128,7 +199,7 @@ public class OpenAIRealtimeService
         CompletableFuture<Boolean> future = new CompletableFuture<>();
 
         Request request = new Request.Builder()
-            .url(OPENAI_REALTIME_URL + "?model=" + model)
+            .url(realtimeUrl + "?model=" + model)
             .addHeader("Authorization", "Bearer " + apiKey)
             .addHeader("OpenAI-Beta", "realtime=v1")
             .build();
@@ -137,7 +208,7 @@ public class OpenAIRealtimeService
         if (eventListener != null)
         {
             eventListener.onRequestLog("WebSocket Connection",
-                "Connecting to " + OPENAI_REALTIME_URL + " with model " + model,
+                "Connecting to " + realtimeUrl + " with model " + model,
                 "PENDING");
         }
 
@@ -180,6 +251,7 @@ public class OpenAIRealtimeService
             {
                 log.info("Connection closing: {} {}", code, reason);
                 connected.set(false);
+                outOfBandClassifier.failAll(new IllegalStateException("Realtime connection closed: " + reason));
                 if (eventListener != null)
                 {
                     eventListener.onDisconnected();
@@ -191,6 +263,7 @@ public class OpenAIRealtimeService
             {
                 log.error("WebSocket failure", t);
                 connected.set(false);
+                outOfBandClassifier.failAll(t);
 
                 // Log connection failure with response code if available
                 if (eventListener != null)
@@ -214,6 +287,12 @@ public class OpenAIRealtimeService
 
     public void disconnect()
     {
+        synchronized (deferredSends)
+        {
+            cancelPending(pendingCommit);
+            cancelPending(pendingResponse);
+        }
+        outOfBandClassifier.failAll(new IllegalStateException("Realtime connection closed"));
         if (webSocket != null)
         {
             webSocket.close(1000, "Client disconnect");
@@ -226,6 +305,26 @@ public class OpenAIRealtimeService
         return connected.get();
     }
 
+    /**
+     * Classifies the conversation with an out-of-band, text-only response on this session, which already holds the
+     * conversation; the response isn't added to it, and its events never reach the event listener
+     *
+     * @param classifierInstructions instructions for the classification, replacing the session's for this response
+     * @param listener               receives the label and content as they stream; may be null
+     * @return the labeled result, as {@link OpenAIResponsesService#analyzeForCodeRequest(List)}; cancelling it cancels
+     * the response
+     */
+    public CompletableFuture<String> classifyOutOfBand(String classifierInstructions,
+                                                       OpenAIResponsesService.ClassifierStreamListener listener)
+    {
+        if (!isConnected())
+        {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not connected to the Realtime API"));
+        }
+        rateLimiter.onResponseSent(System.currentTimeMillis());
+        return outOfBandClassifier.classify(classifierInstructions, listener);
+    }
+
     private void sendSessionUpdate()
     {
         try
@@ -236,14 +335,13 @@ public class OpenAIRealtimeService
             ObjectNode session = objectMapper.createObjectNode();
             session.put("modalities", objectMapper.createArrayNode().add("text").add("audio"));
             session.put("instructions", instructions);
+            log.info("Session instructions: {} tokens{}", TokenCounter.count(instructions),
+                TokenCounter.isExact() ? "" : " (estimated)");
             session.put("voice", voice);
             session.put("input_audio_format", "pcm16");
             session.put("output_audio_format", "pcm16");
             session.put("input_audio_transcription", objectMapper.createObjectNode().put("model", "whisper-1"));
-            ObjectNode turnDetection = objectMapper.createObjectNode();
-            turnDetection.put("type", "server_vad");
-            turnDetection.put("silence_duration_ms", 1000);
-            session.put("turn_detection", turnDetection);
+            session.set("turn_detection", createTurnDetection());
 
             session.set("tools", objectMapper.createArrayNode());
             session.put("max_response_output_tokens", 4096);
@@ -256,7 +354,8 @@ public class OpenAIRealtimeService
             if (eventListener != null)
             {
                 eventListener.onRequestLog("Session Update",
-                    "Configuring session with voice=" + voice + ", modalities=[text,audio], format=pcm16",
+                    "Configuring session with voice=" + voice + ", modalities=[text,audio], format=pcm16, turn=" +
+                        turnMode + ", silence=" + activeSilenceMs + "ms",
                     "SENT");
             }
 
@@ -277,6 +376,68 @@ public class OpenAIRealtimeService
         }
     }
 
+    /**
+     * @return the session's turn detection config; a JSON null when the client owns turn detection, so the server
+     * neither commits nor responds on its own
+     */
+    private JsonNode createTurnDetection()
+    {
+        if (turnMode != TurnMode.SERVER_VAD)
+        {
+            return NullNode.getInstance();
+        }
+
+        ObjectNode turnDetection = objectMapper.createObjectNode();
+        turnDetection.put("type", turnMode.getTurnDetectionType());
+        turnDetection.put("silence_duration_ms", activeSilenceMs);
+        turnDetection.put("create_response", true);
+        return turnDetection;
+    }
+
+    /**
+     * Applies the endpointer's latest silence window once it has drifted far enough from the active one, re-sending
+     * the server VAD config when the server is detecting turns
+     */
+    private void retuneSilenceWindow()
+    {
+        long learnedSilenceMs = endpointer.getSilenceWindowMs();
+        long previousSilenceMs = activeSilenceMs;
+        if (Math.abs(learnedSilenceMs - previousSilenceMs) < SILENCE_RETUNE_THRESHOLD_MS)
+        {
+            return;
+        }
+
+        activeSilenceMs = learnedSilenceMs;
+        String details = String.format(
+            "Silence window %dms -> %dms (p90 pause %dms over %d pauses, %d clipped turns); end of turn %s by ~%dms",
+            previousSilenceMs, learnedSilenceMs, endpointer.getPausePercentileMs(), endpointer.getPauseCount(),
+            endpointer.getClippedTurns(), learnedSilenceMs < previousSilenceMs ? "sooner" : "later",
+            Math.abs(learnedSilenceMs - previousSilenceMs));
+        log.info("VAD tuning: {}", details);
+
+        if (turnMode == TurnMode.SERVER_VAD && isConnected())
+        {
+            try
+            {
+                ObjectNode sessionUpdate = objectMapper.createObjectNode();
+                sessionUpdate.put("type", "session.update");
+                sessionUpdate.set("session", objectMapper.createObjectNode().set("turn_detection", createTurnDetection()));
+                webSocket.send(objectMapper.writeValueAsString(sessionUpdate));
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to send VAD tuning", e);
+                activeSilenceMs = previousSilenceMs;
+                details = "Failed to retune silence window: " + e.getMessage();
+            }
+        }
+
+        if (eventListener != null)
+        {
+            eventListener.onRequestLog("VAD Tuning", details, activeSilenceMs == learnedSilenceMs ? "SENT" : "ERROR");
+        }
+    }
+
     public void sendAudioData(byte[] audioData)
     {
         if (!isConnected())
@@ -285,6 +446,8 @@ public class OpenAIRealtimeService
             return;
         }
 
+        latencyTracker.mark(TurnStage.MIC_CAPTURE);
+
         synchronized (bufferLock)
         {
             // Always accumulate incoming audio data
@@ -293,7 +456,29 @@ public class OpenAIRealtimeService
                 tempAudioBuffer.write(audioData);
 
                 // Calculate and track amplitude for speech detection
-                maxAmplitude = Math.max(maxAmplitude, calculateAmplitude(audioData));
+                double amplitude = calculateAmplitude(audioData);
+                maxAmplitude = Math.max(maxAmplitude, amplitude);
+
+                long frameTime = System.currentTimeMillis();
+                boolean voiced = amplitude >= SPEECH_AMPLITUDE_THRESHOLD;
+                endpointer.onFrame(voiced, frameTime);
+                if (voiced)
+                {
+                    lastVoicedFrameTime = frameTime;
+                }
+
+                if (turnMode == TurnMode.CLIENT_VAD && detectClientEndOfTurn(voiced, frameTime))
+                {
+                    // Flush whatever is still held back by rate limiting so the commit covers the whole turn
+                    if (tempAudioBuffer.size() > 0)
+                    {
+                        sendVoiceData(tempAudioBuffer.toByteArray());
+                        tempAudioBuffer.reset();
+                        lastApiCallTime = System.currentTimeMillis();
+                    }
+                    commitAudioBuffer();
+                    return;
+                }
 
                 // Reduce debug logging frequency to improve performance
                 if (tempAudioBuffer.size() % 51200 == 0)
@@ -308,14 +493,10 @@ public class OpenAIRealtimeService
                 return;
             }
 
-            // Enhanced rate limiting with exponential backoff to prevent 429 errors
+            // Batch appends; held audio goes out with the next frame after the interval
             long currentTime = System.currentTimeMillis();
-            long requiredDelay = Math.max(MIN_API_CALL_INTERVAL_MS, backoffDelayMs);
-
-            if (currentTime - lastApiCallTime < requiredDelay)
+            if (currentTime - lastApiCallTime < MIN_API_CALL_INTERVAL_MS)
             {
-                log.debug("Self rate limiting: delaying send ({}ms remaining)",
-                    requiredDelay - (currentTime - lastApiCallTime));
                 return;
             }
 
@@ -329,6 +510,47 @@ public class OpenAIRealtimeService
         }
     }
 
+    /**
+     * Client-side turn detection: tracks speech in incoming frames and reports when enough silence has followed it
+     *
+     * @param voiced whether the latest frame's amplitude indicates speech
+     * @param now    capture time of the latest frame
+     * @return true if the latest frame ends the user's turn
+     */
+    private boolean detectClientEndOfTurn(boolean voiced, long now)
+    {
+        if (voiced)
+        {
+            if (!uncommittedSpeech)
+            {
+                uncommittedSpeech = true;
+                endpointer.onSpeechStarted(now);
+                log.info("Speech detected (client VAD)");
+                if (eventListener != null)
+                {
+                    eventListener.onSpeechStarted();
+                }
+            }
+            return false;
+        }
+
+        if (uncommittedSpeech && now - lastVoicedFrameTime >= activeSilenceMs)
+        {
+            // The turn is over whether or not the commit goes through; don't retry it on every silent frame
+            uncommittedSpeech = false;
+            endpointer.onTurnEnded(now);
+            retuneSilenceWindow();
+            latencyTracker.mark(TurnStage.SPEECH_STOPPED);
+            log.info("Speech ended (client VAD)");
+            if (eventListener != null)
+            {
+                eventListener.onSpeechStopped();
+            }
+            return true;
+        }
+        return false;
+    }
+
     private void sendVoiceData(byte[] dataToSend)
     {
         // Perform expensive operations outside synchronized block
@@ -347,6 +569,8 @@ public class OpenAIRealtimeService
             // Send via WebSocket
             webSocket.send(message);
 
+            latencyTracker.mark(TurnStage.FIRST_APPEND_SENT);
+
             // Track buffer size ONLY after successful send
             long totalBufferSize = audioBufferSize.addAndGet(dataToSend.length);
             log.debug("Sent accumulated audio data: {} bytes, total buffer: {} bytes",
@@ -359,8 +583,6 @@ public class OpenAIRealtimeService
                     String.format("Audio Data: Sent %d bytes of audio data (total buffer: %d bytes) [SENT]",
                         dataToSend.length, totalBufferSize));
             }
-
-            resetBackoff();
         }
         catch (Exception e)
         {
@@ -372,9 +594,6 @@ public class OpenAIRealtimeService
                 eventListener.onTraceMessage(
                     "Audio Data: Failed to send audio data: " + e.getMessage() + " [ERROR]");
             }
-
-            // Increase backoff delay on failure to prevent rapid retries
-            increaseBackoff();
         }
     }
 
@@ -414,6 +633,7 @@ public class OpenAIRealtimeService
                     "SENT");
             }
 
+            latencyTracker.beginTextTurn();
             webSocket.send(message);
             log.debug("Sent text message: {}", message);
 
@@ -500,29 +720,6 @@ public class OpenAIRealtimeService
             return;
         }
 
-        // Transcription-specific rate limiting to prevent 429 errors
-        long currentTime = System.currentTimeMillis();
-        long timeSinceLastTranscription = currentTime - lastTranscriptionTime;
-        long requiredTranscriptionDelay = Math.max(MIN_TRANSCRIPTION_INTERVAL_MS, backoffDelayMs);
-
-        if (timeSinceLastTranscription < requiredTranscriptionDelay)
-        {
-            log.warn("Self transcription rate limiting: skipping commit ({}ms since last, {}ms required)",
-                timeSinceLastTranscription, requiredTranscriptionDelay);
-
-            if (eventListener != null)
-            {
-                eventListener.onRequestLog("Buffer Commit",
-                    String.format("Self rate limited: need to wait %dms before next commit",
-                        requiredTranscriptionDelay - timeSinceLastTranscription),
-                    "RATE_LIMITED");
-                eventListener.onError(new RuntimeException(
-                    String.format("Self transcription rate limited. Please wait %dms before next commit.",
-                        requiredTranscriptionDelay - timeSinceLastTranscription)));
-            }
-            return;
-        }
-
         // Check if we have enough audio data (minimum 100ms) - skip check if forced
         long currentBufferSize = audioBufferSize.get();
 
@@ -544,6 +741,38 @@ public class OpenAIRealtimeService
             return;
         }
 
+        // The turn is decided here even if the commit is held back; audio appended meanwhile becomes part of it
+        audioBufferSize.set(0);
+        uncommittedSpeech = false;
+
+        long delayMs = rateLimiter.getCommitDelayMs(System.currentTimeMillis());
+        if (delayMs > 0)
+        {
+            synchronized (deferredSends)
+            {
+                if (isPending(pendingCommit))
+                {
+                    log.debug("A commit is already deferred; this audio will be part of it");
+                    return;
+                }
+                pendingCommit = deferredSends.schedule(() -> sendCommit(currentBufferSize), delayMs,
+                    TimeUnit.MILLISECONDS);
+            }
+            logDeferred("Buffer Commit", delayMs);
+            return;
+        }
+
+        sendCommit(currentBufferSize);
+    }
+
+    private void sendCommit(long currentBufferSize)
+    {
+        if (!isConnected())
+        {
+            log.warn("Cannot commit audio buffer - not connected");
+            return;
+        }
+
         try
         {
             ObjectNode commitMessage = objectMapper.createObjectNode();
@@ -563,18 +792,9 @@ public class OpenAIRealtimeService
 
             webSocket.send(message);
 
-            // Record transcription time for rate limiting
-            lastTranscriptionTime = currentTime;
-
-            // Reset buffer size after successful commit
-            audioBufferSize.set(0);
-
-            // Reset backoff on successful commit
-            resetBackoff();
-
             log.info("Committed audio buffer: {} bytes ({}ms)", currentBufferSize, durationMs);
 
-            // After committing the audio buffer, request a response to trigger AI generation
+            // Server VAD only creates responses for the commits it makes itself, so a client commit always needs one
             requestResponse();
         }
         catch (Exception e)
@@ -593,6 +813,27 @@ public class OpenAIRealtimeService
     }
 
     private void requestResponse()
+    {
+        long delayMs = rateLimiter.getResponseDelayMs(System.currentTimeMillis());
+        if (delayMs > 0)
+        {
+            synchronized (deferredSends)
+            {
+                if (isPending(pendingResponse))
+                {
+                    log.debug("A response request is already deferred; it will answer this turn too");
+                    return;
+                }
+                pendingResponse = deferredSends.schedule(this::sendResponseRequest, delayMs, TimeUnit.MILLISECONDS);
+            }
+            logDeferred("Response Request", delayMs);
+            return;
+        }
+
+        sendResponseRequest();
+    }
+
+    private void sendResponseRequest()
     {
         if (!isConnected())
         {
@@ -623,6 +864,7 @@ public class OpenAIRealtimeService
             }
 
             webSocket.send(message);
+            rateLimiter.onResponseSent(System.currentTimeMillis());
             log.debug("Sent response request: {}", message);
         }
         catch (Exception e)
@@ -652,6 +894,7 @@ public class OpenAIRealtimeService
             audioBufferSize.set(0);
             tempAudioBuffer.reset();
             maxAmplitude = 0.0;
+            uncommittedSpeech = false;
             log.debug("Audio buffer cleared");
         }
     }
@@ -666,6 +909,14 @@ public class OpenAIRealtimeService
         return audioBufferSize.get() >= MIN_BUFFER_SIZE_BYTES;
     }
 
+    /**
+     * @return true if speech has been detected which neither the server nor the client has committed yet
+     */
+    public boolean hasUncommittedSpeech()
+    {
+        return uncommittedSpeech;
+    }
+
     /**
      * Calculate the amplitude (volume level) of audio data
      *
@@ -716,21 +967,107 @@ public class OpenAIRealtimeService
         return hasSpeech;
     }
 
-    private void resetBackoff()
+    /**
+     * Once the conversation has outgrown the compaction threshold, summarises its older turns through the summarizer,
+     * then swaps them out of the session for the summary. Runs in the background; the conversation carries on meanwhile.
+     *
+     * @param contextTokens input tokens of the response which just completed
+     */
+    private void compactConversationIfDue(long contextTokens)
+    {
+        if (conversationSummarizer == null)
+        {
+            return;
+        }
+        List<ConversationCompactor.Item> stale = compactor.beginCompaction(contextTokens);
+        if (stale.isEmpty())
+        {
+            return;
+        }
+
+        log.info("Conversation reached {} input tokens; summarizing its {} oldest items", contextTokens, stale.size());
+        String transcript = stale.stream()
+            .map(item -> switch (item.role())
+            {
+                case "assistant" -> "Assistant: ";
+                case "system" -> "Earlier summary: ";
+                default -> "User: ";
+            } + item.textOrPlaceholder())
+            .collect(Collectors.joining("\n"));
+
+        conversationSummarizer.apply(transcript).whenComplete((summary, error) ->
+        {
+            if (summary == null || !isConnected())
+            {
+                log.warn("Conversation compaction abandoned; no summary was produced", error);
+                compactor.endCompaction(List.of(), null);
+                return;
+            }
+            compactor.endCompaction(stale, replaceWithSummary(stale, summary));
+        });
+    }
+
+    /**
+     * Deletes the given items from the session and inserts the summary at the start of the conversation
+     *
+     * @return the summary item as sent
+     */
+    private ConversationCompactor.Item replaceWithSummary(List<ConversationCompactor.Item> items, String summary)
+    {
+        for (ConversationCompactor.Item item : items)
+        {
+            ObjectNode delete = objectMapper.createObjectNode();
+            delete.put("type", "conversation.item.delete");
+            delete.put("item_id", item.id());
+            webSocket.send(delete.toString());
+        }
+
+        String summaryText = "Summary of the conversation so far:\n" + summary;
+        ConversationCompactor.Item summaryItem = new ConversationCompactor.Item(
+            "summary_" + System.currentTimeMillis(), "system", summaryText);
+
+        ObjectNode create = objectMapper.createObjectNode();
+        create.put("type", "conversation.item.create");
+        create.put("previous_item_id", "root");
+        ObjectNode item = create.putObject("item");
+        item.put("id", summaryItem.id());
+        item.put("type", "message");
+        item.put("role", "system");
+        item.putArray("content").addObject().put("type", "input_text").put("text", summaryText);
+        webSocket.send(create.toString());
+
+        log.info("Replaced {} conversation items with a {} character summary", items.size(), summary.length());
+        if (eventListener != null)
+        {
+            eventListener.onRequestLog("Compaction",
+                String.format("Replaced %d older conversation items with a summary", items.size()), "SENT");
+        }
+        return summaryItem;
+    }
+
+    private static boolean isPending(ScheduledFuture<?> send)
     {
-        if (consecutiveErrors > 0)
+        return send != null && !send.isDone();
+    }
+
+    private static void cancelPending(ScheduledFuture<?> send)
+    {
+        if (isPending(send))
         {
-            log.debug("Resetting backoff after successful operation");
-            consecutiveErrors = 0;
-            backoffDelayMs = MIN_API_CALL_INTERVAL_MS;
+            send.cancel(false);
         }
     }
 
-    private void increaseBackoff()
+    private void logDeferred(String requestType, long delayMs)
     {
-        consecutiveErrors++;
-        backoffDelayMs = Math.min(backoffDelayMs * 2, MAX_BACKOFF_DELAY_MS);
-        log.warn("Increased backoff delay to {}ms after {} consecutive errors", backoffDelayMs, consecutiveErrors);
+        log.info("{} held back {}ms by rate limits: {}", requestType, delayMs,
+            rateLimiter.describe(System.currentTimeMillis()));
+        if (eventListener != null)
+        {
+            eventListener.onRequestLog(requestType,
+                String.format("Rate limit budget exhausted; sending in %dms", delayMs),
+                "RATE_LIMITED");
+        }
     }
 
     private void handleMessage(String messageText)
@@ -742,6 +1079,11 @@ public class OpenAIRealtimeService
 
             log.debug("Handling message type: {}", type);
 
+            if (outOfBandClassifier.route(type, message))
+            {
+                return;
+            }
+
             switch (type)
             {
                 case "session.created":
@@ -762,6 +1104,10 @@ public class OpenAIRealtimeService
 
                 case "input_audio_buffer.committed":
                     log.info("Audio buffer committed, processing...");
+                    latencyTracker.mark(TurnStage.COMMITTED);
+                    // Server VAD commits on its own; everything appended so far now belongs to a committed turn
+                    audioBufferSize.set(0);
+                    uncommittedSpeech = false;
                     if (eventListener != null)
                     {
                         eventListener.onRequestLog("API Response", "Audio buffer committed for processing", "200");
@@ -771,6 +1117,8 @@ public class OpenAIRealtimeService
 
                 case "input_audio_buffer.speech_started":
                     log.info("Speech detected");
+                    uncommittedSpeech = true;
+                    endpointer.onSpeechStarted(System.currentTimeMillis());
                     if (eventListener != null)
                     {
                         eventListener.onSpeechStarted();
@@ -778,7 +1126,12 @@ public class OpenAIRealtimeService
                     break;
 
                 case "input_audio_buffer.speech_stopped":
-                    log.info("Speech ended");
+                    long speechStoppedTime = System.currentTimeMillis();
+                    log.info("Speech ended; end of turn detected {}ms after the last voiced frame (silence window {}ms)",
+                        lastVoicedFrameTime > 0 ? speechStoppedTime - lastVoicedFrameTime : -1, activeSilenceMs);
+                    latencyTracker.mark(TurnStage.SPEECH_STOPPED);
+                    endpointer.onTurnEnded(speechStoppedTime);
+                    retuneSilenceWindow();
                     if (eventListener != null)
                     {
                         eventListener.onSpeechStopped();
@@ -787,10 +1140,17 @@ public class OpenAIRealtimeService
 
                 case "conversation.item.created":
                     log.info("Conversation item created");
+                    compactor.onItemCreated(message.path("item"));
+                    break;
+
+                case "conversation.item.deleted":
+                    log.debug("Conversation item deleted: {}", message.path("item_id").asText());
+                    compactor.onItemDeleted(message.path("item_id").asText());
                     break;
 
                 case "response.created":
                     log.info("Response generation started");
+                    latencyTracker.mark(TurnStage.RESPONSE_CREATED);
                     if (eventListener != null)
                     {
                         eventListener.onResponseStarted();
@@ -836,6 +1196,7 @@ public class OpenAIRealtimeService
                 case "response.audio.delta":
                     if (message.has("delta"))
                     {
+                        latencyTracker.mark(TurnStage.FIRST_AUDIO_DELTA);
                         String audioBase64 = message.get("delta").asText();
                         byte[] audioData = Base64.getDecoder().decode(audioBase64);
                         log.debug("Received audio delta: {} bytes", audioData.length);
@@ -848,6 +1209,10 @@ public class OpenAIRealtimeService
 
                 case "response.done":
                     log.info("Response completed");
+                    TokenUsage usage = TokenUsage.fromRealtime(message.at("/response/usage"));
+                    usageMeter.record(UsageMeter.FEATURE_VOICE, usage);
+                    rateLimiter.onResponseUsage(usage.inputTokens() + usage.outputTokens());
+                    compactConversationIfDue(usage.inputTokens());
                     if (eventListener != null)
                     {
                         eventListener.onRequestLog("API Response", "AI response generation completed", "200");
@@ -859,6 +1224,16 @@ public class OpenAIRealtimeService
                     handleApiError(message);
                     break;
 
+                case "rate_limits.updated":
+                    long now = System.currentTimeMillis();
+                    rateLimiter.onRateLimitsUpdated(message.path("rate_limits"), now);
+                    log.debug("Rate limits updated: {}", rateLimiter.describe(now));
+                    if (eventListener != null)
+                    {
+                        eventListener.onTraceMessage("Rate Limits: " + rateLimiter.describe(now) + " [200]");
+                    }
+                    break;
+
                 case "conversation.item.input_audio_transcription.delta":
                     // Route transcript deltas to TRACE level logging
                     if (eventListener != null)
@@ -870,6 +1245,11 @@ public class OpenAIRealtimeService
                 case "conversation.item.input_audio_transcription.completed":
                     // Extract user transcript text
                     log.debug("Input audio transcription completed");
+                    latencyTracker.mark(TurnStage.TRANSCRIPTION_COMPLETED);
+                    if (message.has("transcript"))
+                    {
+                        compactor.onItemText(message.path("item_id").asText(), message.get("transcript").asText());
+                    }
                     if (eventListener != null && message.has("transcript"))
                     {
                         String transcript = message.get("transcript").asText();
@@ -892,6 +1272,10 @@ public class OpenAIRealtimeService
                 case "response.audio_transcript.done":
                     // Extract complete agent transcript
                     log.debug("Agent audio transcript completed");
+                    if (message.has("transcript"))
+                    {
+                        compactor.onItemText(message.path("item_id").asText(), message.get("transcript").asText());
+                    }
                     if (eventListener != null && message.has("transcript"))
                     {
                         String transcript = message.get("transcript").asText();
@@ -970,7 +1354,7 @@ public class OpenAIRealtimeService
 
         log.error("OpenAI API error: {} (code: {})", errorMessage, errorCode);
 
-        resetBackoffUnlessTooManyRequests(errorMessage);
+        onErrorCode(errorCode);
 
         if (eventListener != null)
         {
@@ -982,6 +1366,7 @@ public class OpenAIRealtimeService
     {
         String itemId = message.has("item_id") ? message.get("item_id").asText() : "unknown";
         String errorMessage = "Transcription failed";
+        String errorCode = null;
 
         if (message.has("error"))
         {
@@ -990,11 +1375,15 @@ public class OpenAIRealtimeService
             {
                 errorMessage = error.get("message").asText();
             }
+            if (error.has("code"))
+            {
+                errorCode = error.get("code").asText();
+            }
         }
 
         log.error("Audio transcription failed for item '{}': {}", itemId, errorMessage);
 
-        resetBackoffUnlessTooManyRequests(errorMessage);
+        onErrorCode(errorCode);
 
         if (eventListener != null)
         {
@@ -1002,23 +1391,16 @@ public class OpenAIRealtimeService
         }
     }
 
-    private void resetBackoffUnlessTooManyRequests(String errorMessage)
+    /**
+     * Only rate limit errors affect pacing, and only of the events which spend the rate limits; audio keeps flowing
+     */
+    private void onErrorCode(String errorCode)
     {
-        if (errorMessage.contains("429") || errorMessage.contains("Too Many Requests"))
-        {
-            log.warn("Rate limit exceeded. Implementing exponential backoff.");
-            increaseBackoff();
-
-            // Only reset buffer if we have too many consecutive errors to prevent data loss
-            if (consecutiveErrors > 3)
-            {
-                log.warn("Too many consecutive rate limit errors ({}), clearing buffer to recover", consecutiveErrors);
-                clearAudioBuffer();
-            }
-        }
-        else
+        if (RATE_LIMIT_ERROR_CODE.equals(errorCode))
         {
-            resetBackoff();
+            rateLimiter.onRateLimited(System.currentTimeMillis());
+            log.warn("Rate limit exceeded; holding responses and commits until the budget resets: {}",
+                rateLimiter.describe(System.currentTimeMillis()));
         }
     }
 
@@ -4,44 +4,187 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
+import com.eric_eldard.metrics.LatencyHistogram;
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.tokenizer.TokenCounter;
 import com.eric_eldard.util.EnvUtils;
 
 /**
- * Service for calling OpenAI's Chat Completions API to determine if user requests require code responses
+ * Service for calling OpenAI's Chat Completions API to determine if user requests require code responses. With
+ * {@code openai.chat.api} set to {@code responses}, it calls the Responses API instead, chaining each classification to
+ * the last with {@code previous_response_id} so only the turns since are uploaded.
+ * <p>
+ * A classification with no first byte by the observed p90 is hedged: a duplicate request is sent, within a budget, and
+ * whichever responds first is used. Repeated turns are answered from a {@link ClassificationCache}.
  */
 @Slf4j
 public class OpenAIResponsesService
 {
     private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
+    private static final String OPENAI_RESPONSES_URL = "https://api.openai.com/v1/responses";
     private static final String MODEL = EnvUtils.getProperty("openai.chat.model", "OPENAI_CHAT_MODEL", "gpt-5.3-chat-latest");
     private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
+    /// {@code openai.chat.api} value selecting the Responses API over Chat Completions
+    public static final String API_RESPONSES = "responses";
+
     // LLM response label constants
     public static final String LABEL_PROMPT_REQUEST = "[prompt-request]";
     public static final String LABEL_CODE_REQUEST = "[code-request]";
     public static final String LABEL_NON_GENERATIVE_REQUEST = "[non-generative-request]";
 
+    /// Most transcript messages sent with a classifier request; callers needn't pass more than this
+    public static final int MAX_WINDOW_MESSAGES = 20;
+
+    /// Messages the window keeps when it outgrows {@link #MAX_WINDOW_MESSAGES} and restarts
+    static final int MIN_WINDOW_MESSAGES = 10;
+
+    // Routes classifier requests, which all share one long prefix, to the same prompt cache
+    private static final String PROMPT_CACHE_KEY = "junie-voice-classifier";
+
+    // Default p95 time to first token the classifier's context budget is sized for
+    private static final long CLASSIFIER_P95_TARGET_MS = 1500;
+
+    // Before enough first bytes have been timed for a p90, a request is hedged after this long without one
+    private static final long DEFAULT_HEDGE_DELAY_MS = 3000;
+
+    private static final long MIN_HEDGE_DELAY_MS = 250;
+
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    // Default share of classifications which may be hedged, in percent
+    private static final long HEDGE_PERCENT = 10;
+
+    // Default bounds of the classification cache
+    private static final long CLASSIFIER_CACHE_SIZE = 256;
+    private static final long CLASSIFIER_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(30);
+
+    // OpenAI only caches prompts at least this long
+    private static final int MIN_CACHEABLE_TOKENS = 1024;
+
+    private static final String SUMMARY_INSTRUCTIONS = """
+        Summarize the following part of a conversation between a developer and a voice assistant. The summary replaces
+        these turns in the assistant's memory, so keep everything the assistant needs to continue: the developer's goals,
+        requirements, decisions made, names of files, classes, libraries and tools, and any open questions.
+        Drop greetings and filler. Write compact prose, no more than 200 words.
+        """;
+
+    // Classifier instructions, fixed at construction so every request starts with the same prefix
+    @Getter
     private final String instructions;
 
     private final OkHttpClient httpClient;
+    private final HttpResilience resilience;
+    private final ClassificationCache classificationCache;
     private final ObjectMapper objectMapper;
     private final String apiKey;
+    private final String apiUrl;
+    private final UsageMeter usageMeter;
+    private final ContextBudget contextBudget;
+
+    // Null when calling Chat Completions
+    private final String responsesUrl;
+
+    // Hedged requests go to this model, which may be a faster one
+    private final String hedgeModel;
+
+    private final long hedgePercent;
+
+    // Time to the first byte of the response read, whether the original or the hedge
+    // Time to the first event of the stream, not just its headers, which a stalled stream still sends promptly
+    private final LatencyHistogram firstEvent = new LatencyHistogram();
+
+    private final AtomicLong classifications = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private final ScheduledThreadPoolExecutor hedgeScheduler = new ScheduledThreadPoolExecutor(1, runnable ->
+    {
+        Thread thread = new Thread(runnable, "classifier-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Classifier calls block on their stream, so they get threads of their own rather than the common pool's
+    private final ThreadPoolExecutor callExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), runnable ->
+        {
+            Thread thread = new Thread(runnable, "classifier-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // The previous request's transcript window; the next one starts at the same message while it can
+    private List<TranscriptMessage> previousWindow = List.of();
+
+    // The Responses API chain, which holds everything sent up to and including chainedThrough; null when there's none
+    private String previousResponseId;
+    private TranscriptMessage chainedThrough;
+    private String previousOutput = "";
+    private int chainLength = 0;
 
-    public OpenAIResponsesService(String apiKey, String junieConfig)
+    public OpenAIResponsesService(String apiKey, String junieConfig, UsageMeter usageMeter)
+    {
+        this(apiKey, junieConfig, usageMeter, new HttpResilience());
+    }
+
+    /**
+     * @param resilience retries and circuit breaking, shared with the other services calling the same endpoints
+     */
+    public OpenAIResponsesService(String apiKey, String junieConfig, UsageMeter usageMeter, HttpResilience resilience)
     {
         this.apiKey = apiKey;
+        this.usageMeter = usageMeter;
+        this.resilience = resilience;
+        String cacheDir = EnvUtils.getProperty("openai.classifier.cache.dir", "OPENAI_CLASSIFIER_CACHE_DIR", null);
+        this.classificationCache = new ClassificationCache(
+            (int) EnvUtils.getLongProperty("openai.classifier.cache.size", "OPENAI_CLASSIFIER_CACHE_SIZE",
+                CLASSIFIER_CACHE_SIZE),
+            EnvUtils.getLongProperty("openai.classifier.cache.ttl.ms", "OPENAI_CLASSIFIER_CACHE_TTL_MS",
+                CLASSIFIER_CACHE_TTL_MS),
+            cacheDir != null ? Path.of(cacheDir) : null);
+        this.apiUrl = EnvUtils.getProperty("openai.chat.url", "OPENAI_CHAT_URL", OPENAI_API_URL);
+        boolean responsesApi = API_RESPONSES.equalsIgnoreCase(
+            EnvUtils.getProperty("openai.chat.api", "OPENAI_CHAT_API", "chat"));
+        this.responsesUrl = responsesApi
+            ? EnvUtils.getProperty("openai.responses.url", "OPENAI_RESPONSES_URL", OPENAI_RESPONSES_URL)
+            : null;
+        this.contextBudget = new ContextBudget(EnvUtils.getLongProperty("openai.classifier.p95.ms",
+            "OPENAI_CLASSIFIER_P95_MS", CLASSIFIER_P95_TARGET_MS));
+        this.hedgeModel = EnvUtils.getProperty("openai.classifier.hedge.model", "OPENAI_CLASSIFIER_HEDGE_MODEL", MODEL);
+        this.hedgePercent = EnvUtils.getLongProperty("openai.classifier.hedge.percent",
+            "OPENAI_CLASSIFIER_HEDGE_PERCENT", HEDGE_PERCENT);
+        this.hedgeScheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        this.hedgeScheduler.allowCoreThreadTimeOut(true);
         this.objectMapper = new ObjectMapper();
         this.httpClient = new OkHttpClient.Builder()
             .connectTimeout(30, TimeUnit.SECONDS)
@@ -84,6 +227,13 @@ public class OpenAIResponsesService
         - Casual conversation
         - Questions about how something works conceptually
         """, LABEL_CODE_REQUEST, LABEL_PROMPT_REQUEST, LABEL_NON_GENERATIVE_REQUEST);
+
+        int prefixTokens = TokenCounter.count(instructions);
+        if (prefixTokens < MIN_CACHEABLE_TOKENS)
+        {
+            log.info("Classifier instructions are ~{} tokens; prompts under {} aren't cached until the transcript "
+                + "makes up the difference", prefixTokens, MIN_CACHEABLE_TOKENS);
+        }
     }
 
     /**
@@ -99,6 +249,19 @@ public class OpenAIResponsesService
             this.role = role;
             this.content = content;
         }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof TranscriptMessage message
+                && Objects.equals(role, message.role) && Objects.equals(content, message.content);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(role, content);
+        }
     }
 
     /**
@@ -108,88 +271,486 @@ public class OpenAIResponsesService
      * @return CompletableFuture that resolves to labeled response: LABEL_CODE_REQUEST, LABEL_PROMPT_REQUEST, or LABEL_NON_GENERATIVE_REQUEST
      */
     public CompletableFuture<String> analyzeForCodeRequest(List<TranscriptMessage> transcriptMessages)
+    {
+        return analyzeForCodeRequest(transcriptMessages, null);
+    }
+
+    /**
+     * Analyzes transcript messages as {@link #analyzeForCodeRequest(List)}, streaming the result. The label is
+     * recognised from the first tokens; generated code or prompt content is then passed on as it arrives, while a
+     * non-generative result ends the call there.
+     *
+     * @param transcriptMessages List of recent transcript messages
+     * @param listener           receives the label and content as they stream; may be null
+     * @return CompletableFuture that resolves to the complete labeled response; cancelling it cancels the request
+     */
+    public CompletableFuture<String> analyzeForCodeRequest(List<TranscriptMessage> transcriptMessages,
+                                                           ClassifierStreamListener listener)
+    {
+        String cacheKey = ClassificationCache.key(MODEL, instructions, transcriptMessages);
+        if (cacheKey != null)
+        {
+            String cached = classificationCache.get(cacheKey, System.currentTimeMillis());
+            if (cached != null)
+            {
+                log.info("Classifier cache hit: {}", cached);
+                // Replayed through the listener, just as a streamed result would be
+                new LabelledStream(listener).append(cached);
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return classify(transcriptMessages, listener, cacheKey, true);
+    }
+
+    /**
+     * Sends the classification, hedging it if it's slow to respond
+     *
+     * @param chain on the Responses API, whether it may chain to the previous response rather than start a new chain
+     */
+    private CompletableFuture<String> classify(List<TranscriptMessage> transcriptMessages,
+                                               ClassifierStreamListener listener, String cacheKey, boolean chain)
+    {
+        Request request;
+        Request hedgeRequest;
+        ChainStep step = null;
+        int inputTokens;
+        try
+        {
+            List<TranscriptMessage> window;
+            ObjectNode requestBody;
+            if (responsesUrl != null)
+            {
+                step = chain ? nextChainStep(transcriptMessages) : newChainStep(transcriptMessages);
+                window = step.input;
+                requestBody = createResponsesRequestBody(step);
+            }
+            else
+            {
+                window = contextBudget.fit(selectWindow(transcriptMessages));
+                requestBody = createRequestBody(window);
+            }
+            String jsonRequest = objectMapper.writeValueAsString(requestBody);
+            inputTokens = TokenCounter.count(instructions) + window.stream()
+                .mapToInt(message -> TokenCounter.count(message.content))
+                .sum();
+            log.debug("Classifier request: {} messages, {} tokens{}", window.size(), inputTokens,
+                step != null && step.previousResponseId != null ? ", chained to " + step.previousResponseId : "");
+
+            request = buildRequest(jsonRequest);
+            if (hedgeModel.equals(MODEL))
+            {
+                hedgeRequest = request;
+            }
+            else
+            {
+                hedgeRequest = buildRequest(objectMapper.writeValueAsString(requestBody.deepCopy()
+                    .put("model", hedgeModel)));
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Error creating OpenAI Responses API request", e);
+            return CompletableFuture.completedFuture(LABEL_NON_GENERATIVE_REQUEST);
+        }
+
+        classifications.incrementAndGet();
+        HedgedCall hedged = new HedgedCall(transcriptMessages, step, listener, cacheKey, inputTokens);
+        hedged.start(request, false);
+        long hedgeDelayMs = hedgeDelayMs();
+        ScheduledFuture<?> pendingHedge = hedgeScheduler.schedule(() -> hedged.hedge(hedgeRequest, hedgeDelayMs),
+            hedgeDelayMs, TimeUnit.MILLISECONDS);
+
+        // Cancelling the future abandons the HTTP calls as well, rather than leaving them to stream on unread
+        hedged.future.whenComplete((result, error) ->
+        {
+            pendingHedge.cancel(false);
+            if (hedged.future.isCancelled())
+            {
+                hedged.cancelAll();
+            }
+        });
+        return hedged.future;
+    }
+
+    /**
+     * Reads a successful classifier response through to its labeled result
+     *
+     * @return the result, or null if the stream lost its claim to another of the classification's requests
+     */
+    private String readResult(Call call, Response response, ClassifierStreamListener listener, long sentAt,
+                              ChainStep step, String cacheKey, int inputTokens, BooleanSupplier claim)
+        throws IOException
+    {
+        String streamed =
+            readClassifierStream(call, response.body().source(), listener, sentAt, step, inputTokens, claim);
+        if (streamed == null)
+        {
+            return null;
+        }
+        String result = streamed.trim();
+        if (step != null)
+        {
+            completeChainStep(step, result);
+        }
+        log.info("OpenAI Responses API result: {}", result);
+
+        // Enhanced debugging for prompt detection
+        if (result.startsWith(LABEL_PROMPT_REQUEST))
+        {
+            log.info("✅ PROMPT REQUEST DETECTED");
+        }
+        else if (result.startsWith(LABEL_CODE_REQUEST))
+        {
+            log.info("✅ CODE REQUEST DETECTED");
+        }
+        else if (result.startsWith(LABEL_NON_GENERATIVE_REQUEST))
+        {
+            log.info("✅ NON-GENERATIVE REQUEST DETECTED");
+        }
+        else if (result.isEmpty())
+        {
+            log.warn("Empty response from OpenAI API");
+            return LABEL_NON_GENERATIVE_REQUEST; // Default to non-generative on unexpected format
+        }
+        else
+        {
+            log.warn("⚠️ NO RECOGNIZED LABEL DETECTED - Response: {}", result);
+            return result; // Not cached, so the next asking gets another answer
+        }
+
+        if (cacheKey != null)
+        {
+            classificationCache.put(cacheKey, result, System.currentTimeMillis());
+        }
+        return result;
+    }
+
+    /**
+     * @return how long to wait for the first event before hedging: the observed p90, once there are enough samples
+     */
+    long hedgeDelayMs()
+    {
+        if (firstEvent.getCount() < MIN_HEDGE_SAMPLES)
+        {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MS, Math.round(firstEvent.getPercentileMs(90)));
+    }
+
+    /**
+     * @return the classification cache's hits and misses, for Stats
+     */
+    public String describeCache()
+    {
+        return classificationCache.describe();
+    }
+
+    /**
+     * @return e.g. {@code 3 of 120 calls hedged (2 won), hedging after 950ms}, for Stats
+     */
+    public String describeHedging()
+    {
+        return String.format("%d of %d calls hedged (%d won), hedging after %dms; first event %s", hedgesFired.get(),
+            classifications.get(), hedgesWon.get(), hedgeDelayMs(), firstEvent.summarize());
+    }
+
+    /**
+     * Reads a chat completions or Responses API event stream, passing on content as it arrives
+     *
+     * @param sentAt when the request was sent, in {@link System#nanoTime()} terms
+     * @param step        the Responses API chain step, which is given the response's id; null for chat completions
+     * @param inputTokens the request's own count of its input, for estimating usage the stream doesn't report
+     * @param claim       called at the first event; false if another request has been read instead
+     * @return the streamed text; just the label for a non-generative result, whose call is cancelled once recognised;
+     * null if the claim failed
+     */
+    private String readClassifierStream(Call call, BufferedSource source, ClassifierStreamListener listener,
+                                        long sentAt, ChainStep step, int inputTokens, BooleanSupplier claim)
+        throws IOException
+    {
+        LabelledStream stream = new LabelledStream(listener);
+        boolean claimed = false;
+        boolean firstToken = true;
+        boolean usageReported = false;
+        try
+        {
+            for (String line = source.readUtf8Line(); line != null; line = source.readUtf8Line())
+            {
+                if (!line.startsWith("data:"))
+                {
+                    continue; // Blank separators and SSE comments
+                }
+                if (!claimed)
+                {
+                    if (!claim.getAsBoolean())
+                    {
+                        return null;
+                    }
+                    claimed = true;
+                }
+                String data = line.substring("data:".length()).trim();
+                if ("[DONE]".equals(data))
+                {
+                    break;
+                }
+
+                JsonNode chunk = objectMapper.readTree(data);
+                String delta;
+                if (step == null)
+                {
+                    if (chunk.hasNonNull("usage"))
+                    {
+                        recordUsage(TokenUsage.fromChatCompletions(chunk.get("usage")));
+                        usageReported = true;
+                    }
+                    delta = chunk.at("/choices/0/delta/content").asText("");
+                }
+                else
+                {
+                    String type = chunk.path("type").asText();
+                    if ("response.created".equals(type))
+                    {
+                        step.responseId = chunk.at("/response/id").asText(null);
+                    }
+                    else if ("response.completed".equals(type) || "response.incomplete".equals(type))
+                    {
+                        recordUsage(TokenUsage.fromResponses(chunk.at("/response/usage")));
+                        usageReported = true;
+                    }
+                    delta = "response.output_text.delta".equals(type) ? chunk.path("delta").asText("") : "";
+                }
+                if (!delta.isEmpty() && firstToken)
+                {
+                    // Prefill time, which is what the size of the context drives
+                    contextBudget.recordTimeToFirstToken(System.nanoTime() - sentAt);
+                    firstToken = false;
+                }
+                if (!delta.isEmpty() && !stream.append(delta))
+                {
+                    call.cancel();
+                    log.debug("Non-generative request recognised after {} chars; stream cancelled",
+                        stream.getText().length());
+                    return LABEL_NON_GENERATIVE_REQUEST;
+                }
+            }
+        }
+        finally
+        {
+            if (claimed && !usageReported)
+            {
+                // Cut off before the usage arrived; most often a non-generative result, so still worth counting
+                recordUsage(TokenUsage.estimated(inputTokens, TokenCounter.count(stream.getText())));
+            }
+        }
+        return stream.getText();
+    }
+
+    private Request buildRequest(String jsonRequest)
+    {
+        return new Request.Builder()
+            .url(responsesUrl != null ? responsesUrl : apiUrl)
+            .header("Authorization", "Bearer " + apiKey)
+            .header("Content-Type", "application/json")
+            .post(RequestBody.create(jsonRequest, JSON))
+            .build();
+    }
+
+    private void recordUsage(TokenUsage usage)
+    {
+        usageMeter.record(UsageMeter.FEATURE_CLASSIFIER, usage);
+        log.debug("Classifier prompt cache: {} of {} input tokens cached ({}%)", usage.cachedInputTokens(),
+            usage.inputTokens(), Math.round(usage.cacheHitRatio() * 100));
+    }
+
+    /**
+     * @return the classifier's API and its context's current token budget and latency target, for Stats
+     */
+    public String describeContextBudget()
+    {
+        return (responsesUrl != null ? "Responses API, chained" : "Chat Completions API") + "; "
+            + contextBudget.describe();
+    }
+
+    /**
+     * Condenses part of a voice conversation, so it can stand in for those turns in the Realtime session
+     *
+     * @param transcript the turns to condense, one {@code Role: text} line per message
+     * @return CompletableFuture that resolves to the summary, or null if the call failed
+     */
+    public CompletableFuture<String> summarizeConversation(String transcript)
     {
         return CompletableFuture.supplyAsync(() ->
         {
+            ObjectNode requestBody = objectMapper.createObjectNode();
+            requestBody.put("model", MODEL);
+            requestBody.put("max_completion_tokens", 1000);
+            ArrayNode messages = requestBody.putArray("messages");
+            messages.addObject().put("role", "system").put("content", SUMMARY_INSTRUCTIONS);
+            messages.addObject().put("role", "user").put("content", transcript);
+
             try
             {
-                ObjectNode requestBody = createRequestBody(transcriptMessages);
-                String jsonRequest = objectMapper.writeValueAsString(requestBody);
-
                 Request request = new Request.Builder()
-                    .url(OPENAI_API_URL)
+                    .url(apiUrl)
                     .header("Authorization", "Bearer " + apiKey)
                     .header("Content-Type", "application/json")
-                    .post(RequestBody.create(jsonRequest, JSON))
+                    .post(RequestBody.create(objectMapper.writeValueAsString(requestBody), JSON))
                     .build();
 
-                try (Response response = httpClient.newCall(request).execute())
+                try (Response response = resilience.execute(httpClient, request))
                 {
+                    String responseBody = response.body() != null ? response.body().string() : "";
                     if (!response.isSuccessful())
                     {
-                        log.error("OpenAI API call failed with status: {}, body: {}",
-                            response.code(), response.body() != null ? response.body().string() : "null");
-                        return LABEL_NON_GENERATIVE_REQUEST; // Default to non-generative on error
+                        log.error("Conversation summary failed with status: {}, body: {}", response.code(),
+                            responseBody);
+                        return null;
                     }
 
-                    String responseBody = response.body().string();
                     JsonNode responseJson = objectMapper.readTree(responseBody);
-
-                    JsonNode choices = responseJson.get("choices");
-                    if (choices != null && choices.isArray() && choices.size() > 0)
-                    {
-                        JsonNode firstChoice = choices.get(0);
-                        JsonNode message = firstChoice.get("message");
-                        if (message != null)
-                        {
-                            // OpenAI handles web search natively, no custom function handling needed
-
-                            JsonNode content = message.get("content");
-                            if (content != null)
-                            {
-                                String result = content.asText().trim();
-                                log.info("OpenAI Responses API result: {}", result);
-
-                                // Enhanced debugging for prompt detection
-                                if (result.startsWith(LABEL_PROMPT_REQUEST))
-                                {
-                                    log.info("✅ PROMPT REQUEST DETECTED");
-                                }
-                                else if (result.startsWith(LABEL_CODE_REQUEST))
-                                {
-                                    log.info("✅ CODE REQUEST DETECTED");
-                                }
-                                else if (result.startsWith(LABEL_NON_GENERATIVE_REQUEST))
-                                {
-                                    log.info("✅ NON-GENERATIVE REQUEST DETECTED");
-                                }
-                                else
-                                {
-                                    log.warn("⚠️ NO RECOGNIZED LABEL DETECTED - Response: {}", result);
-                                }
-
-                                return result;
-                            }
-                        }
-                    }
-
-                    log.warn("Unexpected response format from OpenAI API: {}", responseBody);
-                    return LABEL_NON_GENERATIVE_REQUEST; // Default to non-generative on unexpected format
+                    usageMeter.record(UsageMeter.FEATURE_COMPACTION,
+                        TokenUsage.fromChatCompletions(responseJson.get("usage")));
+                    String summary = responseJson.at("/choices/0/message/content").asText("").trim();
+                    return summary.isEmpty() ? null : summary;
                 }
             }
             catch (IOException e)
             {
-                log.error("Error calling OpenAI Responses API", e);
-                return LABEL_NON_GENERATIVE_REQUEST; // Default to non-generative on error
+                log.error("Error summarizing conversation", e);
+                return null;
             }
         });
     }
 
+    /**
+     * Picks the transcript messages to send. Prompt caching matches on an exact prefix, so rather than sliding along
+     * one message per request, the window keeps its start and only grows, until it outgrows
+     * {@link #MAX_WINDOW_MESSAGES} and restarts from the latest {@link #MIN_WINDOW_MESSAGES}. Consecutive requests then
+     * share everything but the newest messages.
+     *
+     * @param transcriptMessages recent transcript messages, oldest first
+     */
+    synchronized List<TranscriptMessage> selectWindow(List<TranscriptMessage> transcriptMessages)
+    {
+        int size = transcriptMessages.size();
+        int start = Math.max(0, size - MIN_WINDOW_MESSAGES);
+        if (!previousWindow.isEmpty())
+        {
+            int anchor = transcriptMessages.indexOf(previousWindow.getFirst());
+            // The previous window's last message may have been a transcript still streaming in; the rest must match
+            List<TranscriptMessage> settled = previousWindow.subList(0, previousWindow.size() - 1);
+            if (anchor >= 0 && size - anchor <= MAX_WINDOW_MESSAGES && size - anchor >= settled.size()
+                && transcriptMessages.subList(anchor, anchor + settled.size()).equals(settled))
+            {
+                start = anchor;
+            }
+        }
+        previousWindow = List.copyOf(transcriptMessages.subList(start, size));
+        return previousWindow;
+    }
+
+    /**
+     * Picks what to send on the Responses API. While the previous response holds the conversation up to a message
+     * that's still in the transcript, only the turns after it are sent, chained to that response; the classifier's own
+     * output, which the panel adds to the transcript, is already in the chain and is left out. Otherwise, or once the
+     * chain holds {@link #MAX_WINDOW_MESSAGES} turns, a new chain starts from the window.
+     */
+    synchronized ChainStep nextChainStep(List<TranscriptMessage> transcriptMessages)
+    {
+        TranscriptMessage latest = transcriptMessages.isEmpty() ? null : transcriptMessages.getLast();
+        int anchor = previousResponseId != null ? transcriptMessages.lastIndexOf(chainedThrough) : -1;
+        if (anchor >= 0 && chainLength < MAX_WINDOW_MESSAGES)
+        {
+            List<TranscriptMessage> newTurns = new ArrayList<>();
+            for (TranscriptMessage message : transcriptMessages.subList(anchor + 1, transcriptMessages.size()))
+            {
+                if (!"assistant".equals(message.role) || !previousOutput.contains(message.content.strip()))
+                {
+                    newTurns.add(message);
+                }
+            }
+            if (!newTurns.isEmpty())
+            {
+                return new ChainStep(previousResponseId, contextBudget.fit(newTurns), latest,
+                    chainLength + newTurns.size());
+            }
+        }
+        return newChainStep(transcriptMessages);
+    }
+
+    /**
+     * @return a step which starts a new chain from the window
+     */
+    synchronized ChainStep newChainStep(List<TranscriptMessage> transcriptMessages)
+    {
+        TranscriptMessage latest = transcriptMessages.isEmpty() ? null : transcriptMessages.getLast();
+        List<TranscriptMessage> window = contextBudget.fit(selectWindow(transcriptMessages));
+        return new ChainStep(null, window, latest, window.size());
+    }
+
+    /**
+     * Makes a finished call's response the one the next classification chains to
+     */
+    synchronized void completeChainStep(ChainStep step, String output)
+    {
+        if (step.responseId == null)
+        {
+            resetChain();
+            return;
+        }
+        previousResponseId = step.responseId;
+        chainedThrough = step.last;
+        chainLength = step.chainLength;
+        previousOutput = output;
+    }
+
+    private synchronized void resetChain()
+    {
+        previousResponseId = null;
+        chainedThrough = null;
+        chainLength = 0;
+        previousOutput = "";
+    }
+
+    /**
+     * Lays out a Responses API request like {@link #createRequestBody(List)}. The instructions aren't carried over by
+     * {@code previous_response_id}, so they're sent every time; they're cached with the rest of the chain's prefix.
+     */
+    private ObjectNode createResponsesRequestBody(ChainStep step)
+    {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", MODEL);
+        requestBody.put("max_output_tokens", 1000);
+        requestBody.put("stream", true);
+        requestBody.put("store", true);
+        requestBody.put("truncation", "auto");
+        requestBody.put("prompt_cache_key", PROMPT_CACHE_KEY);
+        requestBody.put("instructions", instructions);
+        if (step.previousResponseId != null)
+        {
+            requestBody.put("previous_response_id", step.previousResponseId);
+        }
+
+        ArrayNode input = requestBody.putArray("input");
+        for (TranscriptMessage msg : step.input)
+        {
+            input.addObject().put("role", msg.role).put("content", msg.content);
+        }
+        return requestBody;
+    }
+
+    /**
+     * Lays out the request so everything up to the transcript is byte-identical on every call: the fixed parameters,
+     * then the instructions, which never change after construction
+     */
     private ObjectNode createRequestBody(List<TranscriptMessage> transcriptMessages)
     {
         ObjectNode requestBody = objectMapper.createObjectNode();
         requestBody.put("model", MODEL);
         requestBody.put("max_completion_tokens", 1000);
+        requestBody.put("stream", true);
+        requestBody.putObject("stream_options").put("include_usage", true);
+        requestBody.put("prompt_cache_key", PROMPT_CACHE_KEY);
 
         ArrayNode messages = objectMapper.createArrayNode();
 
@@ -211,4 +772,264 @@ public class OpenAIResponsesService
         requestBody.set("messages", messages);
         return requestBody;
     }
-}
\ No newline at end of file
+
+    /**
+     * One classification's requests: the original, and a hedge if the original is slow to respond. Whichever streams
+     * its first event first is read and the other cancelled, so only one ever streams to the listener.
+     */
+    private class HedgedCall
+    {
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        // Kept to classify again without the chain, if the chained requests fail
+        private final List<TranscriptMessage> transcriptMessages;
+
+        private final ChainStep step;
+
+        private final ClassifierStreamListener listener;
+
+        // Null if the result isn't to be cached
+        private final String cacheKey;
+
+        private final int inputTokens;
+
+        private final List<Call> calls = new CopyOnWriteArrayList<>();
+
+        // Set by the first request to stream an event, which is then the one read
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        // Requests started which haven't yet failed
+        private final AtomicInteger running = new AtomicInteger();
+
+        private HedgedCall(List<TranscriptMessage> transcriptMessages, ChainStep step,
+                           ClassifierStreamListener listener, String cacheKey, int inputTokens)
+        {
+            this.transcriptMessages = transcriptMessages;
+            this.step = step;
+            this.listener = listener;
+            this.cacheKey = cacheKey;
+            this.inputTokens = inputTokens;
+        }
+
+        private void start(Request request, boolean hedge)
+        {
+            running.incrementAndGet();
+            CompletableFuture.runAsync(() -> execute(request, hedge), callExecutor);
+        }
+
+        /**
+         * Tracks each call made, retries included, so it can be cancelled
+         */
+        private void register(Call call)
+        {
+            calls.add(call);
+            if (claimed.get() || future.isDone())
+            {
+                // Made after the other request responded, or after the classification was abandoned
+                call.cancel();
+            }
+        }
+
+        /**
+         * Sends the hedge, unless a response has arrived or the hedge budget is spent
+         */
+        private void hedge(Request request, long delayMs)
+        {
+            if (future.isDone() || claimed.get())
+            {
+                return;
+            }
+            if (hedgesFired.get() + 1 > classifications.get() * hedgePercent / 100.0)
+            {
+                log.debug("No classifier response after {}ms; hedge budget spent", delayMs);
+                return;
+            }
+            hedgesFired.incrementAndGet();
+            log.info("No classifier response after {}ms; hedging with {}", delayMs, hedgeModel);
+            start(request, true);
+        }
+
+        private void cancelAll()
+        {
+            calls.forEach(Call::cancel);
+        }
+
+        private void execute(Request request, boolean hedge)
+        {
+            AtomicBoolean claimedByThis = new AtomicBoolean(false);
+            AtomicReference<Call> current = new AtomicReference<>();
+            long sentAt = System.nanoTime();
+            try (Response response = resilience.execute(httpClient, request, call ->
+            {
+                current.set(call);
+                register(call);
+            }))
+            {
+                Call call = current.get();
+                if (!response.isSuccessful())
+                {
+                    log.error("OpenAI API call failed with status: {}, body: {}",
+                        response.code(), response.body() != null ? response.body().string() : "null");
+                    fail();
+                    return;
+                }
+                String result = readResult(call, response, listener, sentAt, step, cacheKey, inputTokens, () ->
+                {
+                    claimedByThis.set(claim(call, hedge, sentAt));
+                    return claimedByThis.get();
+                });
+                if (claimedByThis.get())
+                {
+                    future.complete(result);
+                }
+                else if (result != null)
+                {
+                    log.warn("Classifier stream ended without an event");
+                    fail();
+                }
+            }
+            catch (IOException e)
+            {
+                Call call = current.get();
+                if (call != null && call.isCanceled())
+                {
+                    log.debug("Classifier call cancelled");
+                }
+                else if (e instanceof HttpResilience.CircuitOpenException)
+                {
+                    log.warn(e.getMessage());
+                }
+                else
+                {
+                    log.error("Error calling OpenAI Responses API", e);
+                }
+                if (claimedByThis.get())
+                {
+                    future.complete(LABEL_NON_GENERATIVE_REQUEST); // Default to non-generative on error
+                }
+                else
+                {
+                    fail();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // E.g. from the listener; the classification must still complete, or it's never delivered
+                log.error("Error reading classifier response", e);
+                if (claimedByThis.get())
+                {
+                    future.complete(LABEL_NON_GENERATIVE_REQUEST);
+                }
+                else
+                {
+                    fail();
+                }
+            }
+        }
+
+        /**
+         * Makes the call the one read, on its first event, and cancels the others
+         *
+         * @return false if another call streamed first, in which case this one is cancelled
+         */
+        private boolean claim(Call call, boolean hedge, long sentAt)
+        {
+            if (!claimed.compareAndSet(false, true))
+            {
+                call.cancel();
+                return false;
+            }
+            firstEvent.recordNanos(System.nanoTime() - sentAt);
+            calls.stream().filter(other -> other != call).forEach(Call::cancel);
+            if (hedge)
+            {
+                hedgesWon.incrementAndGet();
+                log.info("Hedged classifier request streamed first");
+            }
+            return true;
+        }
+
+        /**
+         * Gives up on the classification once every request sent for it has failed. A chained classification is first
+         * sent again on a new chain, as the previous response may have expired.
+         */
+        private void fail()
+        {
+            if (running.decrementAndGet() != 0 || claimed.get())
+            {
+                return;
+            }
+            if (step != null)
+            {
+                resetChain();
+            }
+            if (step == null || step.previousResponseId == null || future.isDone())
+            {
+                future.complete(LABEL_NON_GENERATIVE_REQUEST); // Default to non-generative on error
+                return;
+            }
+
+            log.info("Chained classification to {} failed; retrying on a new chain", step.previousResponseId);
+            CompletableFuture<String> unchained = classify(transcriptMessages, listener, cacheKey, false);
+            unchained.whenComplete((result, error) ->
+                future.complete(error == null ? result : LABEL_NON_GENERATIVE_REQUEST));
+            future.whenComplete((result, error) ->
+            {
+                if (future.isCancelled())
+                {
+                    unchained.cancel(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * One classification's place in the Responses API chain
+     */
+    static class ChainStep
+    {
+        // Null to start a new chain
+        final String previousResponseId;
+
+        final List<TranscriptMessage> input;
+
+        // The transcript's latest message, which the chain holds once this step completes
+        final TranscriptMessage last;
+
+        final int chainLength;
+
+        // Set from response.created
+        volatile String responseId;
+
+        ChainStep(String previousResponseId, List<TranscriptMessage> input, TranscriptMessage last, int chainLength)
+        {
+            this.previousResponseId = previousResponseId;
+            this.input = input;
+            this.last = last;
+            this.chainLength = chainLength;
+        }
+    }
+
+    /**
+     * Receives a streamed classification as it arrives
+     */
+    public interface ClassifierStreamListener
+    {
+        /**
+         * Called once, as soon as the response is known to be a code or prompt request
+         */
+        void onLabel(String label);
+
+        /**
+         * Called with each new piece of the content after the label
+         */
+        void onContent(String delta);
+
+        /**
+         * Called if the request is abandoned part way, e.g. superseded by a newer one; no more content will arrive
+         */
+        default void onCancelled()
+        {
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+
+/**
+ * Classifies the conversation with out-of-band Realtime responses: text-only responses which write to no conversation.
+ * The classifier reads the context the session already holds instead of a re-uploaded transcript, and its answer leaves
+ * the voice conversation untouched. Events for these responses are routed here, never to the voice pipeline.
+ */
+@Slf4j
+class OutOfBandClassifier
+{
+    static final String PURPOSE = "classification";
+
+    private static final String CANCEL_PREFIX = "classify_cancel_";
+
+    // A response which hasn't finished after this long is given up on, and cancelled
+    private static final long TIMEOUT_MS = 30_000;
+
+    private final ObjectMapper objectMapper;
+
+    private final Consumer<String> sender;
+
+    private final UsageMeter usageMeter;
+
+    private final long timeoutMs;
+
+    private final AtomicLong requestCounter = new AtomicLong();
+
+    // Sent, but not yet acknowledged by response.created, which is when the server's response id is known
+    private final Map<String, Pending> byRequestId = new ConcurrentHashMap<>();
+
+    // Acknowledged, until response.done; kept after the future completes so the rest of the events stay routed here
+    private final Map<String, Pending> byResponseId = new ConcurrentHashMap<>();
+
+    // Timed out and cancelled; their remaining events are dropped here, up to response.done, so the voice pipeline
+    // never sees them
+    private final Set<String> abandonedResponseIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param sender sends a client event over the Realtime socket
+     */
+    OutOfBandClassifier(ObjectMapper objectMapper, Consumer<String> sender, UsageMeter usageMeter)
+    {
+        this(objectMapper, sender, usageMeter, TIMEOUT_MS);
+    }
+
+    OutOfBandClassifier(ObjectMapper objectMapper, Consumer<String> sender, UsageMeter usageMeter, long timeoutMs)
+    {
+        this.objectMapper = objectMapper;
+        this.sender = sender;
+        this.usageMeter = usageMeter;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return the labeled result; cancelling it cancels the response
+     */
+    CompletableFuture<String> classify(String instructions, ClassifierStreamListener listener)
+    {
+        String requestId = "classify_" + requestCounter.incrementAndGet();
+        Pending pending = new Pending(new LabelledStream(listener));
+        byRequestId.put(requestId, pending);
+
+        ObjectNode event = objectMapper.createObjectNode();
+        // Errors name the client event which caused them; see route()
+        event.put("event_id", requestId);
+        event.put("type", "response.create");
+        ObjectNode response = event.putObject("response");
+        response.put("conversation", "none");
+        response.set("modalities", objectMapper.createArrayNode().add("text"));
+        response.put("instructions", instructions);
+        response.put("max_response_output_tokens", 1000);
+        response.putObject("metadata").put("purpose", PURPOSE).put("request_id", requestId);
+        sender.accept(event.toString());
+        log.debug("Sent out-of-band classification {}", requestId);
+
+        pending.future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((result, error) ->
+        {
+            if (error instanceof TimeoutException)
+            {
+                log.debug("Out-of-band classification {} timed out", requestId);
+                byRequestId.remove(requestId);
+                String responseId = pending.responseId;
+                if (responseId != null && byResponseId.remove(responseId) != null)
+                {
+                    abandonedResponseIds.add(responseId);
+                    cancel(pending);
+                }
+            }
+            else if (pending.future.isCancelled())
+            {
+                // Before response.created this is a no-op; the cancel is sent once the response id is known
+                cancel(pending);
+            }
+        });
+        return pending.future;
+    }
+
+    /**
+     * @return true if the event belongs to an out-of-band classification, and was handled here
+     */
+    boolean route(String type, JsonNode message)
+    {
+        switch (type)
+        {
+            case "response.created":
+            {
+                JsonNode response = message.path("response");
+                if (!PURPOSE.equals(response.at("/metadata/purpose").asText()))
+                {
+                    return false;
+                }
+                Pending pending = byRequestId.remove(response.at("/metadata/request_id").asText());
+                if (pending == null)
+                {
+                    // Acknowledged after it timed out
+                    String responseId = response.path("id").asText();
+                    abandonedResponseIds.add(responseId);
+                    sendCancel(responseId);
+                    return true;
+                }
+                pending.responseId = response.path("id").asText();
+                byResponseId.put(pending.responseId, pending);
+                if (pending.future.isCancelled())
+                {
+                    cancel(pending);
+                }
+                return true;
+            }
+
+            case "response.done":
+            {
+                JsonNode response = message.path("response");
+                String responseId = response.path("id").asText();
+                Pending pending = byResponseId.remove(responseId);
+                if (pending == null)
+                {
+                    if (abandonedResponseIds.remove(responseId))
+                    {
+                        usageMeter.record(UsageMeter.FEATURE_CLASSIFIER,
+                            TokenUsage.fromRealtime(response.path("usage")));
+                        return true;
+                    }
+                    return PURPOSE.equals(response.at("/metadata/purpose").asText());
+                }
+                usageMeter.record(UsageMeter.FEATURE_CLASSIFIER, TokenUsage.fromRealtime(response.path("usage")));
+
+                String text = pending.stream.getText().strip();
+                if (text.isEmpty())
+                {
+                    // No deltas streamed; the text is still in the response's output
+                    text = response.at("/output/0/content/0/text").asText("").strip();
+                }
+                pending.future.complete(text.isEmpty() ? LABEL_NON_GENERATIVE_REQUEST : text);
+                return true;
+            }
+
+            case "error":
+            {
+                String eventId = message.at("/error/event_id").asText();
+                if (eventId.startsWith(CANCEL_PREFIX))
+                {
+                    // The response finished before the cancel reached it
+                    log.debug("Out-of-band cancel had nothing to cancel: {}", message.at("/error/message").asText());
+                    return true;
+                }
+                Pending pending = byRequestId.remove(eventId);
+                if (pending == null)
+                {
+                    return false;
+                }
+                pending.future.completeExceptionally(new IllegalStateException(
+                    "Out-of-band classification rejected: " + message.at("/error/message").asText()));
+                return true;
+            }
+
+            default:
+            {
+                String responseId = message.path("response_id").asText();
+                Pending pending = byResponseId.get(responseId);
+                if (pending == null)
+                {
+                    return abandonedResponseIds.contains(responseId);
+                }
+                if (("response.text.delta".equals(type) || "response.output_text.delta".equals(type))
+                    && !pending.future.isDone() && !pending.stream.append(message.path("delta").asText("")))
+                {
+                    log.debug("Out-of-band classification {} is non-generative; cancelling", pending.responseId);
+                    pending.future.complete(LABEL_NON_GENERATIVE_REQUEST);
+                    cancel(pending);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Fails every classification in flight, e.g. when the socket closes
+     */
+    void failAll(Throwable cause)
+    {
+        byRequestId.values().forEach(pending -> pending.future.completeExceptionally(cause));
+        byResponseId.values().forEach(pending -> pending.future.completeExceptionally(cause));
+        byRequestId.clear();
+        byResponseId.clear();
+        abandonedResponseIds.clear();
+    }
+
+    private void cancel(Pending pending)
+    {
+        if (pending.responseId != null && pending.cancelSent.compareAndSet(false, true))
+        {
+            sendCancel(pending.responseId);
+        }
+    }
+
+    private void sendCancel(String responseId)
+    {
+        sender.accept(objectMapper.createObjectNode()
+            .put("event_id", CANCEL_PREFIX + responseId)
+            .put("type", "response.cancel")
+            .put("response_id", responseId)
+            .toString());
+    }
+
+    private static class Pending
+    {
+        private final LabelledStream stream;
+
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        private volatile String responseId;
+
+        private final AtomicBoolean cancelSent = new AtomicBoolean(false);
+
+        private Pending(LabelledStream stream)
+        {
+            this.stream = stream;
+        }
+    }
+}
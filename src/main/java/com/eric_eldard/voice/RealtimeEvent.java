@@ -0,0 +1,80 @@
+package com.eric_eldard.voice;
+
+/**
+ * Immutable record of an inbound Realtime event, as published on the {@link RealtimeEventBus}
+ */
+public sealed interface RealtimeEvent
+{
+    record Connected() implements RealtimeEvent
+    {
+    }
+
+    record Disconnected() implements RealtimeEvent
+    {
+    }
+
+    /// An event no typed record exists for, passed on raw
+    record Message(String json) implements RealtimeEvent
+    {
+    }
+
+    record Trace(String message) implements RealtimeEvent
+    {
+    }
+
+    record Failure(Throwable error) implements RealtimeEvent
+    {
+    }
+
+    record SpeechStarted() implements RealtimeEvent
+    {
+    }
+
+    record SpeechStopped() implements RealtimeEvent
+    {
+    }
+
+    record UserSpeechEnded(String eventType) implements RealtimeEvent
+    {
+    }
+
+    record ResponseStarted() implements RealtimeEvent
+    {
+    }
+
+    /// Owns its array; publishers hand over a freshly decoded buffer and consumers must not modify it
+    record AudioDelta(byte[] audio) implements RealtimeEvent
+    {
+    }
+
+    record TextDelta(String delta) implements RealtimeEvent
+    {
+        /**
+         * @return one delta with this delta's text followed by the next's
+         */
+        TextDelta append(TextDelta next)
+        {
+            return new TextDelta(delta + next.delta);
+        }
+    }
+
+    record TextResponse(String text) implements RealtimeEvent
+    {
+    }
+
+    record ResponseComplete() implements RealtimeEvent
+    {
+    }
+
+    record UserTranscript(String transcript) implements RealtimeEvent
+    {
+    }
+
+    record AgentTranscript(String transcript) implements RealtimeEvent
+    {
+    }
+
+    record RequestLog(String requestType, String details, String responseCode) implements RealtimeEvent
+    {
+    }
+}
@@ -0,0 +1,321 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import com.eric_eldard.metrics.LatencyHistogram;
+
+/**
+ * Hands Realtime events off the WebSocket reader thread. As the service's event listener, it turns each callback into a
+ * {@link RealtimeEvent} and queues it on every lane with a subscriber for it; each lane dispatches in publish order on
+ * its own thread, so a slow consumer only ever delays its own lane.
+ */
+@Slf4j
+public class RealtimeEventBus implements OpenAIRealtimeService.VoiceEventListener
+{
+    public enum Lane
+    {
+        /// Audio playback; a max priority thread, and nothing else queues ahead of a delta
+        REALTIME(Thread.MAX_PRIORITY, false),
+
+        /// Anything bound for the panel; runs of text deltas queued behind a slow consumer are merged into one
+        UI(Thread.NORM_PRIORITY, true),
+
+        /// Logging and metrics
+        BACKGROUND(Thread.MIN_PRIORITY, false);
+
+        private final int threadPriority;
+
+        private final boolean coalescing;
+
+        Lane(int threadPriority, boolean coalescing)
+        {
+            this.threadPriority = threadPriority;
+            this.coalescing = coalescing;
+        }
+    }
+
+    private final Map<Lane, LaneDispatcher> lanes = new EnumMap<>(Lane.class);
+
+    public RealtimeEventBus()
+    {
+        for (Lane lane : Lane.values())
+        {
+            lanes.put(lane, new LaneDispatcher(lane));
+        }
+    }
+
+    /**
+     * @param lane       lane to run the consumer on
+     * @param consumer   called with each event of the given types, in publish order
+     * @param eventTypes event types to deliver; all events when none are given
+     */
+    @SafeVarargs
+    public final void subscribe(Lane lane, Consumer<RealtimeEvent> consumer,
+                                Class<? extends RealtimeEvent>... eventTypes)
+    {
+        // Copied element by element; handing the varargs array itself on is what risks heap pollution
+        Set<Class<? extends RealtimeEvent>> types = new HashSet<>();
+        for (Class<? extends RealtimeEvent> eventType : eventTypes)
+        {
+            types.add(eventType);
+        }
+        lanes.get(lane).subscribers.add(new Subscriber(consumer, Set.copyOf(types)));
+    }
+
+    public void publish(RealtimeEvent event)
+    {
+        for (LaneDispatcher lane : lanes.values())
+        {
+            lane.offer(event);
+        }
+    }
+
+    /**
+     * @return time events spent queued before dispatch on the given lane
+     */
+    public LatencyHistogram getQueueDelay(Lane lane)
+    {
+        return lanes.get(lane).queueDelay;
+    }
+
+    /**
+     * @return multi-line report of each lane's queueing delay
+     */
+    public String summarize()
+    {
+        StringBuilder summary = new StringBuilder("Event dispatch delay per lane");
+        lanes.forEach((lane, dispatcher) ->
+            summary.append("\n- ").append(lane).append(": ").append(dispatcher.queueDelay.summarize()));
+        return summary.toString();
+    }
+
+    /**
+     * Dispatches whatever is already queued, then stops each lane's thread
+     */
+    public void shutdown()
+    {
+        lanes.values().forEach(lane -> lane.executor.shutdown());
+    }
+
+    @Override
+    public void onConnected()
+    {
+        publish(new RealtimeEvent.Connected());
+    }
+
+    @Override
+    public void onDisconnected()
+    {
+        publish(new RealtimeEvent.Disconnected());
+    }
+
+    @Override
+    public void onMessage(String message)
+    {
+        publish(new RealtimeEvent.Message(message));
+    }
+
+    @Override
+    public void onTraceMessage(String message)
+    {
+        publish(new RealtimeEvent.Trace(message));
+    }
+
+    @Override
+    public void onError(Throwable error)
+    {
+        publish(new RealtimeEvent.Failure(error));
+    }
+
+    @Override
+    public void onSpeechStarted()
+    {
+        publish(new RealtimeEvent.SpeechStarted());
+    }
+
+    @Override
+    public void onSpeechStopped()
+    {
+        publish(new RealtimeEvent.SpeechStopped());
+    }
+
+    @Override
+    public void onTextResponse(String text)
+    {
+        publish(new RealtimeEvent.TextResponse(text));
+    }
+
+    @Override
+    public void onTextDelta(String delta)
+    {
+        publish(new RealtimeEvent.TextDelta(delta));
+    }
+
+    @Override
+    public void onUserSpeechEnded(String message)
+    {
+        publish(new RealtimeEvent.UserSpeechEnded(message));
+    }
+
+    @Override
+    public void onAudioResponse(byte[] audioData)
+    {
+        publish(new RealtimeEvent.AudioDelta(audioData));
+    }
+
+    @Override
+    public void onResponseStarted()
+    {
+        publish(new RealtimeEvent.ResponseStarted());
+    }
+
+    @Override
+    public void onResponseComplete()
+    {
+        publish(new RealtimeEvent.ResponseComplete());
+    }
+
+    @Override
+    public void onUserTranscript(String transcript)
+    {
+        publish(new RealtimeEvent.UserTranscript(transcript));
+    }
+
+    @Override
+    public void onAgentTranscript(String transcript)
+    {
+        publish(new RealtimeEvent.AgentTranscript(transcript));
+    }
+
+    @Override
+    public void onRequestLog(String requestType, String details, String responseCode)
+    {
+        publish(new RealtimeEvent.RequestLog(requestType, details, responseCode));
+    }
+
+    private record Subscriber(Consumer<RealtimeEvent> consumer, Set<Class<? extends RealtimeEvent>> eventTypes)
+    {
+        private boolean accepts(RealtimeEvent event)
+        {
+            return eventTypes.isEmpty() || eventTypes.contains(event.getClass());
+        }
+    }
+
+    private record Queued(RealtimeEvent event, long publishedNanos)
+    {
+    }
+
+    private static class LaneDispatcher
+    {
+        private final Lane lane;
+
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+        private final Queue<Queued> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+
+        private final LatencyHistogram queueDelay = new LatencyHistogram();
+
+        private final ExecutorService executor;
+
+        private LaneDispatcher(Lane lane)
+        {
+            this.lane = lane;
+            this.executor = Executors.newSingleThreadExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "realtime-events-" + lane.name().toLowerCase());
+                thread.setDaemon(true);
+                thread.setPriority(lane.threadPriority);
+                return thread;
+            });
+        }
+
+        private void offer(RealtimeEvent event)
+        {
+            if (subscribers.stream().noneMatch(subscriber -> subscriber.accepts(event)))
+            {
+                return;
+            }
+            queue.add(new Queued(event, System.nanoTime()));
+            scheduleDrain();
+        }
+
+        private void scheduleDrain()
+        {
+            if (draining.compareAndSet(false, true))
+            {
+                try
+                {
+                    executor.execute(this::drain);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    log.debug("Dropping {} events published after the {} lane shut down", queue.size(), lane);
+                    queue.clear();
+                }
+            }
+        }
+
+        private void drain()
+        {
+            Queued queued;
+            while ((queued = queue.poll()) != null)
+            {
+                RealtimeEvent event = queued.event();
+                if (lane.coalescing && event instanceof RealtimeEvent.TextDelta delta)
+                {
+                    while (queue.peek() != null && queue.peek().event() instanceof RealtimeEvent.TextDelta next)
+                    {
+                        delta = delta.append(next);
+                        queue.poll();
+                    }
+                    event = delta;
+                }
+
+                queueDelay.recordNanos(System.nanoTime() - queued.publishedNanos());
+                dispatch(event);
+            }
+
+            draining.set(false);
+            // An event published between the last poll and releasing the flag would otherwise wait for the next one
+            if (!queue.isEmpty())
+            {
+                scheduleDrain();
+            }
+        }
+
+        private void dispatch(RealtimeEvent event)
+        {
+            for (Subscriber subscriber : subscribers)
+            {
+                if (!subscriber.accepts(event))
+                {
+                    continue;
+                }
+                try
+                {
+                    subscriber.consumer().accept(event);
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("{} lane consumer failed on {}", lane, event.getClass().getSimpleName(), e);
+                }
+            }
+        }
+    }
+}
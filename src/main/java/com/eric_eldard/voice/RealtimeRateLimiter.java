@@ -0,0 +1,138 @@
+package com.eric_eldard.voice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Paces the client events which spend the session's rate limits, {@code response.create} and the
+ * {@code input_audio_buffer.commit} which leads to one, against the budgets the server reports in
+ * {@code rate_limits.updated}. Responses are charged against the last reported budget until the server reports again,
+ * so bursts are paced too. Audio appends spend no budget and are never held back.
+ */
+public class RealtimeRateLimiter
+{
+    static final String REQUESTS = "requests";
+
+    static final String TOKENS = "tokens";
+
+    // How long to hold off after a rate limit error when the server hasn't told us when its budgets reset
+    static final long DEFAULT_COOLDOWN_MS = 1000;
+
+    // Tokens assumed for a response until responses have reported their usage
+    static final long INITIAL_RESPONSE_TOKENS = 1000;
+
+    // Weight of the latest response's usage in the running estimate
+    private static final double RESPONSE_TOKENS_SMOOTHING = 0.3;
+
+    private final Map<String, Budget> budgets = new TreeMap<>();
+
+    private double responseTokensEstimate = INITIAL_RESPONSE_TOKENS;
+
+    private long cooldownUntil = 0;
+
+    /**
+     * @param rateLimits the {@code rate_limits} array of a {@code rate_limits.updated} event
+     * @param now        receipt time of the event
+     */
+    public synchronized void onRateLimitsUpdated(JsonNode rateLimits, long now)
+    {
+        for (JsonNode rateLimit : rateLimits)
+        {
+            long resetAt = now + Math.round(rateLimit.path("reset_seconds").asDouble() * 1000);
+            budgets.put(rateLimit.path("name").asText(),
+                new Budget(rateLimit.path("limit").asLong(), rateLimit.path("remaining").asLong(), resetAt));
+        }
+    }
+
+    /**
+     * Holds everything off until the soonest known budget reset, after the server rejected a request for its rate
+     */
+    public synchronized void onRateLimited(long now)
+    {
+        long resetAt = budgets.values().stream()
+            .mapToLong(Budget::resetAt)
+            .filter(reset -> reset > now)
+            .min()
+            .orElse(now + DEFAULT_COOLDOWN_MS);
+        cooldownUntil = Math.max(cooldownUntil, resetAt);
+    }
+
+    /**
+     * Feeds a completed response's token count into the estimate charged for the next response
+     */
+    public synchronized void onResponseUsage(long totalTokens)
+    {
+        if (totalTokens > 0)
+        {
+            responseTokensEstimate += RESPONSE_TOKENS_SMOOTHING * (totalTokens - responseTokensEstimate);
+        }
+    }
+
+    /**
+     * @return how long to hold a {@code response.create} back; 0 to send it now
+     */
+    public synchronized long getResponseDelayMs(long now)
+    {
+        return getDelayMs(1, Math.round(responseTokensEstimate), now);
+    }
+
+    /**
+     * Commits aren't charged themselves, but are held while requests are exhausted, as each leads to a response
+     *
+     * @return how long to hold an {@code input_audio_buffer.commit} back; 0 to send it now
+     */
+    public synchronized long getCommitDelayMs(long now)
+    {
+        return getDelayMs(1, 0, now);
+    }
+
+    public synchronized void onResponseSent(long now)
+    {
+        budgets.computeIfPresent(REQUESTS, (name, budget) -> budget.spend(1, now));
+        budgets.computeIfPresent(TOKENS, (name, budget) -> budget.spend(Math.round(responseTokensEstimate), now));
+    }
+
+    /**
+     * @return e.g. {@code requests 98/100 (reset in 12s), tokens 39000/40000 (reset in 1s)}; empty until reported
+     */
+    public synchronized String describe(long now)
+    {
+        StringBuilder description = new StringBuilder();
+        budgets.forEach((name, budget) -> description
+            .append(description.isEmpty() ? "" : ", ")
+            .append(String.format("%s %d/%d (reset in %ds)", name, budget.remaining(), budget.limit(),
+                Math.max(0, budget.resetAt() - now) / 1000)));
+        return description.toString();
+    }
+
+    private long getDelayMs(long requests, long tokens, long now)
+    {
+        long delay = Math.max(0, cooldownUntil - now);
+        delay = Math.max(delay, getBudgetDelayMs(REQUESTS, requests, now));
+        return Math.max(delay, getBudgetDelayMs(TOKENS, tokens, now));
+    }
+
+    private long getBudgetDelayMs(String name, long cost, long now)
+    {
+        Budget budget = budgets.get(name);
+        if (budget == null || cost == 0 || now >= budget.resetAt() || budget.remaining() >= cost)
+        {
+            return 0;
+        }
+        return budget.resetAt() - now;
+    }
+
+    private record Budget(long limit, long remaining, long resetAt)
+    {
+        /**
+         * @return the budget after spending the given amount, starting from a full one if it has already reset
+         */
+        private Budget spend(long amount, long now)
+        {
+            long available = now >= resetAt ? limit : remaining;
+            return new Budget(limit, Math.max(0, available - amount), resetAt);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.eric_eldard.voice;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the region of a screenshot which changed since an earlier one. The images are compared in square tiles, each
+ * row of tiles in parallel, and a tile counts as changed when any of its pixels differs by more than a small
+ * tolerance in any channel, which ignores the noise of anti-aliasing and compression.
+ */
+public final class ScreenshotDiff
+{
+    /// Side of the tiles compared, in pixels
+    static final int TILE = 32;
+
+    /// Largest per-channel difference which doesn't count as a change
+    static final int TOLERANCE = 16;
+
+    /**
+     * @return the bounding box of the changed tiles, or null if nothing changed; the whole image if the two aren't the
+     * same size, as then they can't be compared
+     */
+    public static Rectangle changedRegion(BufferedImage previous, BufferedImage current)
+    {
+        int width = current.getWidth();
+        int height = current.getHeight();
+        if (previous.getWidth() != width || previous.getHeight() != height)
+        {
+            return new Rectangle(0, 0, width, height);
+        }
+
+        int rows = (height + TILE - 1) / TILE;
+        return IntStream.range(0, rows)
+            .parallel()
+            .mapToObj(row -> changedInRow(previous, current, row))
+            .reduce(null, ScreenshotDiff::union, ScreenshotDiff::union);
+    }
+
+    /**
+     * @return the region grown by {@code margin} on each side, for context, but kept within the image
+     */
+    public static Rectangle withMargin(Rectangle region, int margin, int width, int height)
+    {
+        Rectangle grown = new Rectangle(region);
+        grown.grow(margin, margin);
+        return grown.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * @return the bounding box of the changed tiles in one row of tiles, or null if none changed
+     */
+    private static Rectangle changedInRow(BufferedImage previous, BufferedImage current, int row)
+    {
+        int width = current.getWidth();
+        int y = row * TILE;
+        int tileHeight = Math.min(TILE, current.getHeight() - y);
+        int[] before = previous.getRGB(0, y, width, tileHeight, null, 0, width);
+        int[] after = current.getRGB(0, y, width, tileHeight, null, 0, width);
+
+        Rectangle changed = null;
+        for (int x = 0; x < width; x += TILE)
+        {
+            int tileWidth = Math.min(TILE, width - x);
+            if (tileChanged(before, after, width, x, tileWidth, tileHeight))
+            {
+                changed = union(changed, new Rectangle(x, y, tileWidth, tileHeight));
+            }
+        }
+        return changed;
+    }
+
+    private static boolean tileChanged(int[] before, int[] after, int stride, int x, int tileWidth, int tileHeight)
+    {
+        for (int dy = 0; dy < tileHeight; dy++)
+        {
+            int offset = dy * stride + x;
+            for (int dx = 0; dx < tileWidth; dx++)
+            {
+                int a = before[offset + dx];
+                int b = after[offset + dx];
+                if (a != b && (differs(a, b, 0) || differs(a, b, 8) || differs(a, b, 16)))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean differs(int a, int b, int shift)
+    {
+        return Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)) > TOLERANCE;
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b)
+    {
+        return a == null ? b : b == null ? a : a.union(b);
+    }
+
+    private ScreenshotDiff()
+    {
+        // util ctor
+    }
+}
@@ -0,0 +1,73 @@
+package com.eric_eldard.voice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+/**
+ * The conversation's finished turns, for classifier context. A lock-free ring buffer: writers claim a sequence number
+ * and fill its slot, and readers copy the latest slots without blocking either the UI or audio threads. A snapshot
+ * costs O(window) regardless of how long the session has run; turns older than the capacity are forgotten.
+ */
+public class TranscriptStore
+{
+    private final AtomicReferenceArray<Slot> slots;
+
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // Turns before this sequence number were cleared
+    private final AtomicLong firstSequence = new AtomicLong();
+
+    public TranscriptStore(int capacity)
+    {
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public void append(String role, String content)
+    {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set(index(sequence), new Slot(sequence, new TranscriptMessage(role, content)));
+    }
+
+    /**
+     * @return up to the given number of the latest turns, oldest first. A turn still being written as this runs is left
+     * out; it's in the next snapshot
+     */
+    public List<TranscriptMessage> snapshot(int maxMessages)
+    {
+        long end = nextSequence.get();
+        long start = Math.max(firstSequence.get(), end - Math.min(maxMessages, slots.length()));
+
+        List<TranscriptMessage> messages = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = Math.max(0, start); sequence < end; sequence++)
+        {
+            Slot slot = slots.get(index(sequence));
+            // A mismatch is a slot not yet written, or already overwritten by a later turn
+            if (slot != null && slot.sequence() == sequence)
+            {
+                messages.add(slot.message());
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Forgets every turn so far
+     */
+    public void clear()
+    {
+        firstSequence.set(nextSequence.get());
+    }
+
+    private int index(long sequence)
+    {
+        return (int) (sequence % slots.length());
+    }
+
+    private record Slot(long sequence, TranscriptMessage message)
+    {
+    }
+}
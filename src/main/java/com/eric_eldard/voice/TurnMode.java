@@ -0,0 +1,48 @@
+package com.eric_eldard.voice;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Locale;
+
+import com.eric_eldard.util.EnvUtils;
+
+/**
+ * Decides who detects the end of a user turn, and therefore who commits the audio buffer and requests the response.
+ * Exactly one party does both, so each user turn produces exactly one generation.
+ */
+@Slf4j
+public enum TurnMode
+{
+    /// Server detects end of speech, commits the buffer and creates the response; client only commits a turn the user
+    /// cut short by muting the mic mid-speech
+    SERVER_VAD,
+
+    /// Client detects end of speech from mic amplitude, then commits and requests the response
+    CLIENT_VAD,
+
+    /// Client commits and requests the response only when the user turns the mic off
+    PUSH_TO_TALK;
+
+    public static TurnMode fromEnvironment()
+    {
+        String mode = EnvUtils.getProperty("openai.turn.mode", "OPENAI_TURN_MODE", SERVER_VAD.name());
+        try
+        {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Unknown turn mode '{}', falling back to {}", mode, SERVER_VAD);
+            return SERVER_VAD;
+        }
+    }
+
+    /**
+     * @return the value advertised as {@code turn_detection.type} in the session config, or null when the server should
+     * not detect turns at all
+     */
+    public String getTurnDetectionType()
+    {
+        return this == SERVER_VAD ? "server_vad" : null;
+    }
+}
@@ -5,15 +5,24 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.eric_eldard.metrics.TurnLatencyTracker;
+import com.eric_eldard.metrics.TurnStage;
+import com.eric_eldard.metrics.UsageMeter;
 
 /**
  * Combined voice service that integrates OpenAI Realtime API with audio input/output
  */
 @Slf4j
-public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, AudioService.AudioDataListener
+public class VoiceService implements AudioService.AudioDataListener
 {
     private final OpenAIRealtimeService openAIService;
 
+    // Takes Realtime events off the socket's reader thread
+    @Getter
+    private final RealtimeEventBus eventBus = new RealtimeEventBus();
+
     @Getter
     private final AudioService audioService;
 
@@ -23,14 +32,41 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
     // Audio response state tracking
     private volatile boolean audioResponseActive = false;
 
-    public VoiceService(String openAIApiKey, String model, String voice, String junieConfig)
+    private VoiceService(OpenAIRealtimeService openAIService, AudioService audioService)
+    {
+        this.openAIService = openAIService;
+        this.audioService = audioService;
+    }
+
+    public static VoiceService create(String openAIApiKey, String model, String voice, String junieConfig,
+                                      UsageMeter usageMeter)
+    {
+        return create(new OpenAIRealtimeService(openAIApiKey, model, voice, junieConfig, usageMeter),
+            new AudioService());
+    }
+
+    /**
+     * Creates the service and wires it to its services' events; the wiring is done here rather than in the
+     * constructor, so {@code this} isn't handed out before it's fully constructed
+     */
+    static VoiceService create(OpenAIRealtimeService openAIService, AudioService audioService)
     {
-        this.openAIService = new OpenAIRealtimeService(openAIApiKey, model, voice, junieConfig);
-        this.audioService = new AudioService();
+        VoiceService voiceService = new VoiceService(openAIService, audioService);
+        RealtimeEventBus eventBus = voiceService.eventBus;
 
         // Set up listeners
-        this.openAIService.setEventListener(this);
-        this.audioService.setAudioDataListener(this);
+        openAIService.setEventListener(eventBus);
+        audioService.setAudioDataListener(voiceService);
+        eventBus.subscribe(RealtimeEventBus.Lane.REALTIME, voiceService::onPlaybackEvent,
+            RealtimeEvent.ResponseStarted.class, RealtimeEvent.AudioDelta.class, RealtimeEvent.ResponseComplete.class,
+            RealtimeEvent.Disconnected.class);
+        eventBus.subscribe(RealtimeEventBus.Lane.UI, voiceService::onPanelEvent, RealtimeEvent.Connected.class,
+            RealtimeEvent.Disconnected.class, RealtimeEvent.Message.class, RealtimeEvent.Trace.class,
+            RealtimeEvent.Failure.class, RealtimeEvent.TextResponse.class, RealtimeEvent.TextDelta.class,
+            RealtimeEvent.UserSpeechEnded.class, RealtimeEvent.UserTranscript.class,
+            RealtimeEvent.AgentTranscript.class, RealtimeEvent.RequestLog.class);
+        eventBus.subscribe(RealtimeEventBus.Lane.BACKGROUND, voiceService::onLogEvent);
+        return voiceService;
     }
 
     public CompletableFuture<Boolean> initialize()
@@ -86,11 +122,24 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         boolean hasMinimumData = openAIService.hasMinimumAudioData();
         boolean hasSpeechAmplitude = openAIService.hasSpeechAmplitude();
 
-        log.info("Stopping voice session. Audio buffer: {}ms, has minimum data: {}, has speech amplitude: {}",
-            bufferDurationMs, hasMinimumData, hasSpeechAmplitude);
+        // Under VAD, whoever detected the end of the turn has already committed it (and a response is on its way);
+        // the client only commits a turn which was cut short by turning the mic off mid-speech
+        boolean turnOwnedByClient = switch (openAIService.getTurnMode())
+        {
+            case SERVER_VAD, CLIENT_VAD -> openAIService.hasUncommittedSpeech();
+            case PUSH_TO_TALK -> true;
+        };
+
+        log.info("Stopping voice session. Audio buffer: {}ms, has minimum data: {}, has speech amplitude: {}, " +
+            "turn mode: {}, client commits: {}", bufferDurationMs, hasMinimumData, hasSpeechAmplitude,
+            openAIService.getTurnMode(), turnOwnedByClient);
 
+        if (!turnOwnedByClient)
+        {
+            log.debug("Skipping audio buffer commit - {} has already committed this turn", openAIService.getTurnMode());
+        }
         // Only commit if we have sufficient audio data (minimum 100ms) AND amplitude indicates human speech
-        if (hasMinimumData && bufferDurationMs >= 100.0 && hasSpeechAmplitude)
+        else if (hasMinimumData && bufferDurationMs >= 100.0 && hasSpeechAmplitude)
         {
             // Commit the audio buffer to OpenAI for processing
             openAIService.commitAudioBuffer();
@@ -134,6 +183,28 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         return openAIService.isConnected();
     }
 
+    /**
+     * Enables compaction of long conversations, using the given function to condense older turns
+     */
+    public void setConversationSummarizer(Function<String, CompletableFuture<String>> summarizer)
+    {
+        openAIService.setConversationSummarizer(summarizer);
+    }
+
+    /**
+     * @see OpenAIRealtimeService#classifyOutOfBand
+     */
+    public CompletableFuture<String> classifyOutOfBand(String classifierInstructions,
+                                                       OpenAIResponsesService.ClassifierStreamListener listener)
+    {
+        return openAIService.classifyOutOfBand(classifierInstructions, listener);
+    }
+
+    public TurnLatencyTracker getLatencyTracker()
+    {
+        return openAIService.getLatencyTracker();
+    }
+
     public void sendTextMessage(String text)
     {
         if (!openAIService.isConnected())
@@ -172,66 +243,88 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
 
         openAIService.disconnect();
         audioService.shutdown();
-        log.info("Voice service shut down");
+        eventBus.shutdown();
+        log.info("Voice service shut down. {}\n{}", getLatencyTracker().summarize(), eventBus.summarize());
     }
 
-    // OpenAI service event handlers
-    @Override
-    public void onConnected()
+    /**
+     * Speaker playback, on the real-time lane so it never queues behind logging or the UI
+     */
+    private void onPlaybackEvent(RealtimeEvent event)
     {
-        log.info("Connected to OpenAI Realtime API");
-        if (serviceListener != null)
+        switch (event)
         {
-            serviceListener.onConnected();
-        }
-    }
-
-    @Override
-    public void onDisconnected()
-    {
-        log.info("Disconnected from OpenAI Realtime API");
-        stopVoiceSession(); // Stop recording if we lose connection
-
-        // Clean up AI response state if disconnected during response
-        if (audioResponseActive)
-        {
-            audioService.stopAudioPlayback();
-            audioResponseActive = false;
-        }
-
-        if (serviceListener != null)
-        {
-            serviceListener.onDisconnected();
+            case RealtimeEvent.ResponseStarted ignored -> onResponseStarted();
+            case RealtimeEvent.AudioDelta delta -> onAudioResponse(delta.audio());
+            case RealtimeEvent.ResponseComplete ignored -> onResponseComplete();
+            case RealtimeEvent.Disconnected ignored ->
+            {
+                stopVoiceSession(); // Stop recording if we lose connection
+
+                // Clean up AI response state if disconnected during response
+                if (audioResponseActive)
+                {
+                    audioService.stopAudioPlayback();
+                    audioResponseActive = false;
+                }
+            }
+            default -> { }
         }
     }
 
-    @Override
-    public void onMessage(String message)
+    /**
+     * Forwards events to the panel, on the UI lane
+     */
+    private void onPanelEvent(RealtimeEvent event)
     {
-        log.debug("Received message from OpenAI: {}", message);
-        if (serviceListener != null)
+        if (serviceListener == null)
         {
-            serviceListener.onResponseReceived(message);
+            return;
         }
-    }
 
-    @Override
-    public void onTraceMessage(String message)
-    {
-        log.trace("Received trace message from OpenAI: {}", message);
-        if (serviceListener != null)
+        switch (event)
         {
-            serviceListener.onTraceReceived(message);
+            case RealtimeEvent.Connected ignored -> serviceListener.onConnected();
+            case RealtimeEvent.Disconnected ignored -> serviceListener.onDisconnected();
+            case RealtimeEvent.Message message -> serviceListener.onResponseReceived(message.json());
+            case RealtimeEvent.Trace trace -> serviceListener.onTraceReceived(trace.message());
+            case RealtimeEvent.Failure failure -> serviceListener.onError(failure.error());
+            case RealtimeEvent.TextResponse response -> serviceListener.onResponseReceived("Text: " + response.text());
+            case RealtimeEvent.TextDelta delta -> serviceListener.onTextDelta(delta.delta());
+            case RealtimeEvent.UserSpeechEnded ignored -> serviceListener.onUserSpeechEnded();
+            case RealtimeEvent.UserTranscript transcript -> serviceListener.onUserTranscript(transcript.transcript());
+            case RealtimeEvent.AgentTranscript transcript -> serviceListener.onAgentTranscript(transcript.transcript());
+            case RealtimeEvent.RequestLog request ->
+                serviceListener.onRequestLog(request.requestType(), request.details(), request.responseCode());
+            default -> { }
         }
     }
 
-    @Override
-    public void onError(Throwable error)
+    /**
+     * Logging, on the background lane
+     */
+    private void onLogEvent(RealtimeEvent event)
     {
-        log.error("OpenAI service error", error);
-        if (serviceListener != null)
+        switch (event)
         {
-            serviceListener.onError(error);
+            case RealtimeEvent.Connected ignored -> log.info("Connected to OpenAI Realtime API");
+            case RealtimeEvent.Disconnected ignored -> log.info("Disconnected from OpenAI Realtime API");
+            case RealtimeEvent.Message message -> log.debug("Received message from OpenAI: {}", message.json());
+            case RealtimeEvent.Trace trace -> log.trace("Received trace message from OpenAI: {}", trace.message());
+            case RealtimeEvent.Failure failure -> log.error("OpenAI service error", failure.error());
+            case RealtimeEvent.SpeechStarted ignored -> log.info("Speech started detected by OpenAI");
+            case RealtimeEvent.SpeechStopped ignored -> log.info("Speech stopped detected by OpenAI");
+            case RealtimeEvent.TextResponse response -> log.info("Received text response: {}", response.text());
+            case RealtimeEvent.TextDelta delta -> log.debug("Received text delta: {}", delta.delta());
+            case RealtimeEvent.UserSpeechEnded ended ->
+                log.info("User stopped talking; final message: {}", ended.eventType());
+            case RealtimeEvent.AudioDelta delta -> log.debug("Received audio response: {} bytes", delta.audio().length);
+            case RealtimeEvent.ResponseStarted ignored -> log.info("New response started");
+            case RealtimeEvent.ResponseComplete ignored -> log.info("Response generation completed");
+            case RealtimeEvent.UserTranscript transcript -> log.info("User transcript: {}", transcript.transcript());
+            case RealtimeEvent.AgentTranscript transcript -> log.info("Agent transcript: {}", transcript.transcript());
+            case RealtimeEvent.RequestLog request -> log.debug("Request log: {} - {} [{}]",
+                request.requestType(), request.details(), request.responseCode());
         }
     }
 
@@ -244,54 +337,8 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         openAIService.sendAudioData(audioData);
     }
 
-    // Additional OpenAI event handlers
-    @Override
-    public void onSpeechStarted()
-    {
-        log.info("Speech started detected by OpenAI");
-    }
-
-    @Override
-    public void onSpeechStopped()
-    {
-        log.info("Speech stopped detected by OpenAI");
-    }
-
-    @Override
-    public void onTextResponse(String text)
-    {
-        log.info("Received text response: {}", text);
-        if (serviceListener != null)
-        {
-            serviceListener.onResponseReceived("Text: " + text);
-        }
-    }
-
-    @Override
-    public void onTextDelta(String delta)
+    private void onResponseStarted()
     {
-        log.debug("Received text delta: {}", delta);
-        if (serviceListener != null)
-        {
-            serviceListener.onTextDelta(delta);
-        }
-    }
-
-    @Override
-    public void onUserSpeechEnded(String message)
-    {
-        log.info("User stopped talking; final message: {}", message);
-        if (serviceListener != null)
-        {
-            serviceListener.onUserSpeechEnded();
-        }
-    }
-
-    @Override
-    public void onResponseStarted()
-    {
-        log.info("New response started");
-
         // If there's already an active audio response, interrupt it
         if (audioResponseActive)
         {
@@ -307,10 +354,8 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         }
     }
 
-    @Override
-    public void onAudioResponse(byte[] audioData)
+    private void onAudioResponse(byte[] audioData)
     {
-        log.debug("Received audio response: {} bytes", audioData.length);
         boolean wasMuted = !audioService.isRecording();
 
         // Start audio playback on first audio delta
@@ -336,14 +381,14 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         }
 
         // Stream the audio delta (only if not muted)
-        audioService.streamAudioData(audioData);
+        if (audioService.streamAudioData(audioData))
+        {
+            getLatencyTracker().mark(TurnStage.FIRST_SPEAKER_WRITE);
+        }
     }
 
-    @Override
-    public void onResponseComplete()
+    private void onResponseComplete()
     {
-        log.info("Response generation completed");
-
         // Stop audio playback if it was active
         if (audioResponseActive)
         {
@@ -359,36 +404,6 @@ public class VoiceService implements OpenAIRealtimeService.VoiceEventListener, A
         }
     }
 
-    @Override
-    public void onUserTranscript(String transcript)
-    {
-        log.info("User transcript: {}", transcript);
-        if (serviceListener != null)
-        {
-            serviceListener.onUserTranscript(transcript);
-        }
-    }
-
-    @Override
-    public void onAgentTranscript(String transcript)
-    {
-        log.info("Agent transcript: {}", transcript);
-        if (serviceListener != null)
-        {
-            serviceListener.onAgentTranscript(transcript);
-        }
-    }
-
-    @Override
-    public void onRequestLog(String requestType, String details, String responseCode)
-    {
-        log.debug("Request log: {} - {} [{}]", requestType, details, responseCode);
-        if (serviceListener != null)
-        {
-            serviceListener.onRequestLog(requestType, details, responseCode);
-        }
-    }
-
     public interface VoiceServiceListener
     {
         void onConnected();
@@ -0,0 +1,38 @@
+package com.eric_eldard.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void testPercentilesWithinPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++)
+        {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getPercentileMs(50), 500 * 0.02);
+        assertEquals(950, histogram.getPercentileMs(95), 950 * 0.02);
+        assertEquals(990, histogram.getPercentileMs(99), 990 * 0.02);
+        assertEquals(1000, histogram.getMaxMs(), 0.001);
+        assertEquals(500.5, histogram.getMeanMs(), 0.001);
+    }
+
+    @Test
+    public void testValuesBeyondRangeAreClamped()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(TimeUnit.HOURS.toNanos(1));
+        histogram.recordNanos(-5);
+
+        assertEquals(TimeUnit.MICROSECONDS.toMillis(LatencyHistogram.MAX_TRACKABLE_MICROS), histogram.getMaxMs(), 1);
+        assertEquals(0, histogram.getPercentileMs(50), 0.001);
+    }
+}
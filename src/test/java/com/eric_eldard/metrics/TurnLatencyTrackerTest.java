@@ -0,0 +1,29 @@
+package com.eric_eldard.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TurnLatencyTrackerTest
+{
+    @Test
+    public void testTrackerTimesStagesFromEndOfInput()
+    {
+        TurnLatencyTracker tracker = new TurnLatencyTracker();
+        long start = TimeUnit.SECONDS.toNanos(10);
+        tracker.mark(TurnStage.MIC_CAPTURE, start);
+        tracker.mark(TurnStage.FIRST_APPEND_SENT, start + TimeUnit.MILLISECONDS.toNanos(500));
+        tracker.mark(TurnStage.SPEECH_STOPPED, start + TimeUnit.MILLISECONDS.toNanos(3000));
+        tracker.mark(TurnStage.COMMITTED, start + TimeUnit.MILLISECONDS.toNanos(3050));
+        tracker.mark(TurnStage.MIC_CAPTURE, start + TimeUnit.MILLISECONDS.toNanos(3100)); // next turn begins
+        tracker.mark(TurnStage.RESPONSE_CREATED, start + TimeUnit.MILLISECONDS.toNanos(3200));
+        tracker.mark(TurnStage.RESPONSE_CREATED, start + TimeUnit.MILLISECONDS.toNanos(9000)); // repeat ignored
+
+        assertEquals(500, tracker.getHistogram(TurnStage.FIRST_APPEND_SENT).getMaxMs(), 1);
+        assertEquals(50, tracker.getHistogram(TurnStage.COMMITTED).getMaxMs(), 1);
+        assertEquals(1, tracker.getHistogram(TurnStage.RESPONSE_CREATED).getCount());
+        assertEquals(200, tracker.getHistogram(TurnStage.RESPONSE_CREATED).getMaxMs(), 1);
+    }
+}
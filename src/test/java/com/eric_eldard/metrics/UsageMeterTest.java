@@ -0,0 +1,70 @@
+package com.eric_eldard.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+public class UsageMeterTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testParsesRealtimeUsage() throws Exception
+    {
+        JsonNode usage = MAPPER.readTree("""
+            {"total_tokens": 430, "input_tokens": 300, "output_tokens": 130,
+             "input_token_details": {"cached_tokens": 256, "text_tokens": 120, "audio_tokens": 180},
+             "output_token_details": {"text_tokens": 30, "audio_tokens": 100}}
+            """);
+
+        TokenUsage parsed = TokenUsage.fromRealtime(usage);
+
+        assertEquals(new TokenUsage(300, 256, 120, 180, 130, 30, 100, 1), parsed);
+    }
+
+    @Test
+    public void testParsesChatCompletionsUsage() throws Exception
+    {
+        JsonNode usage = MAPPER.readTree("""
+            {"prompt_tokens": 1500, "completion_tokens": 40, "total_tokens": 1540,
+             "prompt_tokens_details": {"cached_tokens": 1024}}
+            """);
+
+        TokenUsage parsed = TokenUsage.fromChatCompletions(usage);
+
+        assertEquals(new TokenUsage(1500, 1024, 1500, 0, 40, 40, 0, 1), parsed);
+    }
+
+    @Test
+    public void testSessionTotalsAddUpAcrossFeatures()
+    {
+        UsageMeter meter = new UsageMeter();
+        meter.record(UsageMeter.FEATURE_VOICE, new TokenUsage(100, 50, 20, 80, 60, 10, 50, 1));
+        meter.record(UsageMeter.FEATURE_VOICE, new TokenUsage(200, 150, 40, 160, 70, 20, 50, 1));
+        meter.record(UsageMeter.FEATURE_CLASSIFIER, new TokenUsage(1000, 0, 1000, 0, 10, 10, 0, 1));
+        meter.record(UsageMeter.FEATURE_IMAGE, TokenUsage.fromChatCompletions(null));
+
+        assertEquals(2, meter.getSessionUsage(UsageMeter.FEATURE_VOICE).calls());
+        assertEquals(300, meter.getSessionUsage(UsageMeter.FEATURE_VOICE).inputTokens());
+        assertEquals(TokenUsage.NONE, meter.getSessionUsage(UsageMeter.FEATURE_IMAGE));
+        assertEquals(1300, meter.getSessionTotal().inputTokens());
+        assertEquals(200, meter.getSessionTotal().cachedInputTokens());
+        assertEquals(140, meter.getSessionTotal().outputTokens());
+    }
+
+    @Test
+    public void testEstimatedInputIsLeftOutOfCacheHitRatio()
+    {
+        UsageMeter meter = new UsageMeter();
+        meter.record(UsageMeter.FEATURE_CLASSIFIER, new TokenUsage(1000, 800, 1000, 0, 10, 10, 0, 1));
+        meter.record(UsageMeter.FEATURE_CLASSIFIER, TokenUsage.estimated(1000, 5));
+
+        TokenUsage usage = meter.getSessionUsage(UsageMeter.FEATURE_CLASSIFIER);
+        assertEquals(2000, usage.inputTokens());
+        assertEquals(0.8, usage.cacheHitRatio(), 0.0001);
+        assertTrue(usage.describe().endsWith("; 1000 input estimated"));
+    }
+}
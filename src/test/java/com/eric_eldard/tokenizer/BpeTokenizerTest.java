@@ -0,0 +1,98 @@
+package com.eric_eldard.tokenizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+
+public class BpeTokenizerTest
+{
+    private static final String[] MERGES = {"he", "the", " t", " the", "ll", " w", "or", " wor", "ld", " world"};
+
+    private static BpeTokenizer tokenizer;
+
+    /**
+     * A tiny rank table in tiktoken's format: every single byte, then a handful of merges
+     */
+    @BeforeClass
+    public static void loadRanks() throws Exception
+    {
+        StringBuilder ranks = new StringBuilder();
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (int b = 0; b < 256; b++)
+        {
+            ranks.append(encoder.encodeToString(new byte[] {(byte) b})).append(' ').append(b).append('\n');
+        }
+        for (int i = 0; i < MERGES.length; i++)
+        {
+            ranks.append(encoder.encodeToString(MERGES[i].getBytes(StandardCharsets.UTF_8)))
+                .append(' ').append(256 + i).append('\n');
+        }
+        tokenizer = BpeTokenizer.load(new ByteArrayInputStream(ranks.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testWholeWordsAndMergeOrder()
+    {
+        assertEquals(256 + MERGES.length, tokenizer.getVocabularySize());
+        assertArrayEquals(new int[] {257, 259}, tokenizer.encode("the the"));
+        // h+e merges first, then l+l; "hell" isn't a token
+        assertArrayEquals(new int[] {256, 260, 'o'}, tokenizer.encode("hello"));
+        assertArrayEquals(new int[] {265}, tokenizer.encode(" world"));
+    }
+
+    @Test
+    public void testRoundTripsMultiByteText()
+    {
+        String text = "héllo the wörld! 12345\n\n  ok 🎤";
+        int[] ranks = tokenizer.encode(text);
+
+        assertEquals(text, tokenizer.decode(ranks));
+        assertEquals(ranks.length, tokenizer.countTokens(text));
+        // Cached words encode the same the second time round
+        assertArrayEquals(ranks, tokenizer.encode(text));
+    }
+
+    @Test
+    public void testTruncateKeepsWholeTokens()
+    {
+        assertEquals("the the", tokenizer.truncate("the the world", 2));
+        assertEquals("short", tokenizer.truncate("short", 100));
+    }
+
+    @Test
+    public void testTruncateDoesNotSplitACharacter()
+    {
+        // "é" has no token of its own, so it's two single-byte tokens; cutting between them would leave half of it
+        assertArrayEquals(new int[] {'h', 0xC3, 0xA9}, tokenizer.encode("hé"));
+        assertEquals("h", tokenizer.truncate("hé", 2));
+        assertEquals("hé", tokenizer.truncate("hé!", 3));
+    }
+
+    @Test
+    public void testPreTokenizerMatchesO200k()
+    {
+        List<String> pieces = new ArrayList<>();
+        Matcher matcher = BpeTokenizer.O200K_PATTERN.matcher("Hello world's 12345  \nfoo.bar()");
+        while (matcher.find())
+        {
+            pieces.add(matcher.group());
+        }
+        assertEquals(List.of("Hello", " world's", " ", "123", "45", "  \n", "foo", ".bar", "()"), pieces);
+    }
+
+    @Test
+    public void testEstimateUntilLoaded()
+    {
+        assertEquals(0, TokenCounter.count(""));
+        assertEquals(3, TokenCounter.estimate("twelve bytes"));
+    }
+}
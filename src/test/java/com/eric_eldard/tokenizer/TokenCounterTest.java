@@ -0,0 +1,82 @@
+package com.eric_eldard.tokenizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+public class TokenCounterTest
+{
+    private static final String RANKS = Base64.getEncoder().encodeToString("a".getBytes(StandardCharsets.UTF_8))
+        + " 0\n" + Base64.getEncoder().encodeToString("b".getBytes(StandardCharsets.UTF_8)) + " 1\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(RANKS));
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.shutdown();
+    }
+
+    @Test
+    public void testDownloadMatchingHashIsCachedAndParsedOnce() throws Exception
+    {
+        Path target = folder.getRoot().toPath().resolve("cache/o200k_base.tiktoken");
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+            .digest(RANKS.getBytes(StandardCharsets.US_ASCII)));
+
+        BpeTokenizer tokenizer = TokenCounter.download(server.url("/ranks").toString(), sha256, target);
+
+        assertEquals(2, tokenizer.getVocabularySize());
+        assertEquals(RANKS, Files.readString(target));
+    }
+
+    @Test
+    public void testDownloadWithWrongHashIsDiscarded() throws Exception
+    {
+        Path target = folder.getRoot().toPath().resolve("cache/o200k_base.tiktoken");
+
+        try
+        {
+            TokenCounter.download(server.url("/ranks").toString(), TokenCounter.RANKS_SHA256, target);
+            fail("Expected the hash mismatch to be reported");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("expected " + TokenCounter.RANKS_SHA256));
+        }
+        assertFalse(Files.exists(target));
+        try (Stream<Path> leftovers = Files.list(target.getParent()))
+        {
+            assertEquals(0, leftovers.count());
+        }
+    }
+}
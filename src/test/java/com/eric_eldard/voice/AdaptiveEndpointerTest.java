@@ -0,0 +1,78 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveEndpointerTest
+{
+    private static final long FRAME_MS = 20;
+
+    @Test
+    public void testWindowUnchangedUntilEnoughPauses()
+    {
+        AdaptiveEndpointer endpointer = new AdaptiveEndpointer(1000);
+        long now = speakWithPauses(endpointer, 1000, 3, 300);
+        endpointer.onTurnEnded(now);
+        assertEquals(1000, endpointer.getSilenceWindowMs());
+    }
+
+    @Test
+    public void testWindowShrinksToShortPauses()
+    {
+        AdaptiveEndpointer endpointer = new AdaptiveEndpointer(1000);
+        long now = speakWithPauses(endpointer, 1000, 12, 300);
+        endpointer.onTurnEnded(now);
+
+        long window = endpointer.getSilenceWindowMs();
+        assertTrue("Window should shrink towards the user's pauses, was " + window, window < 1000);
+        assertTrue("Window should stay above the user's pauses, was " + window, window > 300);
+    }
+
+    @Test
+    public void testClippedTurnWidensWindow()
+    {
+        AdaptiveEndpointer endpointer = new AdaptiveEndpointer(1000);
+        long now = speakWithPauses(endpointer, 1000, 12, 300);
+        endpointer.onTurnEnded(now);
+        long learned = endpointer.getSilenceWindowMs();
+
+        endpointer.onSpeechStarted(now + 400);
+
+        assertEquals(1, endpointer.getClippedTurns());
+        assertTrue(endpointer.getSilenceWindowMs() > learned);
+    }
+
+    @Test
+    public void testWindowIsClamped()
+    {
+        assertEquals(AdaptiveEndpointer.MAX_SILENCE_MS, new AdaptiveEndpointer(10_000).getSilenceWindowMs());
+        assertEquals(AdaptiveEndpointer.MIN_SILENCE_MS, new AdaptiveEndpointer(0).getSilenceWindowMs());
+    }
+
+    /**
+     * Feeds alternating bursts of speech and pauses of the given length, starting at the given time
+     *
+     * @return the time after the last frame
+     */
+    private static long speakWithPauses(AdaptiveEndpointer endpointer, long start, int pauseCount, long pauseMs)
+    {
+        long now = start;
+        for (int pause = 0; pause <= pauseCount; pause++)
+        {
+            for (int frame = 0; frame < 10; frame++, now += FRAME_MS)
+            {
+                endpointer.onFrame(true, now);
+            }
+            if (pause < pauseCount)
+            {
+                for (long silent = 0; silent < pauseMs; silent += FRAME_MS, now += FRAME_MS)
+                {
+                    endpointer.onFrame(false, now);
+                }
+            }
+        }
+        return now;
+    }
+}
@@ -0,0 +1,68 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+    @Test
+    public void testOpensAfterConsecutiveFailures()
+    {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(breaker.tryAcquire(0));
+            breaker.onFailure(0);
+        }
+        // A success in between resets the count
+        assertTrue(breaker.tryAcquire(0));
+        breaker.onSuccess();
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(breaker.tryAcquire(0));
+            breaker.onFailure(0);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(999));
+        assertEquals("open, probing in 1s (opened 1 times)", breaker.describe(500));
+    }
+
+    @Test
+    public void testSingleProbeClosesOrReopens()
+    {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.tryAcquire(0);
+        breaker.onFailure(0);
+
+        // Once open long enough, one probe goes through and the rest still fail fast
+        assertTrue(breaker.tryAcquire(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(1000));
+
+        breaker.onFailure(1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(1500));
+
+        assertTrue(breaker.tryAcquire(2000));
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(2000));
+        assertTrue(breaker.tryAcquire(2000));
+    }
+
+    @Test
+    public void testCancelledProbeFreesTheSlot()
+    {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.tryAcquire(0);
+        breaker.onFailure(0);
+
+        assertTrue(breaker.tryAcquire(1000));
+        breaker.onCancelled();
+        assertTrue(breaker.tryAcquire(1000));
+    }
+}
@@ -0,0 +1,94 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+public class ClassificationCacheTest
+{
+    private static final String MODEL = "model";
+
+    private static final String INSTRUCTIONS = "Label the latest request";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeyIgnoresCasingPunctuationAndAssistantTurns()
+    {
+        String key = key(new TranscriptMessage("user", "Write a binary search in Java."));
+
+        assertEquals(key, key(new TranscriptMessage("assistant", "Sure, anything else?"),
+            new TranscriptMessage("user", "  write a BINARY search, in java ")));
+        // Asking again
+        assertEquals(key, key(new TranscriptMessage("user", "Write a binary search in Java"),
+            new TranscriptMessage("assistant", "Here it is"),
+            new TranscriptMessage("user", "Write a binary search in Java!")));
+        assertNotEquals(key, key(new TranscriptMessage("user", "Write a linear search in Java")));
+        assertNotEquals(key, ClassificationCache.key("other-model", INSTRUCTIONS,
+            List.of(new TranscriptMessage("user", "Write a binary search in Java"))));
+
+        // Too short to mean the same thing whatever came before, and nothing to classify
+        assertNull(key(new TranscriptMessage("user", "Yes, do it")));
+        assertNull(key(new TranscriptMessage("assistant", "Here's a binary search in Java")));
+    }
+
+    @Test
+    public void testKeyDependsOnEarlierUserTurns()
+    {
+        TranscriptMessage latest = new TranscriptMessage("user", "Now add it to the utility class");
+
+        String afterSearch = key(new TranscriptMessage("user", "Write a binary search in Java"),
+            new TranscriptMessage("assistant", "Here it is"), latest);
+        String afterSort = key(new TranscriptMessage("user", "Write a merge sort in Java"),
+            new TranscriptMessage("assistant", "Here it is"), latest);
+
+        assertNotEquals(afterSearch, afterSort);
+        assertNotEquals(afterSearch, key(latest));
+        assertEquals(afterSearch, key(new TranscriptMessage("user", "write a binary search in java"),
+            new TranscriptMessage("assistant", "Done! Anything else?"), latest));
+    }
+
+    @Test
+    public void testEntriesExpireAndEvictLeastRecentlyUsed()
+    {
+        ClassificationCache cache = new ClassificationCache(2, 1000, null);
+        cache.put("a", "[code-request] a", 0);
+        cache.put("b", "[code-request] b", 0);
+        assertEquals("[code-request] a", cache.get("a", 500));
+
+        cache.put("c", "[code-request] c", 500);
+        assertNull(cache.get("b", 500));
+        assertEquals("[code-request] a", cache.get("a", 1000));
+        assertNull(cache.get("a", 1001));
+        assertEquals("2 hits (0 from disk), 2 misses, 1 entries", cache.describe());
+    }
+
+    @Test
+    public void testDiskTierOutlivesTheCache() throws Exception
+    {
+        Path dir = folder.newFolder("classifications").toPath();
+        long now = System.currentTimeMillis();
+        new ClassificationCache(8, 60_000, dir).put("key", "[non-generative-request]", now);
+
+        ClassificationCache restarted = new ClassificationCache(8, 60_000, dir);
+        assertEquals("[non-generative-request]", restarted.get("key", now + 1000));
+        assertEquals("1 hits (1 from disk), 0 misses, 1 entries", restarted.describe());
+
+        assertNull(new ClassificationCache(8, 60_000, dir).get("key", now + 60_001));
+    }
+
+    private static String key(TranscriptMessage... window)
+    {
+        return ClassificationCache.key(MODEL, INSTRUCTIONS, List.of(window));
+    }
+}
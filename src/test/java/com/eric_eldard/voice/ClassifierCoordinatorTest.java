@@ -0,0 +1,178 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+public class ClassifierCoordinatorTest
+{
+    private static final long TIMEOUT_MS = 2000;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+
+    private ClassifierCoordinator coordinator;
+
+    @After
+    public void tearDown()
+    {
+        coordinator.shutdown();
+    }
+
+    @Test
+    public void testBurstIsCoalescedIntoOneRequest() throws Exception
+    {
+        coordinator = new ClassifierCoordinator(this::classify, 100);
+
+        for (int i = 1; i <= 3; i++)
+        {
+            String text = "message " + i;
+            coordinator.submit(() -> List.of(new TranscriptMessage("user", text)), new NoOpStream(), this::onResult);
+        }
+
+        Request request = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals("message 3", request.messages.get(0).content);
+        request.future.complete("[non-generative-request]");
+        assertEquals("[non-generative-request]", results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(coordinator.describe().startsWith("3 submitted, 2 coalesced"));
+    }
+
+    @Test
+    public void testNewerSubmissionCancelsRequestInFlight() throws Exception
+    {
+        coordinator = new ClassifierCoordinator(this::classify, 0);
+        RecordingStream firstStream = new RecordingStream();
+
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "first")), firstStream, this::onResult);
+        Request first = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        first.stream.onContent("partial");
+
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "second")), new NoOpStream(), this::onResult);
+        Request second = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(first.future.isCancelled());
+        assertTrue(firstStream.cancelled);
+
+        // Content from the superseded request no longer reaches its listener
+        first.stream.onContent(" more");
+        assertEquals(List.of("partial"), firstStream.content);
+
+        second.future.complete("[code-request] int x;");
+        assertEquals("[code-request] int x;", results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(results.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCancellationReachesDelegateThroughPreClassifier() throws Exception
+    {
+        coordinator = new ClassifierCoordinator(new LocalPreClassifier(this::classify, 0), 0);
+
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "Write a binary search")), new NoOpStream(),
+            this::onResult);
+        Request first = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "Write a linear search")), new NoOpStream(),
+            this::onResult);
+        Request second = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(first.future.isCancelled());
+        second.future.complete("[code-request] int x;");
+        assertEquals("[code-request] int x;", results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testStaleResultIsDropped() throws Exception
+    {
+        // A classifier which ignores cancellation, as if its result was already on the way back
+        coordinator = new ClassifierCoordinator((messages, stream) ->
+        {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            requests.add(new Request(messages, stream, future));
+            return future.thenApply(result -> result);
+        }, 0);
+
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "first")), new NoOpStream(), this::onResult);
+        Request first = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "second")), new NoOpStream(), this::onResult);
+        Request second = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        second.future.complete("second result");
+        assertEquals("second result", results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        coordinator.submit(() -> List.of(new TranscriptMessage("user", "third")), new NoOpStream(), this::onResult);
+        Request third = requests.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        first.future.complete("first result");
+        third.future.complete("third result");
+
+        assertEquals("third result", results.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(results.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private CompletableFuture<String> classify(List<TranscriptMessage> messages, ClassifierStreamListener stream)
+    {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        requests.add(new Request(messages, stream, future));
+        return future;
+    }
+
+    private void onResult(String result, Throwable error)
+    {
+        results.add(error != null ? "error:" + error : result);
+    }
+
+    private record Request(List<TranscriptMessage> messages, ClassifierStreamListener stream,
+                           CompletableFuture<String> future)
+    {
+    }
+
+    private static class NoOpStream implements ClassifierStreamListener
+    {
+        @Override
+        public void onLabel(String label)
+        {
+        }
+
+        @Override
+        public void onContent(String delta)
+        {
+        }
+    }
+
+    private static class RecordingStream implements ClassifierStreamListener
+    {
+        private final List<String> content = new CopyOnWriteArrayList<>();
+
+        private volatile boolean cancelled;
+
+        @Override
+        public void onLabel(String label)
+        {
+        }
+
+        @Override
+        public void onContent(String delta)
+        {
+            content.add(delta);
+        }
+
+        @Override
+        public void onCancelled()
+        {
+            cancelled = true;
+        }
+    }
+}
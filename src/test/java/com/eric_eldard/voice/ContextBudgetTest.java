@@ -0,0 +1,94 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.eric_eldard.tokenizer.TokenCounter;
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+public class ContextBudgetTest
+{
+    @Test
+    public void testWindowWithinBudgetKeepsTurnsButCutsCode()
+    {
+        ContextBudget budget = new ContextBudget(1500);
+        String code = "int x = 1;\n".repeat(500);
+        List<TranscriptMessage> window = List.of(
+            new TranscriptMessage("user", "Declare a lot of ints"),
+            new TranscriptMessage("assistant", "Here you go:\n```java\n" + code + "```\nAnything else?"),
+            new TranscriptMessage("user", "Thanks"));
+
+        List<TranscriptMessage> fitted = budget.fit(window);
+
+        assertEquals(3, fitted.size());
+        assertEquals(window.getFirst(), fitted.getFirst());
+        assertEquals(window.getLast(), fitted.getLast());
+        String reply = fitted.get(1).content;
+        assertTrue(reply.startsWith("Here you go:\n```java\nint x = 1;"));
+        assertTrue(reply.endsWith("more tokens elided\n```\nAnything else?"));
+        assertTrue(TokenCounter.count(reply) < ContextBudget.MAX_CODE_BLOCK_TOKENS + 50);
+
+        // The same window fits the same way every time, so the request's prefix stays cacheable
+        assertEquals(fitted, budget.fit(window));
+    }
+
+    @Test
+    public void testOverBudgetCondensesOlderTurns()
+    {
+        ContextBudget budget = new ContextBudget(1500);
+        String longTurn = "Let me explain the whole design of the service in detail. ".repeat(60);
+        List<TranscriptMessage> window = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            window.add(new TranscriptMessage(i % 2 == 0 ? "user" : "assistant", i + ": " + longTurn));
+        }
+        window.add(new TranscriptMessage("user", "Now write the cache class"));
+
+        List<TranscriptMessage> fitted = budget.fit(window);
+
+        int total = fitted.stream().mapToInt(message -> TokenCounter.count(message.content)).sum();
+        assertTrue(total <= ContextBudget.INITIAL_BUDGET_TOKENS);
+        assertEquals("Now write the cache class", fitted.getLast().content);
+        assertEquals(window.get(window.size() - 2), fitted.get(fitted.size() - 2));
+
+        TranscriptMessage summary = fitted.getFirst();
+        assertEquals("system", summary.role);
+        assertTrue(summary.content.startsWith("Earlier in the conversation (condensed):\n- "));
+        // The condensed turns are the ones just before those kept verbatim
+        assertTrue(summary.content.contains("- assistant: " + (window.size() - fitted.size()) + ": "));
+    }
+
+    @Test
+    public void testBudgetFollowsTimeToFirstToken()
+    {
+        ContextBudget budget = new ContextBudget(1000);
+
+        recordMillis(budget, 2000, 8);
+        int shrunk = budget.getBudgetTokens();
+        assertTrue(shrunk < ContextBudget.INITIAL_BUDGET_TOKENS);
+
+        // Between the target and the growth threshold it holds steady
+        recordMillis(budget, 800, 8);
+        assertEquals(shrunk, budget.getBudgetTokens());
+
+        recordMillis(budget, 100, 8 * 20);
+        assertEquals(ContextBudget.MAX_BUDGET_TOKENS, budget.getBudgetTokens());
+
+        recordMillis(budget, 5000, 8 * 20);
+        assertEquals(ContextBudget.MIN_BUDGET_TOKENS, budget.getBudgetTokens());
+    }
+
+    private static void recordMillis(ContextBudget budget, long millis, int times)
+    {
+        for (int i = 0; i < times; i++)
+        {
+            budget.recordTimeToFirstToken(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
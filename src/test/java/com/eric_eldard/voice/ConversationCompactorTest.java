@@ -0,0 +1,87 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ConversationCompactorTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testNothingDueBelowThreshold()
+    {
+        ConversationCompactor compactor = withItems(12);
+        assertTrue(compactor.beginCompaction(999).isEmpty());
+    }
+
+    @Test
+    public void testCompactsAllButRecentItems()
+    {
+        ConversationCompactor compactor = withItems(12);
+
+        List<ConversationCompactor.Item> stale = compactor.beginCompaction(5000);
+
+        assertEquals(8, stale.size());
+        assertEquals("item_0", stale.get(0).id());
+        assertEquals("Message 0", stale.get(0).text());
+        assertTrue("Only one compaction at a time", compactor.beginCompaction(5000).isEmpty());
+
+        compactor.endCompaction(stale, new ConversationCompactor.Item("summary_1", "system", "Summary"));
+
+        assertEquals(5, compactor.getItemCount());
+        assertEquals(1, compactor.getCompactions());
+    }
+
+    @Test
+    public void testTranscriptFillsInAudioItem()
+    {
+        ConversationCompactor compactor = withItems(0);
+        ObjectNode item = MAPPER.createObjectNode().put("id", "audio_1").put("type", "message").put("role", "user");
+        item.putArray("content").addObject().put("type", "input_audio");
+        compactor.onItemCreated(item);
+        compactor.onItemText("audio_1", "Let's add a cache");
+        for (int i = 0; i < 8; i++)
+        {
+            compactor.onItemCreated(textItem("item_" + i, "assistant", "Reply " + i));
+        }
+
+        List<ConversationCompactor.Item> stale = compactor.beginCompaction(5000);
+
+        assertEquals("Let's add a cache", stale.get(0).textOrPlaceholder());
+    }
+
+    @Test
+    public void testAbandonedCompactionKeepsItems()
+    {
+        ConversationCompactor compactor = withItems(12);
+        compactor.endCompaction(List.of(), null);
+        compactor.beginCompaction(5000);
+        compactor.endCompaction(List.of(), null);
+
+        assertEquals(12, compactor.getItemCount());
+        assertEquals(8, compactor.beginCompaction(5000).size());
+    }
+
+    private static ConversationCompactor withItems(int count)
+    {
+        ConversationCompactor compactor = new ConversationCompactor(1000, 4);
+        for (int i = 0; i < count; i++)
+        {
+            compactor.onItemCreated(textItem("item_" + i, i % 2 == 0 ? "user" : "assistant", "Message " + i));
+        }
+        return compactor;
+    }
+
+    static ObjectNode textItem(String id, String role, String text)
+    {
+        ObjectNode item = MAPPER.createObjectNode().put("id", id).put("type", "message").put("role", role);
+        item.putArray("content").addObject().put("type", "input_text").put("text", text);
+        return item;
+    }
+}
@@ -0,0 +1,48 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DiskLruStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOldestTimestampsAreEvicted() throws Exception
+    {
+        Path dir = folder.newFolder("store").toPath();
+        Files.writeString(dir.resolve("notes.txt"), "not an entry");
+        DiskLruStore store = new DiskLruStore(dir, ".entry", 2);
+
+        store.write("a", "1", 1_000_000);
+        store.write("b", "2", 2_000_000);
+        store.touch("a", 3_000_000);
+        store.write("c", "3", 4_000_000);
+
+        assertEquals(new DiskLruStore.Stored("1", 3_000_000), store.read("a"));
+        assertNull(store.read("b"));
+        assertEquals("3", store.read("c").content());
+        // Only its own files count toward the bound, or are evicted
+        assertTrue(Files.exists(dir.resolve("notes.txt")));
+    }
+
+    @Test
+    public void testDeletedEntryIsGone() throws Exception
+    {
+        DiskLruStore store = new DiskLruStore(folder.newFolder("store").toPath(), ".entry", 2);
+        store.write("a", "1", System.currentTimeMillis());
+
+        store.delete("a");
+
+        assertNull(store.read("a"));
+    }
+}
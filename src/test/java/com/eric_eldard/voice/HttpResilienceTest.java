@@ -0,0 +1,161 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class HttpResilienceTest
+{
+    private final OkHttpClient client = new OkHttpClient();
+
+    private MockWebServer server;
+
+    private Request request;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockWebServer();
+        server.start();
+        request = new Request.Builder().url(server.url("/v1/chat/completions")).build();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.shutdown();
+    }
+
+    @Test
+    public void testTransientFailureIsRetried() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 5, 30_000);
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(200, response.code());
+            assertEquals("ok", response.body().string());
+        }
+        assertEquals(3, server.getRequestCount());
+        assertTrue(resilience.describe(), resilience.describe().endsWith("2 retries, 0 fast fails"));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 5, 30_000);
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        long start = System.nanoTime();
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(200, response.code());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 5, 30_000);
+        server.enqueue(new MockResponse().setResponseCode(400));
+
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(400, response.code());
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 2, 30_000);
+        for (int i = 0; i < 2 * HttpResilience.MAX_ATTEMPTS; i++)
+        {
+            server.enqueue(new MockResponse().setResponseCode(502));
+        }
+
+        // Each request is one failure, however many attempts it took
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(502, response.code());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, resilience.getBreaker(request.url()).getState());
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(502, response.code());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, resilience.getBreaker(request.url()).getState());
+
+        try
+        {
+            resilience.execute(client, request).close();
+            fail("Expected the open circuit to fail fast");
+        }
+        catch (HttpResilience.CircuitOpenException expected)
+        {
+            // Never reached the server
+        }
+        assertEquals(2 * HttpResilience.MAX_ATTEMPTS, server.getRequestCount());
+        assertTrue(resilience.describe(), resilience.describe()
+            .startsWith("localhost/v1/chat/completions open, probing in 30s (opened 1 times); "));
+    }
+
+    @Test
+    public void testRetriedRequestWhichSucceedsIsNoFailure() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 2, 30_000);
+        for (int i = 0; i < 2; i++)
+        {
+            server.enqueue(new MockResponse().setResponseCode(503));
+            server.enqueue(new MockResponse().setResponseCode(503));
+            server.enqueue(new MockResponse().setBody("ok"));
+        }
+
+        for (int i = 0; i < 2; i++)
+        {
+            try (Response response = resilience.execute(client, request))
+            {
+                assertEquals(200, response.code());
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, resilience.getBreaker(request.url()).getState());
+    }
+
+    @Test
+    public void testProbeIsRetriedAsOneRequest() throws Exception
+    {
+        HttpResilience resilience = new HttpResilience(10, 1, 100);
+        for (int i = 0; i < HttpResilience.MAX_ATTEMPTS; i++)
+        {
+            server.enqueue(new MockResponse().setResponseCode(502));
+        }
+        resilience.execute(client, request).close();
+        assertEquals(CircuitBreaker.State.OPEN, resilience.getBreaker(request.url()).getState());
+
+        Thread.sleep(150);
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody("ok"));
+        try (Response response = resilience.execute(client, request))
+        {
+            assertEquals(200, response.code());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, resilience.getBreaker(request.url()).getState());
+    }
+}
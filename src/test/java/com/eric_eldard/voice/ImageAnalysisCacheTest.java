@@ -0,0 +1,83 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+public class ImageAnalysisCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeyFollowsContentNotName() throws Exception
+    {
+        File original = file("shot.png", "pixels");
+        File renamed = file("copy of shot.png", "pixels");
+        File changed = file("shot2.png", "pixelz");
+
+        String key = ImageAnalysisCache.key("model", "Describe", List.of(original));
+
+        assertEquals(key, ImageAnalysisCache.key("model", "Describe", List.of(renamed)));
+        assertNotEquals(key, ImageAnalysisCache.key("model", "Describe", List.of(changed)));
+        assertNotEquals(key, ImageAnalysisCache.key("model", "Describe it", List.of(original)));
+        assertNotEquals(key, ImageAnalysisCache.key("other-model", "Describe", List.of(original)));
+        // Where one image ends and the next begins matters
+        assertNotEquals(ImageAnalysisCache.key("model", "Describe", List.of(file("a", "ab"), file("b", "c"))),
+            ImageAnalysisCache.key("model", "Describe", List.of(file("c", "a"), file("d", "bc"))));
+    }
+
+    @Test
+    public void testAnalysesSurviveARestart() throws Exception
+    {
+        Path dir = folder.newFolder("cache").toPath();
+        new ImageAnalysisCache(10, dir).put("abc", "A cat");
+
+        ImageAnalysisCache reopened = new ImageAnalysisCache(10, dir);
+
+        assertEquals("A cat", reopened.get("abc"));
+        assertNull(reopened.get("def"));
+        assertEquals("1 hits, 1 misses", reopened.describe());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() throws Exception
+    {
+        Path dir = folder.newFolder("cache").toPath();
+        ImageAnalysisCache cache = new ImageAnalysisCache(2, dir);
+        cache.put("first", "1");
+        cache.put("second", "2");
+        age(dir, "first", 20_000);
+        age(dir, "second", 10_000);
+
+        // Reading the older entry makes it the most recently used
+        cache.get("first");
+        cache.put("third", "3");
+
+        assertEquals("1", cache.get("first"));
+        assertNull(cache.get("second"));
+        assertEquals("3", cache.get("third"));
+    }
+
+    private static void age(Path dir, String key, long ms) throws Exception
+    {
+        Files.setLastModifiedTime(dir.resolve(key + ".analysis"), FileTime.fromMillis(System.currentTimeMillis() - ms));
+    }
+
+    private File file(String name, String contents) throws Exception
+    {
+        File file = folder.newFile(name);
+        Files.writeString(file.toPath(), contents);
+        return file;
+    }
+}
@@ -0,0 +1,122 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import com.eric_eldard.voice.ImagePreprocessor.PreparedImage;
+
+public class ImagePreprocessorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ImagePreprocessor preprocessor = new ImagePreprocessor(0.85f);
+
+    @Test
+    public void testTargetSizeMatchesWhatTheModelSees()
+    {
+        // A 4K screenshot fits 2048 square, then its short side comes down to 768
+        assertEquals(new Dimension(1365, 768), ImagePreprocessor.targetSize(3840, 2160));
+        // A tall image is limited by its width
+        assertEquals(new Dimension(768, 1536), ImagePreprocessor.targetSize(1000, 2000));
+        // A very long image is limited by its long side
+        assertEquals(new Dimension(2048, 205), ImagePreprocessor.targetSize(10000, 1000));
+        // Small images are never enlarged
+        assertEquals(new Dimension(640, 480), ImagePreprocessor.targetSize(640, 480));
+    }
+
+    @Test
+    public void testLargeScreenshotIsDownscaledToJpeg() throws Exception
+    {
+        File file = png("screenshot.png", 3840, 2160, BufferedImage.TYPE_INT_ARGB);
+
+        PreparedImage prepared = preprocessor.prepare(file).get(10, TimeUnit.SECONDS);
+
+        assertEquals("image/jpeg", prepared.mimeType());
+        BufferedImage sent = ImageIO.read(new ByteArrayInputStream(prepared.bytes()));
+        assertEquals(1365, sent.getWidth());
+        assertEquals(768, sent.getHeight());
+        assertTrue(prepared.bytes().length < Files.size(file.toPath()));
+        // Transparency was flattened onto white, not black
+        assertTrue((sent.getRGB(0, 0) & 0xff) > 200);
+    }
+
+    @Test
+    public void testSmallImageIsKeptWhenReencodingWouldNotShrinkIt() throws Exception
+    {
+        // Flat colour compresses better as PNG than as JPEG
+        File file = png("icon.png", 64, 64, BufferedImage.TYPE_INT_RGB);
+
+        PreparedImage prepared = preprocessor.prepareNow(file);
+
+        assertEquals("image/png", prepared.mimeType());
+        assertArrayEquals(Files.readAllBytes(file.toPath()), prepared.bytes());
+    }
+
+    @Test
+    public void testUnreadableAndAnimatedFormatsAreSentAsTheyAre() throws Exception
+    {
+        File notAnImage = folder.newFile("notes.png");
+        Files.writeString(notAnImage.toPath(), "not really a png");
+        File gif = folder.newFile("anim.gif");
+        Files.write(gif.toPath(), new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+
+        assertArrayEquals(Files.readAllBytes(notAnImage.toPath()), preprocessor.prepareNow(notAnImage).bytes());
+        assertEquals("image/gif", preprocessor.prepareNow(gif).mimeType());
+    }
+
+    @Test
+    public void testDescribeReportsBytesAndTimeSaved() throws Exception
+    {
+        File file = png("screenshot.png", 2880, 1800, BufferedImage.TYPE_INT_RGB);
+        long original = Files.size(file.toPath());
+        long sent = preprocessor.prepareNow(file).bytes().length;
+
+        String description = preprocessor.describe(1024 * 1024);
+
+        assertTrue(description, description.startsWith(String.format("1 images, %d KB -> %d KB (%d%% saved), ~",
+            original / 1024, sent / 1024, Math.round(100.0 * (original - sent) / original))));
+        assertTrue(description, preprocessor.describe(0).contains("unknown upload saved"));
+    }
+
+    /**
+     * @return a PNG with enough detail that it doesn't compress to nothing
+     */
+    private File png(String name, int width, int height, int type) throws Exception
+    {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        if (type == BufferedImage.TYPE_INT_RGB)
+        {
+            graphics.setColor(Color.LIGHT_GRAY);
+            graphics.fillRect(0, 0, width, height);
+        }
+        graphics.setColor(Color.DARK_GRAY);
+        if (width > 64)
+        {
+            for (int y = 20; y < height - 20; y += 18)
+            {
+                graphics.drawString("public void method" + y + "() { return value * " + y + "; }", 10, y);
+            }
+        }
+        graphics.dispose();
+        File file = folder.newFile(name);
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
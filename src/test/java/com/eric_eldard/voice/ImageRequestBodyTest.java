@@ -0,0 +1,79 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import com.eric_eldard.voice.ImagePreprocessor.PreparedImage;
+
+public class ImageRequestBodyTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testImagesAreEncodedIntoTheirPlaceholders() throws Exception
+    {
+        // Sizes either side of the chunk size, and each remainder mod 3
+        List<PreparedImage> images = new ArrayList<>();
+        Random random = new Random(42);
+        for (int size : new int[]{0, 1, 2, 3, 3 * 8192 - 1, 3 * 8192 + 1, 100_000})
+        {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            images.add(new PreparedImage(bytes, size % 2 == 0 ? "image/jpeg" : "image/png"));
+        }
+        List<String> placeholders = ImageRequestBody.placeholders(images.size());
+        ObjectNode envelope = MAPPER.createObjectNode().put("prompt", "Describe \"these\" – please");
+        ArrayNode urls = envelope.putArray("images");
+        placeholders.forEach(placeholder -> urls.addObject().put("url", placeholder));
+
+        ImageRequestBody body = new ImageRequestBody(MAPPER.writeValueAsString(envelope), placeholders, images);
+        Buffer written = new Buffer();
+        body.writeTo(written);
+
+        assertEquals(body.contentLength(), written.size());
+        JsonNode json = MAPPER.readTree(written.readUtf8());
+        assertEquals("Describe \"these\" – please", json.get("prompt").asText());
+        for (int i = 0; i < images.size(); i++)
+        {
+            String url = json.at("/images/" + i + "/url").asText();
+            String prefix = "data:" + images.get(i).mimeType() + ";base64,";
+            assertEquals(prefix, url.substring(0, prefix.length()));
+            assertArrayEquals(images.get(i).bytes(), Base64.getDecoder().decode(url.substring(prefix.length())));
+        }
+    }
+
+    @Test
+    public void testBodyCanBeWrittenAgainForARetry() throws Exception
+    {
+        List<String> placeholders = ImageRequestBody.placeholders(1);
+        ImageRequestBody body = new ImageRequestBody("{\"url\":\"" + placeholders.getFirst() + "\"}", placeholders,
+            List.of(new PreparedImage(new byte[]{1, 2, 3, 4}, "image/png")));
+
+        Buffer first = new Buffer();
+        body.writeTo(first);
+        Buffer second = new Buffer();
+        body.writeTo(second);
+
+        assertEquals("{\"url\":\"data:image/png;base64,AQIDBA==\"}", first.readUtf8());
+        assertEquals("{\"url\":\"data:image/png;base64,AQIDBA==\"}", second.readUtf8());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingPlaceholderIsRejected()
+    {
+        new ImageRequestBody("{}", ImageRequestBody.placeholders(1),
+            List.of(new PreparedImage(new byte[1], "image/png")));
+    }
+}
@@ -0,0 +1,75 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_CODE_REQUEST;
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+public class LocalPreClassifierTest
+{
+    @Test
+    public void testConversationalTurnsAreClearlyNonGenerative()
+    {
+        assertTrue(LocalPreClassifier.isClearlyNonGenerative(user("What is a monad?")));
+        assertTrue(LocalPreClassifier.isClearlyNonGenerative(user("Thanks, that’s really interesting")));
+        assertTrue(LocalPreClassifier.isClearlyNonGenerative(user("How does garbage collection work in the JVM")));
+        assertTrue(LocalPreClassifier.isClearlyNonGenerative(user("How do closures capture variables?")));
+    }
+
+    @Test
+    public void testGenerativeOrAmbiguousTurnsAreForwarded()
+    {
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("Can you write a function to reverse a list?")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("What would a builder class look like")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("I want to build a web app that tracks habits")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("Yes, go ahead")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("Reverse that list")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("How do I reverse a list in Python?")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("how to read a file line by line")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("How can I sort a map by value?")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("What's the syntax for a switch expression?")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(user("What's the regex for an email?")));
+        assertFalse(LocalPreClassifier.isClearlyNonGenerative(List.of(
+            new TranscriptMessage("user", "Hi"), new TranscriptMessage("assistant", "Hello! What shall we build?"))));
+    }
+
+    @Test
+    public void testLocalAnswersSkipDelegateExceptWhenAudited() throws Exception
+    {
+        AtomicInteger delegateCalls = new AtomicInteger();
+        LocalPreClassifier classifier = new LocalPreClassifier((messages, stream) ->
+        {
+            delegateCalls.incrementAndGet();
+            return CompletableFuture.completedFuture(LABEL_CODE_REQUEST + " int x;");
+        }, 2);
+
+        assertEquals(LABEL_NON_GENERATIVE_REQUEST, classifier.classify(user("Why?"), null).get());
+        assertEquals(0, delegateCalls.get());
+
+        // The second local answer is audited, and the delegate disputes it
+        assertEquals(LABEL_NON_GENERATIVE_REQUEST, classifier.classify(user("Thank you"), null).get());
+        assertEquals(1, delegateCalls.get());
+
+        assertEquals(LABEL_CODE_REQUEST + " int x;", classifier.classify(user("Write it in Kotlin"), null).get());
+        assertEquals(2, delegateCalls.get());
+
+        String description = classifier.describe();
+        assertTrue(description, description.startsWith("2 of 3 answered locally (67%"));
+        assertTrue(description, description.contains("1 of 1 audited local answers disputed"));
+        assertTrue(description, description.endsWith("0 of 1 forwarded came back non-generative"));
+    }
+
+    private static List<TranscriptMessage> user(String text)
+    {
+        return List.of(new TranscriptMessage("user", text));
+    }
+}
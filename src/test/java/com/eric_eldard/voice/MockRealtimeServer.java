@@ -0,0 +1,314 @@
+package com.eric_eldard.voice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Local stand-in for the OpenAI Realtime WebSocket, speaking the subset of the protocol the plugin uses. Replies to
+ * client events are scripted per event type, with delays, audio delta sizes and injected errors; sessions are
+ * acknowledged automatically. Point {@link OpenAIRealtimeService} at {@link #getUrl()} via {@code openai.realtime.url}.
+ */
+public final class MockRealtimeServer implements AutoCloseable
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final MockWebServer server = new MockWebServer();
+
+    // One thread, so scripted events go out in order even when their delays overlap
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, Function<ObjectNode, Script>> scripts = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<ObjectNode> received = new LinkedBlockingQueue<>();
+
+    // Steps in the order they're due; each scheduled send takes the oldest, so timer ties can't reorder them
+    private final BlockingQueue<Step> pending = new LinkedBlockingQueue<>();
+
+    // The client can see the socket open, and push events, before this side's onOpen has run
+    private final CountDownLatch opened = new CountDownLatch(1);
+
+    private final List<ObjectNode> receivedHistory = new CopyOnWriteArrayList<>();
+
+    private volatile WebSocket socket;
+
+    private volatile long nextSendAt = 0;
+
+    private int eventCounter = 0;
+
+    public MockRealtimeServer() throws IOException
+    {
+        on("session.update", script().event("session.updated"));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(new WebSocketListener()
+        {
+            @Override
+            public void onOpen(WebSocket webSocket, Response response)
+            {
+                socket = webSocket;
+                opened.countDown();
+                run(script().event("session.created"));
+            }
+
+            @Override
+            public void onMessage(WebSocket webSocket, String text)
+            {
+                try
+                {
+                    ObjectNode event = (ObjectNode) objectMapper.readTree(text);
+                    receivedHistory.add(event);
+                    received.add(event);
+                    Function<ObjectNode, Script> reply = scripts.get(event.get("type").asText());
+                    if (reply != null)
+                    {
+                        run(reply.apply(event));
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException("Client sent malformed JSON: " + text, e);
+                }
+            }
+        }));
+        server.start();
+    }
+
+    public String getUrl()
+    {
+        return server.url("/v1/realtime").toString();
+    }
+
+    /**
+     * Replaces the reply to a client event type
+     */
+    public MockRealtimeServer on(String clientEventType, Script script)
+    {
+        return on(clientEventType, event -> script);
+    }
+
+    /**
+     * Replaces the reply to a client event type with one built from each event as it arrives
+     */
+    public MockRealtimeServer on(String clientEventType, Function<ObjectNode, Script> reply)
+    {
+        scripts.put(clientEventType, reply);
+        return this;
+    }
+
+    /**
+     * Sends events unprompted, e.g. server VAD events for audio the client streamed
+     */
+    public void push(Script script)
+    {
+        run(script);
+    }
+
+    /**
+     * Waits for the next client event of the given type, skipping others
+     *
+     * @return the event, or null if none arrived in time
+     */
+    public ObjectNode awaitEvent(String type, long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (long remaining = timeoutMs; remaining > 0; remaining = deadline - System.currentTimeMillis())
+        {
+            ObjectNode event = received.poll(remaining, TimeUnit.MILLISECONDS);
+            if (event != null && type.equals(event.get("type").asText()))
+            {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    public long countReceived(String type)
+    {
+        return receivedHistory.stream().filter(event -> type.equals(event.get("type").asText())).count();
+    }
+
+    public static Script script()
+    {
+        return new Script();
+    }
+
+    /**
+     * A {@code rate_limits.updated} event with the given requests remaining, out of 100, and a roomy token budget
+     */
+    public static ObjectNode rateLimits(long requestsRemaining, double resetSeconds)
+    {
+        ObjectNode event = Script.MAPPER.createObjectNode().put("type", "rate_limits.updated");
+        event.putArray("rate_limits")
+            .add(Script.MAPPER.createObjectNode().put("name", "requests").put("limit", 100)
+                .put("remaining", requestsRemaining).put("reset_seconds", resetSeconds))
+            .add(Script.MAPPER.createObjectNode().put("name", "tokens").put("limit", 100_000)
+                .put("remaining", 100_000).put("reset_seconds", resetSeconds));
+        return event;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        scheduler.shutdownNow();
+        if (socket != null)
+        {
+            socket.close(1000, "Mock server closing");
+        }
+        server.shutdown();
+    }
+
+    private synchronized void run(Script script)
+    {
+        // Scripts queue behind whatever is already scheduled, so replies never overtake earlier ones
+        long now = System.currentTimeMillis();
+        long sendAt = Math.max(now, nextSendAt);
+        for (Step step : script.steps)
+        {
+            sendAt += step.delayMs;
+            pending.add(step);
+            scheduler.schedule(this::sendNext, sendAt - now, TimeUnit.MILLISECONDS);
+        }
+        nextSendAt = sendAt;
+    }
+
+    private void sendNext()
+    {
+        Step step = pending.poll();
+        try
+        {
+            if (step == null || !opened.await(5, TimeUnit.SECONDS))
+            {
+                return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (step.closeCode > 0)
+        {
+            socket.close(step.closeCode, "Scripted close");
+            return;
+        }
+
+        ObjectNode event = step.event.deepCopy();
+        synchronized (this)
+        {
+            event.put("event_id", "event_mock_" + ++eventCounter);
+        }
+        socket.send(event.toString());
+    }
+
+    private record Step(long delayMs, ObjectNode event, int closeCode)
+    {
+    }
+
+    /**
+     * Ordered server events, each sent a given delay after the one before it
+     */
+    public static class Script
+    {
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        private final List<Step> steps = new ArrayList<>();
+
+        private long pendingDelayMs = 0;
+
+        public Script delay(long delayMs)
+        {
+            pendingDelayMs += delayMs;
+            return this;
+        }
+
+        public Script event(String type)
+        {
+            return event(eventNode(type));
+        }
+
+        /**
+         * @return a bare event of the given type, for tests to add fields to before scripting it
+         */
+        public ObjectNode eventNode(String type)
+        {
+            return MAPPER.createObjectNode().put("type", type);
+        }
+
+        public Script event(ObjectNode event)
+        {
+            steps.add(new Step(pendingDelayMs, event, 0));
+            pendingDelayMs = 0;
+            return this;
+        }
+
+        /**
+         * A full spoken response: created, the given audio deltas at the given interval, transcript, then done
+         */
+        public Script response(int audioDeltas, int deltaBytes, long intervalMs, String transcript)
+        {
+            event("response.created");
+            String audio = Base64.getEncoder().encodeToString(new byte[deltaBytes]);
+            for (int i = 0; i < audioDeltas; i++)
+            {
+                delay(i == 0 ? 0 : intervalMs);
+                event(MAPPER.createObjectNode().put("type", "response.audio.delta").put("delta", audio));
+            }
+            event("response.audio.done");
+            event(MAPPER.createObjectNode().put("type", "response.audio_transcript.done").put("transcript", transcript));
+            return event("response.done");
+        }
+
+        /**
+         * Replies to an out-of-band {@code response.create}, echoing its metadata, with one text delta per part
+         */
+        public Script outOfBandResponse(ObjectNode request, String responseId, String... textDeltas)
+        {
+            ObjectNode created = eventNode("response.created");
+            created.putObject("response").put("id", responseId).put("conversation_id", (String) null)
+                .set("metadata", request.at("/response/metadata"));
+            event(created);
+            for (String delta : textDeltas)
+            {
+                event(eventNode("response.text.delta").put("response_id", responseId).put("delta", delta));
+            }
+            ObjectNode done = eventNode("response.done");
+            ObjectNode response = done.putObject("response").put("id", responseId).put("status", "completed");
+            response.set("metadata", request.at("/response/metadata"));
+            response.putObject("usage").put("input_tokens", 500).put("output_tokens", 20);
+            return event(done);
+        }
+
+        public Script error(String code, String message)
+        {
+            ObjectNode event = MAPPER.createObjectNode().put("type", "error");
+            event.putObject("error").put("type", "invalid_request_error").put("code", code).put("message", message);
+            return event(event);
+        }
+
+        public Script close(int code)
+        {
+            steps.add(new Step(pendingDelayMs, null, code));
+            pendingDelayMs = 0;
+            return this;
+        }
+    }
+}
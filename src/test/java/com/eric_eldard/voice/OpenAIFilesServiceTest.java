@@ -0,0 +1,220 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import com.eric_eldard.metrics.UsageMeter;
+
+public class OpenAIFilesServiceTest
+{
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final long SLOW_MS = 600;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    private final List<JsonNode> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockWebServer();
+        // Describes each request's images by their contents; "slow" images take a while
+        server.setDispatcher(new Dispatcher()
+        {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+            {
+                try
+                {
+                    JsonNode body = MAPPER.readTree(request.getBody().readUtf8());
+                    requests.add(body);
+                    StringBuilder description = new StringBuilder();
+                    for (JsonNode part : body.at("/messages/0/content"))
+                    {
+                        String url = part.at("/image_url/url").asText("");
+                        if (!url.isEmpty())
+                        {
+                            String base64 = url.substring(url.indexOf(',') + 1);
+                            description.append(description.isEmpty() ? "" : " + ")
+                                .append(new String(Base64.getDecoder().decode(base64)));
+                        }
+                    }
+                    ObjectNode response = MAPPER.createObjectNode();
+                    response.putArray("choices").addObject().putObject("message")
+                        .put("content", "A picture of " + description);
+                    return new MockResponse()
+                        .setBodyDelay(description.toString().contains("slow") ? SLOW_MS : 0, TimeUnit.MILLISECONDS)
+                        .setBody(MAPPER.writeValueAsString(response));
+                }
+                catch (Exception e)
+                {
+                    return new MockResponse().setResponseCode(400);
+                }
+            }
+        });
+        server.start();
+        System.setProperty("openai.chat.url", server.url("/v1/chat/completions").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.shutdown();
+        System.clearProperty("openai.chat.url");
+        System.clearProperty("openai.image.batch");
+        System.clearProperty("openai.image.parallelism");
+        System.clearProperty("openai.image.delta");
+    }
+
+    @Test
+    public void testImagesAreAnalyzedConcurrentlyAndJoinedInOrder() throws Exception
+    {
+        OpenAIFilesService service = new OpenAIFilesService("test-key", new UsageMeter());
+        File[] files = {image("a.png", "slow cat"), image("b.png", "slow dog"), image("c.png", "fish")};
+        List<String> streamed = new CopyOnWriteArrayList<>();
+
+        long start = System.nanoTime();
+        String result = service.uploadFiles(files, streamed::add).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // Both slow images were in flight at once
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2 * SLOW_MS);
+        assertEquals("""
+            Analysis of a.png:
+            A picture of slow cat
+
+            Analysis of b.png:
+            A picture of slow dog
+
+            Analysis of c.png:
+            A picture of fish""", result);
+        // The quick one was passed on first, without waiting for the others
+        assertEquals(3, streamed.size());
+        assertEquals("Analysis of c.png:\nA picture of fish", streamed.getFirst());
+    }
+
+    @Test
+    public void testParallelismIsCapped() throws Exception
+    {
+        System.setProperty("openai.image.parallelism", "1");
+        OpenAIFilesService service = new OpenAIFilesService("test-key", new UsageMeter());
+        File[] files = {image("a.png", "slow cat"), image("b.png", "slow dog")};
+
+        long start = System.nanoTime();
+        service.uploadFiles(files).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 2 * SLOW_MS);
+    }
+
+    @Test
+    public void testBatchSendsAllImagesInOneRequest() throws Exception
+    {
+        System.setProperty("openai.image.batch", "true");
+        OpenAIFilesService service = new OpenAIFilesService("test-key", new UsageMeter());
+        File[] files = {image("a.png", "cat"), image("b.png", "dog")};
+        List<String> streamed = new CopyOnWriteArrayList<>();
+
+        String result = service.uploadFiles(files, streamed::add).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals("A picture of cat + dog", result);
+        assertEquals(List.of(result), streamed);
+        assertEquals(1, requests.size());
+        assertEquals(2000, requests.getFirst().get("max_completion_tokens").asInt());
+        assertTrue(requests.getFirst().at("/messages/0/content/0/text").asText().contains("a.png, b.png"));
+    }
+
+    @Test
+    public void testRepeatedImageIsAnsweredFromCache() throws Exception
+    {
+        OpenAIFilesService service = new OpenAIFilesService("test-key", new UsageMeter(), new HttpResilience(),
+            folder.newFolder("cache").toPath());
+        service.uploadFiles(new File[]{image("a.png", "cat")}).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // The same picture under another name, pasted again
+        String result = service.uploadFiles(new File[]{image("pasted.png", "cat")})
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals("Analysis of pasted.png:\nA picture of cat", result);
+        assertEquals(1, requests.size());
+        assertTrue(service.describeUploads().endsWith("cache 1 hits, 1 misses"));
+    }
+
+    @Test
+    public void testNearCopyOfScreenshotSendsOnlyTheChange() throws Exception
+    {
+        System.setProperty("openai.image.delta", "true");
+        OpenAIFilesService service = new OpenAIFilesService("test-key", new UsageMeter());
+        BufferedImage screen = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+        service.uploadFiles(new File[]{png("first.png", screen)}).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        screen.setRGB(640, 400, 0xffffff);
+        String result = service.uploadFiles(new File[]{png("second.png", screen)})
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // The changed tile and its margin, described against the first analysis
+        assertTrue(result, result.startsWith("Analysis of second.png (changes since the previous screenshot, in the "
+            + "128x128 region at 592,336):"));
+        assertEquals(2, requests.size());
+        JsonNode content = requests.getLast().at("/messages/0/content");
+        String prompt = content.get(0).get("text").asText();
+        assertTrue(prompt, prompt.contains("1280x800 screenshot at x=592, y=336"));
+        assertTrue(prompt, prompt.contains("A picture of "));
+        String url = content.get(1).at("/image_url/url").asText();
+        BufferedImage sent = ImageIO.read(new ByteArrayInputStream(
+            Base64.getDecoder().decode(url.substring(url.indexOf(',') + 1))));
+        assertEquals(128, sent.getWidth());
+        assertEquals(128, sent.getHeight());
+
+        // A delta doesn't become the base, so an unchanged copy of the first is answered without a call
+        screen.setRGB(640, 400, 0);
+        String unchanged = service.uploadFiles(new File[]{png("third.png", screen)})
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(unchanged, unchanged.startsWith("Analysis of third.png (unchanged since the previous screenshot):"));
+        assertEquals(2, requests.size());
+        assertTrue(service.describeUploads(),
+            service.describeUploads().endsWith("1 of 3 screenshots sent as deltas, 1 unchanged"));
+    }
+
+    private File png(String name, BufferedImage image) throws Exception
+    {
+        File file = folder.newFile(name);
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private File image(String name, String contents) throws Exception
+    {
+        File file = folder.newFile(name);
+        Files.writeString(file.toPath(), contents);
+        return file;
+    }
+}
@@ -0,0 +1,351 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.MockRealtimeServer.script;
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.eric_eldard.metrics.UsageMeter;
+import com.eric_eldard.voice.OpenAIResponsesService.ClassifierStreamListener;
+
+public class OpenAIRealtimeServiceTest
+{
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final long MAX_AUDIO_DELIVERY_MS = 5000;
+
+    private MockRealtimeServer server;
+
+    private OpenAIRealtimeService service;
+
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockRealtimeServer();
+        System.setProperty("openai.realtime.url", server.getUrl());
+        System.setProperty("openai.turn.mode", "server_vad");
+
+        service = new OpenAIRealtimeService("test-key", "gpt-realtime-mini", "alloy", "", new UsageMeter());
+        listener = new RecordingListener();
+        service.setEventListener(listener);
+        assertTrue(service.connect().get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        service.disconnect();
+        server.close();
+        System.clearProperty("openai.realtime.url");
+        System.clearProperty("openai.turn.mode");
+    }
+
+    @Test
+    public void testSessionAdvertisesTurnMode() throws Exception
+    {
+        ObjectNode sessionUpdate = server.awaitEvent("session.update", TIMEOUT_MS);
+        assertNotNull(sessionUpdate);
+        assertEquals("server_vad", sessionUpdate.at("/session/turn_detection/type").asText());
+        assertTrue(sessionUpdate.at("/session/turn_detection/create_response").asBoolean());
+    }
+
+    @Test
+    public void testTextMessageStreamsScriptedResponse() throws Exception
+    {
+        server.on("response.create", script().delay(20).response(5, 4800, 10, "Hello there"));
+
+        service.sendTextMessage("Hi");
+
+        assertNotNull(server.awaitEvent("conversation.item.create", TIMEOUT_MS));
+        assertNotNull(server.awaitEvent("response.create", TIMEOUT_MS));
+        assertEquals("agentTranscript:Hello there", listener.await("agentTranscript:"));
+        listener.await("responseComplete");
+        assertEquals(5, listener.audioDeltas.get());
+        assertEquals(5 * 4800, listener.audioBytes.get());
+    }
+
+    @Test
+    public void testInjectedErrorReachesListener() throws Exception
+    {
+        server.push(script().error("rate_limit_exceeded", "Too Many Requests"));
+        assertEquals("error:OpenAI API error: Too Many Requests", listener.await("error:"));
+    }
+
+    @Test
+    public void testResponseHeldUntilRateLimitResets() throws Exception
+    {
+        ObjectNode rateLimits = MockRealtimeServer.rateLimits(0, 0.5);
+        server.push(script().event(rateLimits));
+        listener.await("trace:Rate Limits");
+
+        long start = System.currentTimeMillis();
+        service.sendTextMessage("Hi");
+
+        assertNotNull(server.awaitEvent("conversation.item.create", TIMEOUT_MS));
+        assertNotNull(server.awaitEvent("response.create", TIMEOUT_MS));
+        long heldMs = System.currentTimeMillis() - start;
+        assertTrue("response.create should wait for the reset, was sent after " + heldMs + "ms", heldMs >= 400);
+    }
+
+    @Test
+    public void testRateLimitErrorDoesNotThrottleAudio() throws Exception
+    {
+        server.push(script().error("rate_limit_exceeded", "Too Many Requests"));
+        listener.await("error:");
+
+        service.sendAudioData(new byte[9600]);
+
+        assertNotNull(server.awaitEvent("input_audio_buffer.append", TIMEOUT_MS));
+    }
+
+    @Test
+    public void testLongConversationIsCompacted() throws Exception
+    {
+        service.setConversationSummarizer(transcript -> CompletableFuture.completedFuture("They discussed caching"));
+        MockRealtimeServer.Script conversation = script();
+        for (int i = 0; i < 12; i++)
+        {
+            ObjectNode created = conversation.eventNode("conversation.item.created");
+            created.set("item", ConversationCompactorTest.textItem("item_" + i, "user", "Message " + i));
+            conversation.event(created);
+        }
+        ObjectNode done = conversation.eventNode("response.done");
+        done.putObject("response").putObject("usage").put("input_tokens", 50_000).put("output_tokens", 100);
+        server.push(conversation.event(done));
+
+        ObjectNode summary = server.awaitEvent("conversation.item.create", TIMEOUT_MS);
+
+        assertNotNull(summary);
+        assertEquals("root", summary.get("previous_item_id").asText());
+        assertTrue(summary.at("/item/content/0/text").asText().contains("They discussed caching"));
+        assertEquals(6, server.countReceived("conversation.item.delete"));
+    }
+
+    @Test
+    public void testServerVadCommitIsNotRepeatedOnMicOff() throws Exception
+    {
+        VoiceService voiceService = VoiceService.create(service, new AudioService());
+        try
+        {
+            // Observe the service directly; the commit decision only reads its state
+            service.setEventListener(listener);
+            service.sendAudioData(new byte[9600]);
+            server.push(script().event("input_audio_buffer.speech_started")
+                .delay(50).event("input_audio_buffer.speech_stopped")
+                .event("input_audio_buffer.committed"));
+            listener.await("userSpeechEnded");
+
+            voiceService.stopVoiceSession();
+
+            Thread.sleep(200);
+            assertEquals(0, server.countReceived("input_audio_buffer.commit"));
+            assertEquals(0, server.countReceived("response.create"));
+        }
+        finally
+        {
+            voiceService.shutdown();
+        }
+    }
+
+    @Test
+    public void testAudioDeltaThroughput() throws Exception
+    {
+        int deltas = 500;
+        int deltaBytes = 4800; // 100ms of 24kHz pcm16
+        server.on("response.create", script().response(deltas, deltaBytes, 0, "Long answer"));
+
+        long start = System.nanoTime();
+        service.sendTextMessage("Tell me a story");
+        listener.await("responseComplete");
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(deltas, listener.audioDeltas.get());
+        assertEquals((long) deltas * deltaBytes, listener.audioBytes.get());
+        // 50s of audio must arrive at least ten times faster than it plays, or playback would stall on the socket
+        assertTrue("Took " + elapsedMs + "ms", elapsedMs < MAX_AUDIO_DELIVERY_MS);
+    }
+
+    @Test
+    public void testOutOfBandClassificationStaysOutOfConversation() throws Exception
+    {
+        server.on("response.create",
+            request -> script().outOfBandResponse(request, "resp_oob", "[code-request]", "\nint x;"));
+        List<String> content = new CopyOnWriteArrayList<>();
+
+        String result = service.classifyOutOfBand("Classify the conversation", new ClassifierStreamListener()
+        {
+            @Override
+            public void onLabel(String label)
+            {
+            }
+
+            @Override
+            public void onContent(String delta)
+            {
+                content.add(delta);
+            }
+        }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals("[code-request]\nint x;", result);
+        assertEquals(List.of("int x;"), content);
+        ObjectNode request = server.awaitEvent("response.create", TIMEOUT_MS);
+        assertEquals("none", request.at("/response/conversation").asText());
+        assertEquals("[\"text\"]", request.at("/response/modalities").toString());
+        assertTrue(listener.events.stream().noneMatch(event -> event.startsWith("response")));
+    }
+
+    @Test
+    public void testNonGenerativeOutOfBandClassificationIsCancelled() throws Exception
+    {
+        server.on("response.create",
+            request -> script().outOfBandResponse(request, "resp_oob", "[non-generative-request]", " Sure!"));
+
+        String result = service.classifyOutOfBand("Classify the conversation", null)
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_NON_GENERATIVE_REQUEST, result);
+        ObjectNode cancel = server.awaitEvent("response.cancel", TIMEOUT_MS);
+        assertNotNull(cancel);
+        assertEquals("resp_oob", cancel.get("response_id").asText());
+    }
+
+    /**
+     * Records listener callbacks as strings, so tests can wait for them in order
+     */
+    private static class RecordingListener implements OpenAIRealtimeService.VoiceEventListener
+    {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        private final AtomicLong audioDeltas = new AtomicLong();
+
+        private final AtomicLong audioBytes = new AtomicLong();
+
+        /**
+         * Waits for the next event starting with the given prefix, skipping others
+         */
+        private String await(String prefix) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            for (long remaining = TIMEOUT_MS; remaining > 0; remaining = deadline - System.currentTimeMillis())
+            {
+                String event = events.poll(remaining, TimeUnit.MILLISECONDS);
+                if (event != null && event.startsWith(prefix))
+                {
+                    return event;
+                }
+            }
+            throw new AssertionError("Timed out waiting for " + prefix);
+        }
+
+        @Override
+        public void onConnected()
+        {
+            events.add("connected");
+        }
+
+        @Override
+        public void onDisconnected()
+        {
+            events.add("disconnected");
+        }
+
+        @Override
+        public void onMessage(String message)
+        {
+            events.add("message:" + message);
+        }
+
+        @Override
+        public void onTraceMessage(String message)
+        {
+            events.add("trace:" + message);
+        }
+
+        @Override
+        public void onError(Throwable error)
+        {
+            events.add("error:" + error.getMessage());
+        }
+
+        @Override
+        public void onSpeechStarted()
+        {
+            events.add("speechStarted");
+        }
+
+        @Override
+        public void onSpeechStopped()
+        {
+            events.add("speechStopped");
+        }
+
+        @Override
+        public void onTextResponse(String text)
+        {
+            events.add("textResponse:" + text);
+        }
+
+        @Override
+        public void onTextDelta(String delta)
+        {
+        }
+
+        @Override
+        public void onUserSpeechEnded(String message)
+        {
+            events.add("userSpeechEnded");
+        }
+
+        @Override
+        public void onAudioResponse(byte[] audioData)
+        {
+            audioDeltas.incrementAndGet();
+            audioBytes.addAndGet(audioData.length);
+        }
+
+        @Override
+        public void onResponseStarted()
+        {
+            events.add("responseStarted");
+        }
+
+        @Override
+        public void onResponseComplete()
+        {
+            events.add("responseComplete");
+        }
+
+        @Override
+        public void onUserTranscript(String transcript)
+        {
+            events.add("userTranscript:" + transcript);
+        }
+
+        @Override
+        public void onAgentTranscript(String transcript)
+        {
+            events.add("agentTranscript:" + transcript);
+        }
+
+        @Override
+        public void onRequestLog(String requestType, String details, String responseCode)
+        {
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.eric_eldard.voice;
+
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_CODE_REQUEST;
+import static com.eric_eldard.voice.OpenAIResponsesService.LABEL_NON_GENERATIVE_REQUEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.eric_eldard.metrics.TokenUsage;
+import com.eric_eldard.metrics.UsageMeter;
+
+public class OpenAIResponsesServiceTest
+{
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private MockWebServer server;
+
+    private UsageMeter usageMeter;
+
+    private OpenAIResponsesService service;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockWebServer();
+        server.start();
+        System.setProperty("openai.chat.url", server.url("/v1/chat/completions").toString());
+
+        usageMeter = new UsageMeter();
+        service = new OpenAIResponsesService("test-key", "", usageMeter);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.shutdown();
+        System.clearProperty("openai.chat.url");
+        System.clearProperty("openai.chat.api");
+        System.clearProperty("openai.responses.url");
+        System.clearProperty("openai.classifier.hedge.percent");
+    }
+
+    @Test
+    public void testCodeRequestStreamsContentAfterLabel() throws Exception
+    {
+        server.enqueue(stream("[code-", "request]\n", "```java\n", "int x;\n```"));
+        RecordingStreamListener listener = new RecordingStreamListener();
+
+        String result = service.analyzeForCodeRequest(messages(), listener).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_CODE_REQUEST + "\n```java\nint x;\n```", result);
+        assertEquals(List.of(LABEL_CODE_REQUEST), listener.labels);
+        assertEquals("```java\nint x;\n```", String.join("", listener.content));
+        assertEquals(2, listener.content.size());
+        assertEquals(1, usageMeter.getSessionTotal().calls());
+
+        RecordedRequest request = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        ObjectNode body = (ObjectNode) MAPPER.readTree(request.getBody().readUtf8());
+        assertTrue(body.get("stream").asBoolean());
+    }
+
+    @Test
+    public void testNonGenerativeResultEndsStreamEarly() throws Exception
+    {
+        server.enqueue(stream("[non-generative-request]", " Sure, here's some chatter the classifier shouldn't send"));
+        RecordingStreamListener listener = new RecordingStreamListener();
+
+        String result = service.analyzeForCodeRequest(messages(), listener).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_NON_GENERATIVE_REQUEST, result);
+        assertTrue(listener.labels.isEmpty());
+        assertTrue(listener.content.isEmpty());
+        // Cut off before its usage chunk, so the call is counted from an estimate
+        TokenUsage usage = usageMeter.getSessionTotal();
+        assertEquals(1, usage.calls());
+        assertTrue(usage.estimatedInputTokens() > 0);
+        assertEquals(usage.inputTokens(), usage.estimatedInputTokens());
+        assertTrue(usage.outputTokens() > 0);
+    }
+
+    @Test
+    public void testFailingListenerStillCompletesTheClassification() throws Exception
+    {
+        server.enqueue(stream("[code-request]\n", "int x;"));
+
+        String result = service.analyzeForCodeRequest(messages(), new RecordingStreamListener()
+        {
+            @Override
+            public void onLabel(String label)
+            {
+                throw new IllegalStateException("Listener failed");
+            }
+        }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_NON_GENERATIVE_REQUEST, result);
+    }
+
+    @Test
+    public void testRequestsShareByteIdenticalPrefix() throws Exception
+    {
+        server.enqueue(stream("[non-generative-request]"));
+        server.enqueue(stream("[non-generative-request]"));
+        List<OpenAIResponsesService.TranscriptMessage> conversation = new ArrayList<>(messages());
+
+        service.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("assistant", "Sure, which name?"));
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "Call it x"));
+        service.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        String first = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getBody().readUtf8();
+        String second = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getBody().readUtf8();
+        assertEquals("junie-voice-classifier", MAPPER.readTree(first).get("prompt_cache_key").asText());
+        // Only the closing brackets of the first request differ from the second
+        String firstPrefix = first.substring(0, first.length() - 2);
+        assertTrue(second.startsWith(firstPrefix));
+    }
+
+    @Test
+    public void testWindowGrowsFromItsStartUntilFull()
+    {
+        List<OpenAIResponsesService.TranscriptMessage> conversation = new ArrayList<>();
+        for (int i = 0; i < OpenAIResponsesService.MIN_WINDOW_MESSAGES + 2; i++)
+        {
+            conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "message " + i));
+        }
+        List<OpenAIResponsesService.TranscriptMessage> window = service.selectWindow(conversation);
+        assertEquals(OpenAIResponsesService.MIN_WINDOW_MESSAGES, window.size());
+        assertEquals("message 2", window.getFirst().content);
+
+        // New messages extend the window rather than sliding it
+        while (conversation.size() < OpenAIResponsesService.MAX_WINDOW_MESSAGES + 2)
+        {
+            conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "message " + conversation.size()));
+            assertEquals("message 2", service.selectWindow(conversation).getFirst().content);
+        }
+
+        // Past the maximum it restarts from the latest messages
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "one too many"));
+        window = service.selectWindow(conversation);
+        assertEquals(OpenAIResponsesService.MIN_WINDOW_MESSAGES, window.size());
+        assertEquals("one too many", window.getLast().content);
+    }
+
+    @Test
+    public void testResponsesApiChainsOnlyNewTurns() throws Exception
+    {
+        OpenAIResponsesService responses = responsesApiService();
+        server.enqueue(responsesStream("resp_1", "[code-request]\n", "int x;"));
+        server.enqueue(responsesStream("resp_2", "[non-generative-request]"));
+        List<OpenAIResponsesService.TranscriptMessage> conversation = new ArrayList<>(messages());
+
+        String result = responses.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(LABEL_CODE_REQUEST + "\nint x;", result);
+        // The panel adds the generated code to the transcript; it's already in the chain
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("assistant", "int x;"));
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "Thanks"));
+        responses.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        RecordedRequest firstRequest = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals("/v1/responses", firstRequest.getPath());
+        JsonNode first = MAPPER.readTree(firstRequest.getBody().readUtf8());
+        assertTrue(first.path("previous_response_id").isMissingNode());
+        assertEquals(responses.getInstructions(), first.get("instructions").asText());
+        assertEquals("Declare an int", first.at("/input/0/content").asText());
+
+        JsonNode second = MAPPER.readTree(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getBody().readUtf8());
+        assertEquals("resp_1", second.get("previous_response_id").asText());
+        assertEquals(1, second.get("input").size());
+        assertEquals("Thanks", second.at("/input/0/content").asText());
+        // The second stream is cut at its label, before the usage event, so only its input is estimated
+        TokenUsage usage = usageMeter.getSessionTotal();
+        assertEquals(2, usage.calls());
+        assertEquals(usage.inputTokens() - 100, usage.estimatedInputTokens());
+    }
+
+    @Test
+    public void testFailedChainedRequestIsRetriedOnNewChain() throws Exception
+    {
+        OpenAIResponsesService responses = responsesApiService();
+        server.enqueue(responsesStream("resp_1", "[non-generative-request]"));
+        server.enqueue(new MockResponse().setResponseCode(400)
+            .setBody("{\"error\":{\"message\":\"Previous response not found\"}}"));
+        server.enqueue(responsesStream("resp_3", "[code-request]\n", "int y;"));
+        List<OpenAIResponsesService.TranscriptMessage> conversation = new ArrayList<>(messages());
+
+        responses.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        conversation.add(new OpenAIResponsesService.TranscriptMessage("user", "Now declare another int named y"));
+        String result = responses.analyzeForCodeRequest(conversation).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // The turn's own request isn't lost to the expired chain
+        assertEquals(LABEL_CODE_REQUEST + "\nint y;", result);
+        server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        JsonNode chained = MAPPER.readTree(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getBody().readUtf8());
+        assertEquals("resp_1", chained.get("previous_response_id").asText());
+        JsonNode restarted =
+            MAPPER.readTree(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getBody().readUtf8());
+        assertTrue(restarted.path("previous_response_id").isMissingNode());
+        assertEquals(2, restarted.get("input").size());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testRepeatedTurnIsAnsweredFromCache() throws Exception
+    {
+        server.enqueue(stream("[code-request]\n", "int x;"));
+        List<OpenAIResponsesService.TranscriptMessage> ask =
+            List.of(new OpenAIResponsesService.TranscriptMessage("user", "Declare an int named x"));
+        List<OpenAIResponsesService.TranscriptMessage> askAgain = List.of(
+            new OpenAIResponsesService.TranscriptMessage("user", "Declare an int named x"),
+            new OpenAIResponsesService.TranscriptMessage("assistant", "Done, anything else?"),
+            new OpenAIResponsesService.TranscriptMessage("user", "declare an int named X!"));
+
+        String first = service.analyzeForCodeRequest(ask).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        RecordingStreamListener listener = new RecordingStreamListener();
+        String second = service.analyzeForCodeRequest(askAgain, listener).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(first, second);
+        assertEquals(1, server.getRequestCount());
+        // The cached result streams to the listener as a live one would
+        assertEquals(List.of(LABEL_CODE_REQUEST), listener.labels);
+        assertEquals("int x;", String.join("", listener.content));
+        assertTrue(service.describeCache().startsWith("1 hits (0 from disk), 1 misses"));
+    }
+
+    @Test
+    public void testUnlabelledResultIsNotCached() throws Exception
+    {
+        server.enqueue(stream("I'm not sure what you mean"));
+        server.enqueue(stream("[code-request]\n", "int x;"));
+        List<OpenAIResponsesService.TranscriptMessage> ask =
+            List.of(new OpenAIResponsesService.TranscriptMessage("user", "Declare an int named x"));
+
+        assertEquals("I'm not sure what you mean",
+            service.analyzeForCodeRequest(ask).get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(LABEL_CODE_REQUEST + "\nint x;",
+            service.analyzeForCodeRequest(ask).get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception
+    {
+        warmUpFirstByteTimes();
+        assertTrue(service.hedgeDelayMs() < 1000);
+
+        server.enqueue(stream("[code-request]\n", "slow").setHeadersDelay(3, TimeUnit.SECONDS));
+        server.enqueue(stream("[code-request]\n", "fast"));
+        RecordingStreamListener listener = new RecordingStreamListener();
+
+        long start = System.nanoTime();
+        String result = service.analyzeForCodeRequest(messages(), listener).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_CODE_REQUEST + "\nfast", result);
+        assertEquals(List.of("fast"), listener.content);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertTrue(service.describeHedging(), service.describeHedging().startsWith("1 of 21 calls hedged (1 won)"));
+    }
+
+    @Test
+    public void testStreamStalledAfterHeadersIsHedged() throws Exception
+    {
+        warmUpFirstByteTimes();
+
+        server.enqueue(stream("[code-request]\n", "stalled").setBodyDelay(3, TimeUnit.SECONDS));
+        server.enqueue(stream("[code-request]\n", "fast"));
+
+        long start = System.nanoTime();
+        String result = service.analyzeForCodeRequest(messages()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_CODE_REQUEST + "\nfast", result);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertTrue(service.describeHedging(), service.describeHedging().startsWith("1 of 21 calls hedged (1 won)"));
+    }
+
+    @Test
+    public void testHedgeBudgetCapsHedges() throws Exception
+    {
+        System.setProperty("openai.classifier.hedge.percent", "0");
+        service = new OpenAIResponsesService("test-key", "", usageMeter);
+        warmUpFirstByteTimes();
+
+        server.enqueue(stream("[code-request]\n", "slow").setHeadersDelay(1, TimeUnit.SECONDS));
+        String result = service.analyzeForCodeRequest(messages()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(LABEL_CODE_REQUEST + "\nslow", result);
+        assertTrue(service.describeHedging().startsWith("0 of 21 calls hedged"));
+    }
+
+    /**
+     * Times enough quick responses for the hedge delay to follow their p90
+     */
+    private void warmUpFirstByteTimes() throws Exception
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            server.enqueue(stream("[non-generative-request]"));
+            service.analyzeForCodeRequest(messages()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < 20; i++)
+        {
+            server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private OpenAIResponsesService responsesApiService()
+    {
+        System.setProperty("openai.chat.api", OpenAIResponsesService.API_RESPONSES);
+        System.setProperty("openai.responses.url", server.url("/v1/responses").toString());
+        return new OpenAIResponsesService("test-key", "", usageMeter);
+    }
+
+    private static List<OpenAIResponsesService.TranscriptMessage> messages()
+    {
+        return List.of(new OpenAIResponsesService.TranscriptMessage("user", "Declare an int"));
+    }
+
+    /**
+     * @return an event stream with one chunk per delta, then a usage chunk
+     */
+    private static MockResponse stream(String... deltas) throws Exception
+    {
+        StringBuilder body = new StringBuilder();
+        for (String delta : deltas)
+        {
+            ObjectNode chunk = MAPPER.createObjectNode();
+            chunk.putArray("choices").addObject().putObject("delta").put("content", delta);
+            body.append("data: ").append(MAPPER.writeValueAsString(chunk)).append("\n\n");
+        }
+        ObjectNode usage = MAPPER.createObjectNode();
+        usage.putArray("choices");
+        usage.putObject("usage").put("prompt_tokens", 100).put("completion_tokens", 20);
+        body.append("data: ").append(MAPPER.writeValueAsString(usage)).append("\n\n");
+        body.append("data: [DONE]\n\n");
+
+        return new MockResponse()
+            .setHeader("Content-Type", "text/event-stream")
+            .setBody(body.toString());
+    }
+
+    /**
+     * @return a Responses API event stream: created, one delta event per delta, then completed with usage
+     */
+    private static MockResponse responsesStream(String responseId, String... deltas) throws Exception
+    {
+        StringBuilder body = new StringBuilder();
+        ObjectNode created = MAPPER.createObjectNode().put("type", "response.created");
+        created.putObject("response").put("id", responseId);
+        body.append("event: response.created\ndata: ").append(MAPPER.writeValueAsString(created)).append("\n\n");
+        for (String delta : deltas)
+        {
+            ObjectNode event = MAPPER.createObjectNode().put("type", "response.output_text.delta").put("delta", delta);
+            body.append("event: response.output_text.delta\ndata: ").append(MAPPER.writeValueAsString(event))
+                .append("\n\n");
+        }
+        ObjectNode completed = MAPPER.createObjectNode().put("type", "response.completed");
+        completed.putObject("response").put("id", responseId)
+            .putObject("usage").put("input_tokens", 100).put("output_tokens", 20);
+        body.append("event: response.completed\ndata: ").append(MAPPER.writeValueAsString(completed)).append("\n\n");
+
+        return new MockResponse()
+            .setHeader("Content-Type", "text/event-stream")
+            .setBody(body.toString());
+    }
+
+    private static class RecordingStreamListener implements OpenAIResponsesService.ClassifierStreamListener
+    {
+        private final List<String> labels = new CopyOnWriteArrayList<>();
+
+        private final List<String> content = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onLabel(String label)
+        {
+            labels.add(label);
+        }
+
+        @Override
+        public void onContent(String delta)
+        {
+            content.add(delta);
+        }
+    }
+}
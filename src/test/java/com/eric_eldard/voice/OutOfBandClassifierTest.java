@@ -0,0 +1,113 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.eric_eldard.metrics.UsageMeter;
+
+public class OutOfBandClassifierTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final long TIMEOUT_MS = 100;
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    private final UsageMeter usageMeter = new UsageMeter();
+
+    private final OutOfBandClassifier classifier =
+        new OutOfBandClassifier(MAPPER, sent::add, usageMeter, TIMEOUT_MS);
+
+    @Test
+    public void testTimedOutResponseIsCancelledAndItsEventsDropped() throws Exception
+    {
+        CompletableFuture<String> result = classifier.classify("Classify", null);
+        assertTrue(classifier.route("response.created", created("classify_1", "resp_1")));
+
+        awaitTimeout(result);
+
+        assertEquals("resp_1", lastSent("response.cancel").get("response_id").asText());
+        // The rest of its events stay away from the voice pipeline, up to its response.done
+        assertTrue(classifier.route("response.text.delta", delta("resp_1")));
+        assertTrue(classifier.route("response.done", done("resp_1")));
+        assertEquals(1, usageMeter.getSessionTotal().calls());
+        assertFalse(classifier.route("response.text.delta", delta("resp_1")));
+    }
+
+    @Test
+    public void testResponseAcknowledgedAfterTimeoutIsCancelled() throws Exception
+    {
+        CompletableFuture<String> result = classifier.classify("Classify", null);
+
+        awaitTimeout(result);
+        assertTrue(sent.stream().noneMatch(event -> event.contains("response.cancel")));
+        assertTrue(classifier.route("response.created", created("classify_1", "resp_late")));
+
+        assertEquals("resp_late", lastSent("response.cancel").get("response_id").asText());
+        assertTrue(classifier.route("response.text.delta", delta("resp_late")));
+    }
+
+    private static void awaitTimeout(CompletableFuture<String> result) throws Exception
+    {
+        try
+        {
+            result.get(TIMEOUT_MS * 20, TimeUnit.MILLISECONDS);
+            fail("Expected the classification to time out");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // The timeout's cleanup runs just after the future fails
+        Thread.sleep(50);
+    }
+
+    private JsonNode lastSent(String type) throws Exception
+    {
+        for (int i = sent.size() - 1; i >= 0; i--)
+        {
+            JsonNode event = MAPPER.readTree(sent.get(i));
+            if (type.equals(event.path("type").asText()))
+            {
+                return event;
+            }
+        }
+        throw new AssertionError("No " + type + " sent");
+    }
+
+    private static JsonNode created(String requestId, String responseId) throws Exception
+    {
+        return MAPPER.readTree("""
+            {"type": "response.created", "response": {"id": "%s",
+             "metadata": {"purpose": "classification", "request_id": "%s"}}}
+            """.formatted(responseId, requestId));
+    }
+
+    private static JsonNode delta(String responseId) throws Exception
+    {
+        return MAPPER.readTree("""
+            {"type": "response.text.delta", "response_id": "%s", "delta": "[code-"}
+            """.formatted(responseId));
+    }
+
+    private static JsonNode done(String responseId) throws Exception
+    {
+        return MAPPER.readTree("""
+            {"type": "response.done", "response": {"id": "%s", "status": "cancelled",
+             "metadata": {"purpose": "classification"}, "usage": {"input_tokens": 50, "output_tokens": 2}}}
+            """.formatted(responseId));
+    }
+}
@@ -0,0 +1,88 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RealtimeEventBusTest
+{
+    private final RealtimeEventBus bus = new RealtimeEventBus();
+
+    @After
+    public void tearDown()
+    {
+        bus.shutdown();
+    }
+
+    @Test
+    public void testSlowConsumerDoesNotDelayOtherLanesOrPublisher() throws Exception
+    {
+        CountDownLatch releaseUi = new CountDownLatch(1);
+        CountDownLatch audioReceived = new CountDownLatch(100);
+        bus.subscribe(RealtimeEventBus.Lane.UI, event -> await(releaseUi), RealtimeEvent.TextDelta.class);
+        bus.subscribe(RealtimeEventBus.Lane.REALTIME, event -> audioReceived.countDown(),
+            RealtimeEvent.AudioDelta.class);
+
+        long start = System.nanoTime();
+        bus.onTextDelta("blocked");
+        for (int i = 0; i < 100; i++)
+        {
+            bus.onAudioResponse(new byte[4800]);
+        }
+        long publishMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Audio should flow while the UI lane is stuck", audioReceived.await(1, TimeUnit.SECONDS));
+        assertTrue("Publishing should not wait on consumers, took " + publishMs + "ms", publishMs < 500);
+        releaseUi.countDown();
+    }
+
+    @Test
+    public void testUiLaneCoalescesQueuedTextDeltasInOrder() throws Exception
+    {
+        CountDownLatch releaseUi = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        List<RealtimeEvent> received = new CopyOnWriteArrayList<>();
+        bus.subscribe(RealtimeEventBus.Lane.UI, event ->
+        {
+            received.add(event);
+            if (event instanceof RealtimeEvent.Connected)
+            {
+                await(releaseUi);
+            }
+            if (event instanceof RealtimeEvent.ResponseComplete)
+            {
+                done.countDown();
+            }
+        });
+
+        bus.onConnected();
+        bus.onTextDelta("Hel");
+        bus.onTextDelta("lo");
+        bus.onTextDelta(" there");
+        bus.onResponseComplete();
+        releaseUi.countDown();
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of(new RealtimeEvent.Connected(), new RealtimeEvent.TextDelta("Hello there"),
+            new RealtimeEvent.ResponseComplete()), received);
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
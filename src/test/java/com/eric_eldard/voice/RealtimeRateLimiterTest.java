@@ -0,0 +1,71 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+public class RealtimeRateLimiterTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testUnlimitedUntilReported()
+    {
+        RealtimeRateLimiter limiter = new RealtimeRateLimiter();
+        assertEquals(0, limiter.getResponseDelayMs(1000));
+        assertEquals(0, limiter.getCommitDelayMs(1000));
+    }
+
+    @Test
+    public void testExhaustedRequestsHoldUntilReset() throws Exception
+    {
+        RealtimeRateLimiter limiter = new RealtimeRateLimiter();
+        limiter.onRateLimitsUpdated(rateLimits(2, 100_000, 5.0), 1000);
+
+        limiter.onResponseSent(1000);
+        assertEquals(0, limiter.getResponseDelayMs(1000));
+        limiter.onResponseSent(1000);
+
+        assertEquals(5000, limiter.getResponseDelayMs(1000));
+        assertEquals(4000, limiter.getCommitDelayMs(2000));
+        assertEquals(0, limiter.getResponseDelayMs(6000));
+    }
+
+    @Test
+    public void testTokenBudgetUsesLearnedResponseSize() throws Exception
+    {
+        RealtimeRateLimiter limiter = new RealtimeRateLimiter();
+        limiter.onRateLimitsUpdated(rateLimits(100, 800, 2.0), 1000);
+
+        // The initial estimate doesn't fit what's left, but small responses do
+        assertEquals(2000, limiter.getResponseDelayMs(1000));
+        for (int i = 0; i < 20; i++)
+        {
+            limiter.onResponseUsage(200);
+        }
+        assertEquals(0, limiter.getResponseDelayMs(1000));
+        assertEquals(0, limiter.getCommitDelayMs(1000));
+    }
+
+    @Test
+    public void testRateLimitErrorCoolsDownUntilSoonestReset() throws Exception
+    {
+        RealtimeRateLimiter limiter = new RealtimeRateLimiter();
+        limiter.onRateLimited(1000);
+        assertEquals(RealtimeRateLimiter.DEFAULT_COOLDOWN_MS, limiter.getCommitDelayMs(1000));
+
+        limiter.onRateLimitsUpdated(rateLimits(100, 100_000, 3.0), 5000);
+        limiter.onRateLimited(5000);
+        assertEquals(3000, limiter.getResponseDelayMs(5000));
+    }
+
+    private static JsonNode rateLimits(long requests, long tokens, double resetSeconds) throws Exception
+    {
+        return MAPPER.readTree(String.format("""
+            [{"name": "requests", "limit": %d, "remaining": %d, "reset_seconds": %s},
+             {"name": "tokens", "limit": %d, "remaining": %d, "reset_seconds": %s}]
+            """, requests, requests, resetSeconds, tokens, tokens, resetSeconds));
+    }
+}
@@ -0,0 +1,74 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+public class ScreenshotDiffTest
+{
+    @Test
+    public void testIdenticalScreenshotsHaveNoChange()
+    {
+        assertNull(ScreenshotDiff.changedRegion(screenshot(), screenshot()));
+    }
+
+    @Test
+    public void testChangeIsBoundedByItsTiles()
+    {
+        BufferedImage changed = screenshot();
+        fill(changed, Color.RED, new Rectangle(100, 70, 50, 10));
+        fill(changed, Color.RED, new Rectangle(300, 200, 1, 1));
+
+        // Tiles from (96,64) to the one holding (300,200)
+        assertEquals(new Rectangle(96, 64, 224, 160), ScreenshotDiff.changedRegion(screenshot(), changed));
+    }
+
+    @Test
+    public void testNoiseWithinToleranceIsIgnored()
+    {
+        BufferedImage noisy = screenshot();
+        noisy.setRGB(10, 10, noisy.getRGB(10, 10) + 0x080808);
+
+        assertNull(ScreenshotDiff.changedRegion(screenshot(), noisy));
+    }
+
+    @Test
+    public void testScreenshotsOfDifferentSizesDifferEverywhere()
+    {
+        BufferedImage smaller = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+
+        assertEquals(new Rectangle(0, 0, 200, 100), ScreenshotDiff.changedRegion(screenshot(), smaller));
+    }
+
+    @Test
+    public void testMarginStaysWithinTheImage()
+    {
+        assertEquals(new Rectangle(0, 52, 80, 148),
+            ScreenshotDiff.withMargin(new Rectangle(0, 100, 32, 100), 48, 640, 200));
+    }
+
+    /**
+     * @return a 640x400 screenshot, with an edge that runs across tiles
+     */
+    private static BufferedImage screenshot()
+    {
+        BufferedImage image = new BufferedImage(640, 400, BufferedImage.TYPE_INT_RGB);
+        fill(image, Color.LIGHT_GRAY, new Rectangle(0, 0, 640, 400));
+        fill(image, Color.DARK_GRAY, new Rectangle(0, 0, 640, 45));
+        return image;
+    }
+
+    private static void fill(BufferedImage image, Color color, Rectangle area)
+    {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fill(area);
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,100 @@
+package com.eric_eldard.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.eric_eldard.voice.OpenAIResponsesService.TranscriptMessage;
+
+public class TranscriptStoreTest
+{
+    @Test
+    public void testSnapshotHoldsLatestTurnsInOrder()
+    {
+        TranscriptStore store = new TranscriptStore(4);
+        for (int i = 0; i < 6; i++)
+        {
+            store.append(i % 2 == 0 ? "user" : "assistant", "turn " + i);
+        }
+
+        assertEquals(List.of("turn 4", "turn 5"), contents(store.snapshot(2)));
+        // Only the capacity survives, however many are asked for
+        assertEquals(List.of("turn 2", "turn 3", "turn 4", "turn 5"), contents(store.snapshot(10)));
+        assertEquals("user", store.snapshot(2).getFirst().role);
+    }
+
+    @Test
+    public void testClearForgetsEarlierTurns()
+    {
+        TranscriptStore store = new TranscriptStore(8);
+        store.append("user", "before");
+        store.clear();
+        assertTrue(store.snapshot(8).isEmpty());
+
+        store.append("user", "after");
+        assertEquals(List.of("after"), contents(store.snapshot(8)));
+    }
+
+    @Test
+    public void testSnapshotsStayOrderedUnderConcurrentWrites() throws Exception
+    {
+        TranscriptStore store = new TranscriptStore(32);
+        int writers = 4;
+        int turnsPerWriter = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++)
+        {
+            int writer = w;
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                for (int i = 0; i < turnsPerWriter; i++)
+                {
+                    store.append("user", writer + ":" + i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        while (threads.stream().anyMatch(Thread::isAlive))
+        {
+            // Each writer's turns must come out in the order it wrote them
+            int[] lastSeen = new int[writers];
+            Arrays.fill(lastSeen, -1);
+            for (TranscriptMessage message : store.snapshot(20))
+            {
+                String[] parts = message.content.split(":");
+                int writer = Integer.parseInt(parts[0]);
+                int turn = Integer.parseInt(parts[1]);
+                assertTrue(turn > lastSeen[writer]);
+                lastSeen[writer] = turn;
+            }
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(20, store.snapshot(20).size());
+    }
+
+    private static List<String> contents(List<TranscriptMessage> messages)
+    {
+        return messages.stream().map(message -> message.content).toList();
+    }
+}